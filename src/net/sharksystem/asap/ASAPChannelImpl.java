@@ -33,7 +33,7 @@ public class ASAPChannelImpl implements ASAPChannel {
 
     @Override
     public HashMap<String, String> getExtraData() throws IOException {
-        return this.asapEngine.getStorage().getChunk(uri, this.asapEngine.getEra()).getExtraData();
+        return this.asapEngine.getExtraData(this.uri);
     }
 
     @Override
@@ -1,7 +1,10 @@
 package net.sharksystem.asap;
 
+import net.sharksystem.asap.apps.ASAPMessageVisitor;
+
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -50,6 +53,21 @@ public interface ASAPChunk {
      */
     Iterator<byte[]> getMessagesAsBytes() throws IOException;
 
+    /**
+     *
+     * @return iterator of all messages in the chunk as read only buffers - messages are not copied
+     * @throws IOException
+     */
+    Iterator<ByteBuffer> getMessagesAsByteBuffer() throws IOException;
+
+    /**
+     * visit all messages in that chunk - no message is copied
+     * @param visitor
+     * @return false if visitor stopped visiting
+     * @throws IOException
+     */
+    boolean forEachMessage(ASAPMessageVisitor visitor) throws IOException;
+
     /**
      * remove that chunk.. drop all object references after
      * calling this methods. Further calls on this object
@@ -90,10 +108,49 @@ public interface ASAPChunk {
 
     void addMessage(InputStream messageByteIS, long length) throws IOException;
 
+    /**
+     * Add a number of messages at once. Content is appended in one pass, meta data are
+     * updated once.
+     * @param messages messages to be added
+     * @throws IOException
+     */
+    void addMessages(Iterable<byte[]> messages) throws IOException;
+
     public long getLength();
 
+    /**
+     * @return offsets of messages - boxed view, prefer getOffsetIndex
+     */
     List<Long> getOffsetList();
 
+    /**
+     * @return offsets of messages in that chunk. Offset 0 of the first message is not part of that index.
+     * Index is a copy - messages added later are not part of it.
+     */
+    ASAPOffsetIndex getOffsetIndex();
+
+    /**
+     * @param position message position in that chunk
+     * @return offset of first byte of that message in chunk content
+     * @throws IOException no such message
+     */
+    long getMessageStart(int position) throws IOException;
+
+    /**
+     * @param position message position in that chunk
+     * @return length of that message
+     * @throws IOException no such message
+     */
+    long getMessageLength(int position) throws IOException;
+
+    /**
+     * Random access to a single message. Other messages are not read.
+     * @param position message position in that chunk
+     * @return message
+     * @throws IOException no such message or problems when reading
+     */
+    byte[] getMessage(int position) throws IOException;
+
     InputStream getMessageInputStream();
 
     void putExtra(String key, String value) throws IOException;
@@ -1,9 +1,13 @@
 package net.sharksystem.asap;
 
-import net.sharksystem.asap.util.Helper;
+import net.sharksystem.asap.apps.ASAPMessageVisitor;
 import net.sharksystem.asap.util.Log;
+import net.sharksystem.asap.util.StreamHelper;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
@@ -17,48 +21,40 @@ class ASAPChunkFS implements ASAPChunk {
     private final ASAPChunkStorageFS storage;
     private String sender;
     private String uri = DEFAULT_URL;
-    private Set<CharSequence> recipients;
-    private List<CharSequence> deliveredTo;
-    private List<Long> messageStartOffsets = new ArrayList<>();
+    private ASAPChunkMetaDataFS metaData;
     private File metaFile;
     private File messageFile;
+    private FileChannel appendChannel = null;
+    private MappedByteBuffer contentMap = null;
     
     private int era;
 
-    private HashMap<String, String> extraData = new HashMap<>();
-
-
     @Override
     public void clone(ASAPChunk chunkSource) throws IOException {
-        this.uri = chunkSource.getUri();
-        this.recipients = chunkSource.getRecipients();
-        this.extraData = chunkSource.getExtraData();
-
-        this.saveStatus();
+        this.metaData.setChannelMetaData(
+                chunkSource.getUri(), chunkSource.getRecipients(), chunkSource.getExtraData());
     }
 
     @Override
     public void copyMetaData(ASAPChannel channel) throws IOException {
-        this.uri = channel.getUri().toString();
-        this.recipients = channel.getRecipients();
-        this.extraData = channel.getExtraData();
-
-        this.saveStatus();
+        this.metaData.setChannelMetaData(
+                channel.getUri(), channel.getRecipients(), channel.getExtraData());
     }
 
     public HashMap<String, String> getExtraData() {
-        return this.extraData;
+        this.refreshMetaData();
+        return this.metaData.getExtraData();
     }
 
     @Override
     public void deliveredTo(String peer) throws IOException {
-        this.deliveredTo.add(peer);
-        this.saveStatus();
+        this.metaData.addDeliveredTo(peer);
     }
 
     @Override
     public List<CharSequence> getDeliveredTo() {
-        return this.deliveredTo;
+        this.refreshMetaData();
+        return this.metaData.getDeliveredTo();
     }
 
     ASAPChunkFS(ASAPChunkStorageFS storage, String uri, int era) throws IOException {
@@ -80,12 +76,24 @@ class ASAPChunkFS implements ASAPChunk {
     }
 
     ASAPChunkFS(ASAPChunkStorageFS storage, String trunkName) throws IOException {
+        this(storage, 0, trunkName);
+    }
+
+    ASAPChunkFS(ASAPChunkStorageFS storage, int era, String trunkName) throws IOException {
         this.storage = storage;
         this.uri = ASAPChunkFS.DEFAULT_URL;
-        
+        this.era = era;
+
         this.initFiles(trunkName);
     }
 
+    /**
+     * @return false if chunk was removed from file system in the meantime
+     */
+    boolean isValid() {
+        return this.metaFile.exists();
+    }
+
     private void initFiles(String trunkName) throws IOException {
         String messageFileName = trunkName + "." +  DATA_EXTENSION;
         String metaFileName = trunkName + "." + META_DATA_EXTENSION;
@@ -98,52 +106,50 @@ class ASAPChunkFS implements ASAPChunk {
             this.metaFile.createNewFile();
         }
 
-        // try to read existing meta data
-        if(!this.readMetaData(this.metaFile)) {
-            // no metadate to be read - set defaults
-            this.writeMetaData(this.metaFile);
-            this.recipients = new HashSet<>();
-            this.deliveredTo = new ArrayList<>();
-            this.messageStartOffsets = new ArrayList<>();
+        // try to read existing meta data - former formats are converted
+        this.metaData = new ASAPChunkMetaDataFS(this.metaFile, this.uri);
+        if(!this.metaData.load()) {
+            // no metadata to be read - write defaults
+            this.metaData.compact();
         }
     }
-    
-    private void saveStatus() throws IOException {
-        this.writeMetaData(this.metaFile);
+
+    /**
+     * meta data can be changed by other objects representing the same chunk. Re-read if so.
+     */
+    private void refreshMetaData() {
+        try {
+            this.metaData.refresh();
+        } catch (IOException e) {
+            Log.writeLogErr(this, "cannot read meta data: " + e.getLocalizedMessage());
+        }
     }
-    
+
     @Override
     public Set<CharSequence> getRecipients() {
-        return this.recipients;
+        this.refreshMetaData();
+        return this.metaData.getRecipients();
     }
 
     @Override
     public void addRecipient(CharSequence recipient) throws IOException {
-        this.recipients.add(recipient);
-        this.writeMetaData(this.metaFile);
+        this.metaData.addRecipient(recipient);
     }
 
     @Override
     public void setRecipients(Collection<CharSequence> newRecipients) throws IOException {
-        this.recipients = new HashSet<>();
-        if(recipients != null) {
-            for (CharSequence recipient : newRecipients) {
-                this.recipients.add(recipient);
-            }
-        }
-        
-        this.writeMetaData(this.metaFile);
+        this.metaData.setRecipients(newRecipients);
     }
 
     @Override
     public void removeRecipient(CharSequence recipient) throws IOException {
-        this.recipients.remove(recipient);
-        this.writeMetaData(this.metaFile);
+        this.metaData.removeRecipient(recipient);
     }
 
     @Override
     public String getUri() {
-        return (String) this.uri;
+        this.refreshMetaData();
+        return this.metaData.getUri();
     }
 
     /*
@@ -153,81 +159,196 @@ class ASAPChunkFS implements ASAPChunk {
     }
 */
     @Override
-    public void addMessage(byte[] messageAsBytes) throws IOException {
+    public synchronized void addMessage(byte[] messageAsBytes) throws IOException {
         if(messageAsBytes.length > Integer.MAX_VALUE) {
             throw new IOException("message must not be longer than Integer.MAXVALUE");
         }
 
-        InputStream is = new ByteArrayInputStream(messageAsBytes);
+        FileChannel channel = this.getAppendChannel();
+        long offset = channel.size();
+        this.notifyStorageGrows(offset);
+
+        StreamHelper.write(messageAsBytes, channel, offset);
 
-        this.addMessage(is, messageAsBytes.length);
+        this.rememberMessageOffset(offset);
+        this.notifyStorage(1, messageAsBytes.length);
     }
 
-    public void addMessage(InputStream messageByteIS, long length) throws IOException {
+    public synchronized void addMessage(InputStream messageByteIS, long length) throws IOException {
         if(length > Integer.MAX_VALUE) {
             throw new IOException("message must not be longer than Integer.MAXVALUE");
         }
 
-        long offset = this.messageFile.length();
-
-//        Log.writeLog(this, "chunk file offset == " + offset);
-        OutputStream os = new FileOutputStream(this.messageFile, true);
+        FileChannel channel = this.getAppendChannel();
+        long offset = channel.size();
+        this.notifyStorageGrows(offset);
 
 //        Log.writeLog(this, "write message to the end of chunk file");
-        while(length-- > 0) {
-            os.write(messageByteIS.read());
+        try {
+            StreamHelper.copy(messageByteIS, channel, offset, length);
+        }
+        catch(IOException e) {
+            // stream broke - remove partial message, chunk ends with last complete message
+            channel.truncate(offset);
+            throw e;
         }
 
-//        Log.writeLog(this, "closing");
-        os.close();
+        this.rememberMessageOffset(offset);
+        this.notifyStorage(1, length);
+    }
 
+    @Override
+    public synchronized void addMessages(Iterable<byte[]> messages) throws IOException {
+        List<ByteBuffer> bufferList = new ArrayList<>();
+        for(byte[] message : messages) {
+            bufferList.add(ByteBuffer.wrap(message));
+        }
+        if(bufferList.isEmpty()) return;
+
+        FileChannel channel = this.getAppendChannel();
+        long startOffset = channel.size();
+        long offset = startOffset;
+        this.notifyStorageGrows(startOffset);
+
+        // remember where each message starts - but not 0
+        long[] offsets = new long[bufferList.size()];
+        int number = 0;
+        for(ByteBuffer buffer : bufferList) {
+            if(offset > 0) {
+                offsets[number++] = offset;
+            }
+            offset += buffer.remaining();
+        }
+
+        // write all messages with a gathering write
+        ByteBuffer[] buffers = bufferList.toArray(new ByteBuffer[bufferList.size()]);
+        long remaining = offset - startOffset;
+        try {
+            while(remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+        }
+        catch(IOException e) {
+            // none of those messages is remembered - remove what was written
+            channel.truncate(startOffset);
+            throw e;
+        }
+
+        this.metaData.addOffsets(Arrays.copyOf(offsets, number));
+        this.notifyStorage(bufferList.size(), offset - startOffset);
+    }
+
+    /**
+     * storage keeps an index of chunks with their number of messages and length
+     */
+    private void notifyStorage(int numberMessages, long length) throws IOException {
+        if(this.storage != null) {
+            this.storage.messagesAdded(this.era, this.metaData.getUri(), numberMessages, length);
+        }
+    }
+
+    /**
+     * peers this chunk was delivered to have got it up to its current length
+     */
+    private void notifyStorageGrows(long length) throws IOException {
+        if(this.storage == null || length == 0) return;
+
+        List<CharSequence> deliveredTo = this.getDeliveredTo();
+        if(!deliveredTo.isEmpty()) {
+            this.storage.deliveredChunkGrows(this.era, this.metaData.getUri(), deliveredTo, length);
+        }
+    }
+
+    private void rememberMessageOffset(long offset) throws IOException {
         // remember offset if not 0
         if(offset > 0) {
-            this.messageStartOffsets.add(offset);
-            this.saveStatus();
+            this.metaData.addOffset(offset);
         }
     }
 
-    @Override
-    public Iterator<byte[]> getMessagesAsBytes() throws IOException {
-        return this.getMessagesAsBytesList().iterator();
+    /**
+     * Message file is kept open as long as this chunk object lives. Messages are appended without
+     * re-opening that file each time.
+     * @return channel to append data to message file
+     * @throws IOException
+     */
+    private FileChannel getAppendChannel() throws IOException {
+        if(this.appendChannel == null || !this.appendChannel.isOpen()) {
+            this.appendChannel = new FileOutputStream(this.messageFile, true).getChannel();
+        }
+
+        return this.appendChannel;
     }
 
-    private List<byte[]> getMessagesAsBytesList() throws IOException {
-        List<byte[]> byteMessageList = new ArrayList<>();
+    /**
+     * release file handles. This object can still be used afterwards. Files are re-opened if required.
+     */
+    synchronized void close() {
+        if(this.appendChannel != null) {
+            try {
+                this.appendChannel.close();
+            } catch (IOException e) {
+                Log.writeLogErr(this, "cannot close message file: " + e.getLocalizedMessage());
+            }
+            this.appendChannel = null;
+        }
 
-        if(this.messageFile.length() > 0) {
-            InputStream is = new FileInputStream((this.messageFile));
-            long offset = 0;
-            for(Long nextOffset : this.messageStartOffsets) {
-                long messageLenLong = nextOffset.longValue() - offset;
-                if(messageLenLong > Integer.MAX_VALUE) {
-                    throw new IOException("message longer than Integer.MAXVALUE");
-                }
+        this.contentMap = null;
+        this.metaData.close();
+    }
 
-                int messageLen = (int) messageLenLong;
-                byte[] messageBytes = new byte[messageLen];
+    @Override
+    public Iterator<byte[]> getMessagesAsBytes() throws IOException {
+        this.metaData.refresh();
+        return new ByteMessageIter(this.metaData.getOffsetArray(), this.messageFile.length());
+    }
 
-                is.read(messageBytes);
+    @Override
+    public Iterator<ByteBuffer> getMessagesAsByteBuffer() throws IOException {
+        this.metaData.refresh();
+        long[] offsets = this.metaData.getOffsetArray();
+        long contentLength = this.messageFile.length();
+
+        if(contentLength > Integer.MAX_VALUE) {
+            // too large to be mapped in one buffer - copy messages
+            final ByteMessageIter byteMessageIter = new ByteMessageIter(offsets, contentLength);
+            return new Iterator<ByteBuffer>() {
+                public boolean hasNext() { return byteMessageIter.hasNext(); }
+                public ByteBuffer next() { return ByteBuffer.wrap(byteMessageIter.next()).asReadOnlyBuffer(); }
+            };
+        }
 
-                byteMessageList.add(messageBytes);
+        return new ByteBufferMessageIter(offsets, contentLength);
+    }
 
-                offset = nextOffset;
+    @Override
+    public boolean forEachMessage(ASAPMessageVisitor visitor) throws IOException {
+        this.metaData.refresh();
+        ASAPOffsetIndex offsets = this.metaData.getOffsetsCopy();
+        long contentLength = this.messageFile.length();
+        int numberMessages = offsets.getNumberMessages(contentLength);
+
+        if(contentLength > Integer.MAX_VALUE) {
+            // too large to be mapped in one buffer - copy messages
+            Iterator<ByteBuffer> messageIter = this.getMessagesAsByteBuffer();
+            while(messageIter.hasNext()) {
+                if(!visitor.visitMessage(messageIter.next())) return false;
             }
+            return true;
+        }
 
-            // read last one
-            long messageLenLong = this.messageFile.length() - offset;
-            if(messageLenLong > Integer.MAX_VALUE) {
-                throw new IOException("message longer than Integer.MAXVALUE");
-            }
+        // one buffer for all messages
+        ByteBuffer message = numberMessages > 0 ? this.getContentMap(contentLength).asReadOnlyBuffer() : null;
+        for(int i = 0; i < numberMessages; i++) {
+            long start = offsets.getMessageStart(i);
+            message.limit(message.capacity());
+            message.position((int) start);
+            message.limit((int) (start + offsets.getMessageLength(i, contentLength)));
 
-            int messageLen = (int) messageLenLong;
-            byte[] messageBytes = new byte[messageLen];
-            is.read(messageBytes);
-            byteMessageList.add(messageBytes);
+            if(!visitor.visitMessage(message)) return false;
         }
 
-        return byteMessageList;
+        return true;
     }
 
     public long getLength() {
@@ -236,7 +357,84 @@ class ASAPChunkFS implements ASAPChunk {
 
     @Override
     public List<Long> getOffsetList() {
-        return this.messageStartOffsets;
+        return this.getOffsetIndex().asList();
+    }
+
+    @Override
+    public ASAPOffsetIndex getOffsetIndex() {
+        this.refreshMetaData();
+        return this.metaData.getOffsetsCopy();
+    }
+
+    @Override
+    public long getMessageStart(int position) throws IOException {
+        this.checkPosition(position);
+        return this.metaData.getMessageStart(position);
+    }
+
+    @Override
+    public long getMessageLength(int position) throws IOException {
+        this.checkPosition(position);
+        return this.metaData.getMessageLength(position, this.messageFile.length());
+    }
+
+    @Override
+    public byte[] getMessage(int position) throws IOException {
+        long start = this.getMessageStart(position);
+        long length = this.getMessageLength(position);
+        if(length > Integer.MAX_VALUE) {
+            throw new IOException("message longer than Integer.MAXVALUE");
+        }
+
+        byte[] message = new byte[(int) length];
+        long end = start + length;
+        if(end > Integer.MAX_VALUE) {
+            // cannot be mapped in one buffer - read it
+            RandomAccessFile raf = new RandomAccessFile(this.messageFile, "r");
+            try {
+                raf.seek(start);
+                raf.readFully(message);
+            }
+            finally {
+                raf.close();
+            }
+        } else {
+            ByteBuffer content = this.getContentMap(end).duplicate();
+            content.position((int) start);
+            content.get(message);
+        }
+
+        return message;
+    }
+
+    /**
+     * Message file is mapped into memory. It is re-mapped if it grew in the meantime.
+     * @param minLength required length of mapped content
+     */
+    private synchronized MappedByteBuffer getContentMap(long minLength) throws IOException {
+        if(this.contentMap == null || this.contentMap.capacity() < minLength) {
+            FileInputStream fis = new FileInputStream(this.messageFile);
+            try {
+                FileChannel channel = fis.getChannel();
+                long size = Math.min(channel.size(), Integer.MAX_VALUE);
+                if(size < minLength) {
+                    throw new IOException("message file shorter than expected: " + this.messageFile);
+                }
+                // mapping remains valid after closing the channel
+                this.contentMap = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            finally {
+                fis.close();
+            }
+        }
+
+        return this.contentMap;
+    }
+
+    private void checkPosition(int position) throws IOException {
+        if(position < 0 || position >= this.getNumberMessage()) {
+            throw new IOException("no message at position " + position);
+        }
     }
 
     @Override
@@ -256,194 +454,198 @@ class ASAPChunkFS implements ASAPChunk {
         if(key == null || value == null) {
             throw new IOException("null values are not allowed in extra data");
         }
-        this.extraData.put(key, value);
-        this.saveStatus();
+        this.metaData.putExtra(key, value);
     }
 
     @Override
     public CharSequence removeExtra(String key) throws IOException {
         if(key == null) throw new IOException("null key not allowed");
-        String removed = this.extraData.remove(key);
-        this.saveStatus();
-        return removed;
+        return this.metaData.removeExtra(key);
     }
 
     @Override
     public CharSequence getExtra(String key) throws IOException {
         if(key == null) throw new IOException("null key not allowed");
-        return this.extraData.get(key);
+        this.refreshMetaData();
+        return this.metaData.getExtraData().get(key);
         // no status change
     }
 
     @Override
     public Iterator<CharSequence> getMessages() throws IOException {
-        try {
-            return new MessageIter(this.getMessagesAsBytesList());
-        } catch (FileNotFoundException ex) {
-            throw new IOException(ex.getLocalizedMessage());
-        }
+        this.metaData.refresh();
+        return new MessageIter(this.metaData.getOffsetArray(), this.messageFile.length());
     }
 
     @Override
     public void drop() {
+        String dropUri = this.metaData.getUri();
+        this.close();
         this.metaFile.delete();
         this.messageFile.delete();
-    }
-
-    private boolean readMetaData(File metaFile) throws IOException {
-        if(!metaFile.exists()) return false;
-        // read data from metafile
-        DataInputStream dis = new DataInputStream(new FileInputStream(metaFile));
 
-        try {
-            this.uri = dis.readUTF();
-            this.setExtraByString(dis.readUTF());
-        }
-        catch(EOFException eof) {
-            // file empty
-            return false;
-        }
-        
-        try {
-            this.recipients = Helper.string2CharSequenceSet(dis.readUTF());
-            this.deliveredTo = Helper.string2CharSequenceList(dis.readUTF());
-
-            // finally read offset list
-            String offsetList = dis.readUTF();
-            this.messageStartOffsets = this.messageOffsetString2List(offsetList);
-        }
-        catch(IOException ioe) {
-            // no more data - ok
-        }
-        finally {
-            dis.close();
+        if(this.storage != null) {
+            try {
+                this.storage.chunkDropped(this.era, dropUri);
+            } catch (IOException e) {
+                Log.writeLogErr(this, "cannot remove dropped chunk from era catalogue: " + e.getLocalizedMessage());
+            }
         }
-        
-        return true;
     }
 
-    private void writeMetaData(File metaFile) throws IOException {
-        // write data to metafile
-        DataOutputStream dos = new DataOutputStream(new FileOutputStream(metaFile));
-        
-        dos.writeUTF(this.uri);
-        dos.writeUTF(this.getExtraAsString());
-        dos.writeUTF(Helper.collection2String(this.recipients));
-        dos.writeUTF(Helper.collection2String(this.deliveredTo));
+    @Override
+    public int getNumberMessage() {
+        if(this.messageFile.length() == 0) return 0;
 
-        // write offsetList
-        dos.writeUTF(this.messageStartOffsetListAsString());
-        
-        dos.close();
+        this.refreshMetaData();
+        return this.metaData.getNumberMessages(this.messageFile.length());
     }
 
-    private String messageStartOffsetListAsString() {
-        StringBuilder sb = new StringBuilder();
-
-        boolean first = true;
-        for(Long offset : this.messageStartOffsets) {
-            if(!first) {
-                sb.append(Helper.SERIALIZATION_DELIMITER);
-            }
-            first = false;
-            sb.append(offset.toString());
-        }
-
-        return sb.toString();
+    @Override
+    public int getEra() throws IOException {
+        return this.era;
     }
 
-    private String getExtraAsString() throws IOException {
-        StringBuilder sb = new StringBuilder();
-
-        boolean first = true;
-        for(String key : this.extraData.keySet()) {
-            String value = this.extraData.get(key);
-            if(value == null) {
-                throw new IOException("null value not allowed in extra data");
-            };
-
-            if(first) { first = false; }
-            else { sb.append(Helper.SERIALIZATION_DELIMITER); }
+    /**
+     * Reads one message after another from message file. Message file is opened with first
+     * call of next() and closed after reading last message or by calling close().
+     * Iterator works on a snapshot: Messages added after its creation are not delivered.
+     */
+    private class ByteMessageIter implements Iterator<byte[]>, Closeable {
+        private final long[] offsets;
+        private final long contentLength;
+        private final int numberMessages;
+        private int nextIndex = 0;
+        private DataInputStream dis = null;
+
+        ByteMessageIter(long[] offsets, long contentLength) {
+            this.offsets = offsets;
+            this.contentLength = contentLength;
+            this.numberMessages = contentLength == 0 ? 0 : offsets.length + 1;
+        }
 
-            sb.append(key);
-            sb.append(Helper.SERIALIZATION_DELIMITER);
-            sb.append(value);
+        @Override
+        public boolean hasNext() {
+            return this.nextIndex < this.numberMessages;
         }
 
-        return sb.toString();
-    }
+        @Override
+        public byte[] next() {
+            if(!this.hasNext()) {
+                throw new NoSuchElementException("no more messages");
+            }
 
-    private void setExtraByString(String extraString) throws IOException {
-        if(extraString == null) return;
+            long start = this.nextIndex == 0 ? 0 : this.offsets[this.nextIndex - 1];
+            long end = this.nextIndex < this.offsets.length ? this.offsets[this.nextIndex] : this.contentLength;
+            long messageLength = end - start;
+            if(messageLength > Integer.MAX_VALUE || messageLength < 0) {
+                this.close();
+                throw new IllegalStateException("message longer than Integer.MAXVALUE or malformed offsets");
+            }
 
-        try {
-            HashMap<String, String> extra = new HashMap<>();
-            StringTokenizer st = new StringTokenizer(extraString, Helper.SERIALIZATION_DELIMITER);
-            while (st.hasMoreTokens()) {
-                String key = st.nextToken();
-                String value = st.nextToken();
+            byte[] message = new byte[(int) messageLength];
+            try {
+                if(this.dis == null) {
+                    this.dis = new DataInputStream(new BufferedInputStream(
+                            new FileInputStream(messageFile), StreamHelper.getBufferSize(this.contentLength)));
+                }
+                this.dis.readFully(message);
+            } catch (IOException e) {
+                this.close();
+                throw new IllegalStateException("cannot read message: " + e.getLocalizedMessage());
+            }
 
-                extra.put(key, value);
+            this.nextIndex++;
+            if(!this.hasNext()) {
+                this.close();
             }
 
-            this.extraData = extra;
+            return message;
         }
-        catch(RuntimeException e) {
-            // missing token or something
-            throw new IOException(e.getLocalizedMessage());
+
+        @Override
+        public void close() {
+            this.nextIndex = this.numberMessages;
+            if(this.dis != null) {
+                try {
+                    this.dis.close();
+                } catch (IOException e) {
+                    Log.writeLogErr(this, "cannot close message file: " + e.getLocalizedMessage());
+                }
+                this.dis = null;
+            }
         }
     }
 
-    private ArrayList<Long> messageOffsetString2List(String s) {
-        ArrayList<Long> longList = new ArrayList<>();
+    /**
+     * Messages as read only slices of mapped message file.
+     */
+    private class ByteBufferMessageIter implements Iterator<ByteBuffer> {
+        private final long[] offsets;
+        private final long contentLength;
+        private final int numberMessages;
+        private int nextIndex = 0;
+        private ByteBuffer content = null;
+
+        ByteBufferMessageIter(long[] offsets, long contentLength) {
+            this.offsets = offsets;
+            this.contentLength = contentLength;
+            this.numberMessages = contentLength == 0 ? 0 : offsets.length + 1;
+        }
 
-        if(s == null || s.length() == 0) return longList;
+        @Override
+        public boolean hasNext() {
+            return this.nextIndex < this.numberMessages;
+        }
 
-        StringTokenizer t = new StringTokenizer(s, Helper.SERIALIZATION_DELIMITER);
+        @Override
+        public ByteBuffer next() {
+            if(!this.hasNext()) {
+                throw new NoSuchElementException("no more messages");
+            }
 
-        while(t.hasMoreTokens()) {
-            Long offsetLong = Long.parseLong(t.nextToken());
-            longList.add(offsetLong);
-        }
+            try {
+                if(this.content == null) {
+                    this.content = getContentMap(this.contentLength).asReadOnlyBuffer();
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("cannot map message file: " + e.getLocalizedMessage());
+            }
 
-        return longList;
-    }
+            int start = this.nextIndex == 0 ? 0 : (int) this.offsets[this.nextIndex - 1];
+            int end = this.nextIndex < this.offsets.length ?
+                    (int) this.offsets[this.nextIndex] : (int) this.contentLength;
+            this.nextIndex++;
 
-    @Override
-    public int getNumberMessage() {
-        if(this.messageFile.length() == 0) return 0;
+            this.content.limit(end);
+            this.content.position(start);
+            ByteBuffer message = this.content.slice();
+            this.content.limit(this.content.capacity());
 
-        return this.messageStartOffsets.size() + 1;
+            return message;
+        }
     }
 
-    @Override
-    public int getEra() throws IOException {
-        return this.era;
-    }
+    private class MessageIter implements Iterator<CharSequence>, Closeable {
+        private final ByteMessageIter byteMessageIter;
 
-    private class MessageIter implements Iterator {
-        private final List<byte[]> byteMessages;
-        private int nextIndex;
-        private String nextString;
-        
-        
-        MessageIter(List<byte[]> byteMessages) throws FileNotFoundException {
-            this.byteMessages = byteMessages;
-            this.nextIndex = 0;
+        MessageIter(long[] offsets, long contentLength) {
+            this.byteMessageIter = new ByteMessageIter(offsets, contentLength);
         }
-        
+
         @Override
         public boolean hasNext() {
-            return this.byteMessages.size() > nextIndex;
+            return this.byteMessageIter.hasNext();
         }
 
         @Override
-        public String next() {
-            if(!this.hasNext()) {
-                throw new NoSuchElementException("no more messages");
-            }
+        public CharSequence next() {
+            return new String(this.byteMessageIter.next());
+        }
 
-            return new String(this.byteMessages.get(nextIndex++));
+        @Override
+        public void close() {
+            this.byteMessageIter.close();
         }
     }
 }
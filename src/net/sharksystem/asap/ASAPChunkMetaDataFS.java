@@ -0,0 +1,374 @@
+package net.sharksystem.asap;
+
+import net.sharksystem.asap.util.Helper;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Meta data of a chunk kept in file system.
+ *
+ * <pre>
+ * meta file: MAGIC | VERSION | snapshot | record*
+ * snapshot: URI | #extra (KEY VALUE)* | #recipients RECIPIENT* | #deliveredTo PEER* | #offsets OFFSET*
+ * record: TYPE | record specific data
+ * </pre>
+ *
+ * A snapshot contains the whole meta data set. Any later change is appended as a small record
+ * (a journal). Adding a message costs a few bytes - it does not depend on the number of messages
+ * already in that chunk.
+ *
+ * Meta files written by former versions (a sequence of UTF strings) are migrated when read.
+ *
+ * Objects are thread safe. A chunk object can be shared, e.g. by a chunk cache.
+ *
+ * @author thsc
+ */
+class ASAPChunkMetaDataFS extends ASAPJournalFile {
+    /** first two bytes would be read as length of a 65445 bytes uri in old meta file format */
+    private static final int MAGIC = 0xFFA54A31;
+    private static final byte VERSION = 1;
+
+    private static final byte OFFSET_RECORD = 1;
+    private static final byte DELIVERED_TO_RECORD = 2;
+    private static final byte PUT_EXTRA_RECORD = 3;
+    private static final byte REMOVE_EXTRA_RECORD = 4;
+    private static final byte ADD_RECIPIENT_RECORD = 5;
+    private static final byte REMOVE_RECIPIENT_RECORD = 6;
+    private static final byte SET_RECIPIENTS_RECORD = 7;
+    private static final byte OFFSETS_RECORD = 8;
+
+    private final String defaultUri;
+
+    private String uri;
+    private HashMap<String, String> extraData;
+    private Set<CharSequence> recipients;
+    private List<CharSequence> deliveredTo;
+    private ASAPOffsetIndex offsets;
+
+    ASAPChunkMetaDataFS(File metaFile, String defaultUri) {
+        super(metaFile, MAGIC, VERSION, "chunk meta data");
+        this.defaultUri = defaultUri;
+        this.clear();
+    }
+
+    @Override
+    protected void clear() {
+        this.uri = this.defaultUri;
+        this.extraData = new HashMap<>();
+        this.recipients = new HashSet<>();
+        this.deliveredTo = new ArrayList<>();
+        this.offsets = new ASAPOffsetIndex();
+    }
+
+    String getUri() { return this.uri; }
+
+    HashMap<String, String> getExtraData() { return this.extraData; }
+
+    Set<CharSequence> getRecipients() { return this.recipients; }
+
+    List<CharSequence> getDeliveredTo() { return this.deliveredTo; }
+
+    /**
+     * @return live index - only to be used while holding this object's lock
+     */
+    ASAPOffsetIndex getOffsets() { return this.offsets; }
+
+    /**
+     * @return copy of offset index - not changed by later messages
+     */
+    synchronized ASAPOffsetIndex getOffsetsCopy() { return new ASAPOffsetIndex(this.offsets.toArray()); }
+
+    synchronized long[] getOffsetArray() { return this.offsets.toArray(); }
+
+    synchronized int getNumberMessages(long contentLength) {
+        return this.offsets.getNumberMessages(contentLength);
+    }
+
+    synchronized long getMessageStart(int position) { return this.offsets.getMessageStart(position); }
+
+    synchronized long getMessageLength(int position, long contentLength) {
+        return this.offsets.getMessageLength(position, contentLength);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    //                                          changes                                           //
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    synchronized void addOffset(long offset) throws IOException {
+        this.refresh();
+        this.offsets.add(offset);
+
+        DataOutputStream dos = this.startRecord(OFFSET_RECORD);
+        dos.writeLong(offset);
+        this.appendRecord();
+    }
+
+    /**
+     * add a number of offsets with a single journal record
+     */
+    synchronized void addOffsets(long[] offsets) throws IOException {
+        if(offsets == null || offsets.length == 0) return;
+
+        this.refresh();
+        for(long offset : offsets) {
+            this.offsets.add(offset);
+        }
+
+        DataOutputStream dos = this.startRecord(OFFSETS_RECORD);
+        dos.writeInt(offsets.length);
+        for(long offset : offsets) {
+            dos.writeLong(offset);
+        }
+        this.appendRecord();
+    }
+
+    synchronized void addDeliveredTo(CharSequence peer) throws IOException {
+        this.refresh();
+        // chunks are sent more than once when they grow - remember peer once
+        if(this.deliveredTo.contains(peer.toString())) return;
+        this.deliveredTo.add(peer.toString());
+
+        DataOutputStream dos = this.startRecord(DELIVERED_TO_RECORD);
+        dos.writeUTF(peer.toString());
+        this.appendRecord();
+    }
+
+    synchronized void putExtra(String key, String value) throws IOException {
+        this.refresh();
+        this.extraData.put(key, value);
+
+        DataOutputStream dos = this.startRecord(PUT_EXTRA_RECORD);
+        dos.writeUTF(key);
+        dos.writeUTF(value);
+        this.appendRecord();
+    }
+
+    synchronized String removeExtra(String key) throws IOException {
+        this.refresh();
+        String removed = this.extraData.remove(key);
+
+        DataOutputStream dos = this.startRecord(REMOVE_EXTRA_RECORD);
+        dos.writeUTF(key);
+        this.appendRecord();
+
+        return removed;
+    }
+
+    synchronized void addRecipient(CharSequence recipient) throws IOException {
+        if(recipient == null) return;
+        this.refresh();
+        this.recipients.add(recipient);
+
+        DataOutputStream dos = this.startRecord(ADD_RECIPIENT_RECORD);
+        dos.writeUTF(recipient.toString());
+        this.appendRecord();
+    }
+
+    synchronized void removeRecipient(CharSequence recipient) throws IOException {
+        if(recipient == null) return;
+        this.refresh();
+        this.recipients.remove(recipient);
+
+        DataOutputStream dos = this.startRecord(REMOVE_RECIPIENT_RECORD);
+        dos.writeUTF(recipient.toString());
+        this.appendRecord();
+    }
+
+    synchronized void setRecipients(Collection<CharSequence> newRecipients) throws IOException {
+        this.refresh();
+        this.recipients = this.copyRecipients(newRecipients);
+
+        DataOutputStream dos = this.startRecord(SET_RECIPIENTS_RECORD);
+        this.writeCollection(this.recipients, dos);
+        this.appendRecord();
+    }
+
+    /**
+     * Replace channel describing meta data. Happens rarely (chunk set up) - file is re-written.
+     */
+    synchronized void setChannelMetaData(CharSequence uri, Collection<CharSequence> recipients,
+                            Map<String, String> extraData) throws IOException {
+        this.refresh();
+        this.uri = uri.toString();
+        this.recipients = this.copyRecipients(recipients);
+        this.extraData = new HashMap<>();
+        if(extraData != null) {
+            this.extraData.putAll(extraData);
+        }
+
+        this.compact();
+    }
+
+    private Set<CharSequence> copyRecipients(Collection<CharSequence> recipients) {
+        Set<CharSequence> recipientSet = new HashSet<>();
+        if(recipients != null) {
+            for(CharSequence recipient : recipients) {
+                // null is no recipient - it would not survive persistence anyway
+                if(recipient != null) recipientSet.add(recipient);
+            }
+        }
+        return recipientSet;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    //                                          journal                                           //
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    @Override
+    protected int getSnapshotSize() {
+        return this.offsets.size() + this.recipients.size() + this.deliveredTo.size() + this.extraData.size();
+    }
+
+    @Override
+    protected void writeSnapshot(DataOutputStream dos) throws IOException {
+        dos.writeUTF(this.uri);
+
+        dos.writeInt(this.extraData.size());
+        for(String key : this.extraData.keySet()) {
+            dos.writeUTF(key);
+            dos.writeUTF(this.extraData.get(key));
+        }
+
+        this.writeCollection(this.recipients, dos);
+        this.writeCollection(this.deliveredTo, dos);
+
+        dos.writeInt(this.offsets.size());
+        for(int i = 0; i < this.offsets.size(); i++) {
+            dos.writeLong(this.offsets.get(i));
+        }
+    }
+
+    private void writeCollection(Collection<CharSequence> collection, DataOutputStream dos) throws IOException {
+        dos.writeInt(collection.size());
+        for(CharSequence s : collection) {
+            dos.writeUTF(s.toString());
+        }
+    }
+
+    private List<CharSequence> readList(DataInputStream dis) throws IOException {
+        int number = dis.readInt();
+        List<CharSequence> list = new ArrayList<>();
+        for(int i = 0; i < number; i++) {
+            list.add(dis.readUTF());
+        }
+        return list;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    //                                          reading                                           //
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    @Override
+    protected void readSnapshot(DataInputStream dis) throws IOException {
+        this.uri = dis.readUTF();
+
+        int number = dis.readInt();
+        for(int i = 0; i < number; i++) {
+            String key = dis.readUTF();
+            this.extraData.put(key, dis.readUTF());
+        }
+
+        this.recipients = new HashSet<>(this.readList(dis));
+        this.deliveredTo = this.readList(dis);
+
+        number = dis.readInt();
+        this.offsets = new ASAPOffsetIndex(number);
+        for(int i = 0; i < number; i++) {
+            this.offsets.add(dis.readLong());
+        }
+    }
+
+    @Override
+    protected boolean replayRecord(int type, DataInputStream dis) throws IOException {
+        switch (type) {
+            case OFFSET_RECORD: this.offsets.add(dis.readLong()); break;
+            case OFFSETS_RECORD:
+                long[] recordOffsets = new long[dis.readInt()];
+                for(int i = 0; i < recordOffsets.length; i++) {
+                    recordOffsets[i] = dis.readLong();
+                }
+                for(long offset : recordOffsets) {
+                    this.offsets.add(offset);
+                }
+                break;
+            case DELIVERED_TO_RECORD:
+                String peer = dis.readUTF();
+                if(!this.deliveredTo.contains(peer)) this.deliveredTo.add(peer);
+                break;
+            case PUT_EXTRA_RECORD:
+                String key = dis.readUTF();
+                this.extraData.put(key, dis.readUTF());
+                break;
+            case REMOVE_EXTRA_RECORD: this.extraData.remove(dis.readUTF()); break;
+            case ADD_RECIPIENT_RECORD: this.recipients.add(dis.readUTF()); break;
+            case REMOVE_RECIPIENT_RECORD: this.recipients.remove(dis.readUTF()); break;
+            case SET_RECIPIENTS_RECORD: this.recipients = new HashSet<>(this.readList(dis)); break;
+            default: return false;
+        }
+        return true;
+    }
+
+    /**
+     * written by a former version - a sequence of UTF strings
+     */
+    @Override
+    protected boolean readFormerFormat(DataInputStream dis) throws IOException {
+        try {
+            this.uri = dis.readUTF();
+            this.setExtraByString(dis.readUTF());
+        }
+        catch(EOFException eof) {
+            // file empty
+            return false;
+        }
+
+        try {
+            this.recipients = Helper.string2CharSequenceSet(dis.readUTF());
+            this.deliveredTo = Helper.string2CharSequenceList(dis.readUTF());
+
+            // finally read offset list
+            this.offsets = this.messageOffsetString2Index(dis.readUTF());
+        }
+        catch(IOException ioe) {
+            // no more data - ok
+        }
+
+        return true;
+    }
+
+    private void setExtraByString(String extraString) throws IOException {
+        if(extraString == null) return;
+
+        try {
+            HashMap<String, String> extra = new HashMap<>();
+            StringTokenizer st = new StringTokenizer(extraString, Helper.SERIALIZATION_DELIMITER);
+            while (st.hasMoreTokens()) {
+                String key = st.nextToken();
+                String value = st.nextToken();
+
+                extra.put(key, value);
+            }
+
+            this.extraData = extra;
+        }
+        catch(RuntimeException e) {
+            // missing token or something
+            throw new IOException(e.getLocalizedMessage());
+        }
+    }
+
+    private ASAPOffsetIndex messageOffsetString2Index(String s) {
+        ASAPOffsetIndex index = new ASAPOffsetIndex();
+
+        if(s == null || s.length() == 0) return index;
+
+        StringTokenizer t = new StringTokenizer(s, Helper.SERIALIZATION_DELIMITER);
+
+        while(t.hasMoreTokens()) {
+            index.add(Long.parseLong(t.nextToken()));
+        }
+
+        return index;
+    }
+}
@@ -24,7 +24,43 @@ public interface ASAPChunkStorage {
 
     List<ASAPChunk> getChunks(int era) throws IOException;
 
+    /**
+     * A channel has no chunk in eras without changes of that channel.
+     * @return newest chunk of that channel in that era or before - null if channel has no chunk at all
+     */
+    ASAPChunk getLatestChunk(CharSequence uri, int era) throws IOException;
+
+    /**
+     * @return uri of each channel with a chunk in any era
+     */
+    List<CharSequence> getChannelURIs() throws IOException;
+
+    /**
+     * @return eras with chunks - in chronological order
+     */
+    List<Integer> getEras(int fromEra, int toEra) throws IOException;
+
+    /**
+     * @return uri of each channel with a chunk in that era
+     */
+    List<CharSequence> getChannelURIs(int era) throws IOException;
+
+    /**
+     * @return length of messages in that chunk - chunk is not read. 0 if there is no such chunk
+     */
+    long getChunkLength(CharSequence uri, int era) throws IOException;
+
     void dropChunks(int era) throws IOException;
+
+    /**
+     * @return number of chunk requests served from memory
+     */
+    long getChunkCacheHits();
+
+    /**
+     * @return number of chunk requests which required (re-)reading chunk meta data
+     */
+    long getChunkCacheMisses();
     
     /**
      * 
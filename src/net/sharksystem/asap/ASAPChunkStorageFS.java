@@ -8,7 +8,10 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import static net.sharksystem.asap.ASAPChunkFS.META_DATA_EXTENSION;
 
@@ -17,13 +20,48 @@ import static net.sharksystem.asap.ASAPChunkFS.META_DATA_EXTENSION;
  * @author thsc
  */
 class ASAPChunkStorageFS implements ASAPChunkStorage {
+    public static final int DEFAULT_MAX_CACHED_CHUNKS = 128;
 
     private final String rootDirectory;
     private final String format;
 
+    /** chunk objects by file trunk name - least recently used first */
+    private final LinkedHashMap<String, ASAPChunkFS> chunkCache;
+    private long cacheHits = 0;
+    private long cacheMisses = 0;
+
+    private final ASAPEraCatalogueFS eraCatalogue;
+    private DeliveredChunkListener deliveredChunkListener = null;
+
+    /**
+     * Told before a chunk grows which was already delivered to peers - they have got that chunk up to
+     * its former length.
+     */
+    interface DeliveredChunkListener {
+        void deliveredChunkGrows(int era, String uri, List<CharSequence> deliveredTo, long formerLength)
+                throws IOException;
+    }
+
     ASAPChunkStorageFS(String rootDirectory, String format) {
+        this(rootDirectory, format, DEFAULT_MAX_CACHED_CHUNKS);
+    }
+
+    ASAPChunkStorageFS(String rootDirectory, String format, final int maxCachedChunks) {
         this.rootDirectory = rootDirectory;
         this.format = format;
+        this.eraCatalogue = new ASAPEraCatalogueFS(this);
+
+        this.chunkCache = new LinkedHashMap<String, ASAPChunkFS>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ASAPChunkFS> eldest) {
+                if(this.size() > maxCachedChunks) {
+                    // chunk object can still be used by others - it re-opens files if required
+                    eldest.getValue().close();
+                    return true;
+                }
+                return false;
+            }
+        };
     }
 
     public String getFormat() {
@@ -36,19 +74,132 @@ class ASAPChunkStorageFS implements ASAPChunkStorage {
 
     @Override
     public ASAPChunk getChunk(CharSequence uriTarget, int era) throws IOException {
-        return new ASAPChunkFS(this, uriTarget.toString(), era);
+        String trunkName = this.getChunkFileTrunkname(era, uriTarget.toString());
+
+        ASAPChunkFS chunk;
+        synchronized(this.chunkCache) {
+            chunk = this.getCachedChunk(trunkName);
+            if(chunk != null) return chunk;
+
+            chunk = new ASAPChunkFS(this, uriTarget.toString(), era);
+            this.chunkCache.put(trunkName, chunk);
+        }
+
+        // not in cache - could be a new one. Catalogue ignores known channels.
+        this.eraCatalogue.addChannel(era, uriTarget.toString());
+        return chunk;
+    }
+
+    /**
+     * Chunk objects are kept in memory. Meta data are written through and re-read if
+     * changed by others. Chunk objects are dropped if their files were removed.
+     * @return cached chunk or null
+     */
+    private ASAPChunkFS getCachedChunk(String trunkName) {
+        ASAPChunkFS chunk = this.chunkCache.get(trunkName);
+        if(chunk != null && chunk.isValid()) {
+            this.cacheHits++;
+            return chunk;
+        }
+
+        this.cacheMisses++;
+        if(chunk != null) {
+            this.chunkCache.remove(trunkName);
+            chunk.close();
+        }
+        return null;
+    }
+
+    private void removeCachedChunks(int era) {
+        String eraPath = this.getPath(era) + "/";
+        synchronized(this.chunkCache) {
+            Iterator<Map.Entry<String, ASAPChunkFS>> entryIter = this.chunkCache.entrySet().iterator();
+            while(entryIter.hasNext()) {
+                Map.Entry<String, ASAPChunkFS> entry = entryIter.next();
+                if(entry.getKey().startsWith(eraPath)) {
+                    entry.getValue().close();
+                    entryIter.remove();
+                }
+            }
+        }
+    }
+
+    @Override
+    public long getChunkCacheHits() {
+        synchronized(this.chunkCache) {
+            return this.cacheHits;
+        }
+    }
+
+    @Override
+    public long getChunkCacheMisses() {
+        synchronized(this.chunkCache) {
+            return this.cacheMisses;
+        }
+    }
+
+    /**
+     * release file handles of cached chunks and era catalogue. Storage remains usable - files are
+     * re-opened if required.
+     */
+    void close() {
+        synchronized(this.chunkCache) {
+            for(ASAPChunkFS chunk : this.chunkCache.values()) {
+                chunk.close();
+            }
+        }
+        this.eraCatalogue.close();
     }
 
     @Override
     public boolean existsChunk(CharSequence uri, int era) throws IOException {
-        String fullContentFileName = this.getChunkContentFilename(era, uri);
+        return this.eraCatalogue.containsChannel(era, uri.toString());
+    }
+
+    @Override
+    public List<Integer> getEras(int fromEra, int toEra) throws IOException {
+        return this.eraCatalogue.getEras(fromEra, toEra);
+    }
+
+    @Override
+    public List<CharSequence> getChannelURIs(int era) throws IOException {
+        return new ArrayList<CharSequence>(this.eraCatalogue.getChannels(era));
+    }
+
+    @Override
+    public long getChunkLength(CharSequence uri, int era) throws IOException {
+        ASAPEraCatalogueFS.ChannelEntry entry = this.eraCatalogue.getChannelEntry(era, uri.toString());
+        return entry == null ? 0 : entry.getLength();
+    }
+
+    /**
+     * @return number of messages and length of that chunk - null if there is no such chunk
+     */
+    ASAPEraCatalogueFS.ChannelEntry getChunkEntry(CharSequence uri, int era) throws IOException {
+        return this.eraCatalogue.getChannelEntry(era, uri.toString());
+    }
+
+    void setDeliveredChunkListener(DeliveredChunkListener listener) {
+        this.deliveredChunkListener = listener;
+    }
 
-        boolean exists = (new File(fullContentFileName).exists());
-        return exists;
+    // called by chunks
+    void deliveredChunkGrows(int era, String uri, List<CharSequence> deliveredTo, long formerLength)
+            throws IOException {
+
+        if(this.deliveredChunkListener != null) {
+            this.deliveredChunkListener.deliveredChunkGrows(era, uri, deliveredTo, formerLength);
+        }
     }
 
-    String getChunkContentFilename(int era, CharSequence uri) {
-        return this.getChunkFileTrunkname(era, uri.toString()) + "." +  META_DATA_EXTENSION;
+    // called by chunks
+    void messagesAdded(int era, String uri, int number, long length) throws IOException {
+        this.eraCatalogue.addMessages(era, uri, number, length);
+    }
+
+    // called by chunks
+    void chunkDropped(int era, String uri) throws IOException {
+        this.eraCatalogue.dropChannel(era, uri);
     }
 
     String getChunkFileTrunkname(int era, String uri) {
@@ -90,7 +241,31 @@ class ASAPChunkStorageFS implements ASAPChunkStorage {
     @Override
     public List<ASAPChunk> getChunks(int era) throws IOException {
         List<ASAPChunk> chunkList = new ArrayList<>();
-        
+        for(String uri : this.eraCatalogue.getChannels(era)) {
+            chunkList.add(this.getChunk(uri, era));
+        }
+
+        return chunkList;
+    }
+
+    @Override
+    public ASAPChunk getLatestChunk(CharSequence uri, int era) throws IOException {
+        Integer latestEra = this.eraCatalogue.getLatestEra(uri.toString(), era);
+        return latestEra == null ? null : this.getChunk(uri, latestEra);
+    }
+
+    @Override
+    public List<CharSequence> getChannelURIs() throws IOException {
+        return new ArrayList<CharSequence>(this.eraCatalogue.getChannels());
+    }
+
+    /**
+     * Chunks found in an era folder - not taken from or put into chunk cache. Close them after use.
+     * Catalogue uses it - no one else should.
+     */
+    List<ASAPChunkFS> readChunksFromFolder(int era) throws IOException {
+        List<ASAPChunkFS> chunkList = new ArrayList<>();
+
         File dir = new File(this.getPath(era));
         
         // can be null!
@@ -109,8 +284,7 @@ class ASAPChunkStorageFS implements ASAPChunkStorage {
                 int index = name.lastIndexOf('.');
                 if(index != -1) {
                     String chunkName = name.substring(0, index);
-                    String fName = this.getFileNameByUri(era, chunkName);
-                    chunkList.add(new ASAPChunkFS(this, fName));
+                    chunkList.add(new ASAPChunkFS(this, era, this.getFileNameByUri(era, chunkName)));
                 }
             }
         }
@@ -123,7 +297,9 @@ class ASAPChunkStorageFS implements ASAPChunkStorage {
         // here comes a Java 6 compatible version - fits to android SDK 23
         String eraPathName = this.rootDirectory + "/" + Integer.toString(era);
 
+        this.removeCachedChunks(era);
         ASAPEngineFS.removeFolder(eraPathName);
+        this.eraCatalogue.dropEra(era);
     }
 
     @Override
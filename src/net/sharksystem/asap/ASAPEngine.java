@@ -6,10 +6,14 @@ import net.sharksystem.asap.management.ASAPManagementStorageImpl;
 import net.sharksystem.asap.protocol.*;
 import net.sharksystem.asap.util.Log;
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * That ASAPEngine manages exchange of stored messages with peers.
@@ -26,18 +30,27 @@ public abstract class ASAPEngine implements ASAPStorage, ASAPProtocolEngine, ASA
     protected String owner = ANONYMOUS_OWNER;
     protected String format = ASAP_1_0.ANY_FORMAT.toString();
 
-    protected int era = 0;
-    protected int oldestEra = 0;
-    protected HashMap<String, Integer> lastSeen = new HashMap<>();
+    protected volatile int era = 0;
+    protected volatile int oldestEra = 0;
+    protected Map<String, Integer> lastSeen = new ConcurrentHashMap<>();
     protected ASAPMemento memento = null;
+    protected ASAPSyncIndex syncIndex = new ASAPSyncIndex(null);
     
     /* private */ final private ASAPChunkStorage chunkStorage;
     protected boolean dropDeliveredChunks = false;
 
     private ASAPOnlineMessageSender asapOnlineMessageSender;
-    protected boolean contentChanged = false;
+    protected volatile boolean contentChanged = false;
     protected boolean sendReceivedChunks = false;
 
+    /*
+    Writers (messages, recipients, extra data) share the read lock - new era takes the write lock.
+    Writers on the same channel are serialized by a channel lock. Channels are spread over a few locks.
+     */
+    private static final int CHANNEL_LOCK_STRIPES = 16;
+    private final ReentrantReadWriteLock eraLock = new ReentrantReadWriteLock();
+    private final Object[] channelLocks = new Object[CHANNEL_LOCK_STRIPES];
+
     protected ASAPEngine(ASAPChunkStorage chunkStorage, CharSequence chunkContentFormat)
             throws ASAPException, IOException {
         
@@ -47,6 +60,14 @@ public abstract class ASAPEngine implements ASAPStorage, ASAPProtocolEngine, ASA
         } else {
             throw new ASAPException("format expected. like application/x-sn2-makan");
         }
+
+        for(int i = 0; i < CHANNEL_LOCK_STRIPES; i++) {
+            this.channelLocks[i] = new Object();
+        }
+    }
+
+    private Object getChannelLock(CharSequence uri) {
+        return this.channelLocks[(uri.toString().hashCode() & 0x7FFFFFFF) % CHANNEL_LOCK_STRIPES];
     }
 
     private void saveStatus() throws IOException {
@@ -78,17 +99,64 @@ public abstract class ASAPEngine implements ASAPStorage, ASAPProtocolEngine, ASA
 
     @Override
     public void putExtra(CharSequence uri, String key, String value) throws IOException {
-        this.chunkStorage.getChunk(uri, this.era).putExtra(key, value);
+        this.eraLock.readLock().lock();
+        try {
+            synchronized(this.getChannelLock(uri)) {
+                this.getChunkForWriting(uri, this.era).putExtra(key, value);
+            }
+        }
+        finally {
+            this.eraLock.readLock().unlock();
+        }
     }
 
     @Override
     public CharSequence removeExtra(CharSequence uri, String key) throws IOException {
-        return this.chunkStorage.getChunk(uri, this.era).removeExtra(key);
+        this.eraLock.readLock().lock();
+        try {
+            synchronized(this.getChannelLock(uri)) {
+                return this.getChunkForWriting(uri, this.era).removeExtra(key);
+            }
+        }
+        finally {
+            this.eraLock.readLock().unlock();
+        }
     }
 
     @Override
     public CharSequence getExtra(CharSequence uri, String key) throws IOException {
-        return this.chunkStorage.getChunk(uri, this.era).getExtra(key);
+        ASAPChunk chunk = this.getLatestChunk(uri);
+        return chunk == null ? null : chunk.getExtra(key);
+    }
+
+    HashMap<String, String> getExtraData(CharSequence uri) throws IOException {
+        ASAPChunk chunk = this.getLatestChunk(uri);
+        return chunk == null ? new HashMap<String, String>() : chunk.getExtraData();
+    }
+
+    /**
+     * Chunks are created lazily - a new era has no chunks. A channel gets a chunk with its first change
+     * in an era. Channel meta data are copied from its newest chunk. Call with channel lock.
+     */
+    private ASAPChunk getChunkForWriting(CharSequence uri, int era) throws IOException {
+        if(this.chunkStorage.existsChunk(uri, era)) {
+            return this.chunkStorage.getChunk(uri, era);
+        }
+
+        ASAPChunk latestChunk = this.chunkStorage.getLatestChunk(uri, era);
+        ASAPChunk chunk = this.chunkStorage.getChunk(uri, era);
+        if(latestChunk != null) {
+            chunk.clone(latestChunk);
+        }
+
+        return chunk;
+    }
+
+    /**
+     * @return chunk with current channel meta data - null if there is no such channel
+     */
+    private ASAPChunk getLatestChunk(CharSequence uri) throws IOException {
+        return this.chunkStorage.getLatestChunk(uri, this.era);
     }
 
     @Override
@@ -148,19 +216,44 @@ public abstract class ASAPEngine implements ASAPStorage, ASAPProtocolEngine, ASA
     }
 
     public void addRecipient(CharSequence urlTarget, CharSequence recipient) throws IOException {
-        this.chunkStorage.getChunk(urlTarget, this.era).addRecipient(recipient);
+        this.eraLock.readLock().lock();
+        try {
+            synchronized(this.getChannelLock(urlTarget)) {
+                this.getChunkForWriting(urlTarget, this.era).addRecipient(recipient);
+            }
+        }
+        finally {
+            this.eraLock.readLock().unlock();
+        }
     }
 
     public void setRecipients(CharSequence urlTarget, Collection<CharSequence> recipients) throws IOException {
-        this.chunkStorage.getChunk(urlTarget, this.era).setRecipients(recipients);
+        this.eraLock.readLock().lock();
+        try {
+            synchronized(this.getChannelLock(urlTarget)) {
+                this.getChunkForWriting(urlTarget, this.era).setRecipients(recipients);
+            }
+        }
+        finally {
+            this.eraLock.readLock().unlock();
+        }
     }
 
     public Set<CharSequence> getRecipients(CharSequence urlTarget) throws IOException {
-        return this.chunkStorage.getChunk(urlTarget, this.era).getRecipients();
+        ASAPChunk chunk = this.getLatestChunk(urlTarget);
+        return chunk == null ? new HashSet<CharSequence>() : chunk.getRecipients();
     }
 
     public void removeRecipient(CharSequence urlTarget, CharSequence recipient) throws IOException {
-        this.chunkStorage.getChunk(urlTarget, this.era).removeRecipient(recipient);
+        this.eraLock.readLock().lock();
+        try {
+            synchronized(this.getChannelLock(urlTarget)) {
+                this.getChunkForWriting(urlTarget, this.era).removeRecipient(recipient);
+            }
+        }
+        finally {
+            this.eraLock.readLock().unlock();
+        }
     }
 
     @Override
@@ -171,13 +264,24 @@ public abstract class ASAPEngine implements ASAPStorage, ASAPProtocolEngine, ASA
     @Override
     public void add(CharSequence urlTarget, byte[] messageAsBytes) throws IOException {
 //        Log.writeLog(this, "reached add(uri, byte[] message");
-        ASAPChunk chunk = this.chunkStorage.getChunk(urlTarget, this.era);
+        ASAPChunk chunk;
+        int addEra;
+        this.eraLock.readLock().lock();
+        try {
+            addEra = this.era;
+            synchronized(this.getChannelLock(urlTarget)) {
+                chunk = this.getChunkForWriting(urlTarget, addEra);
 
-//        Log.writeLog(this, "call chunk.addMessage()");
-        chunk.addMessage(messageAsBytes);
+//              Log.writeLog(this, "call chunk.addMessage()");
+                chunk.addMessage(messageAsBytes);
+            }
 
-        // remember - something changed in that era
-        this.contentChanged();
+            // remember - something changed in that era
+            this.contentChanged();
+        }
+        finally {
+            this.eraLock.readLock().unlock();
+        }
 
 //        Log.writeLog(this, "online?");
         if(this.asapOnlineMessageSender != null) {
@@ -185,7 +289,7 @@ public abstract class ASAPEngine implements ASAPStorage, ASAPProtocolEngine, ASA
                 Log.writeLog(this, "send online message...");
                 this.asapOnlineMessageSender.sendASAPAssimilateMessage(
                         this.format, urlTarget, chunk.getRecipients(),
-                        messageAsBytes, this.era);
+                        messageAsBytes, addEra);
             } catch (IOException | ASAPException e) {
                 StringBuilder sb = Log.startLog(this);
                 sb.append("message written to local storage - but could not write to open asap connection: ");
@@ -198,20 +302,75 @@ public abstract class ASAPEngine implements ASAPStorage, ASAPProtocolEngine, ASA
         }
     }
 
-    private void contentChanged() throws IOException {
-        this.contentChanged = true;
-        this.saveStatus();
-    }
+    @Override
+    public void addAll(CharSequence urlTarget, Iterable<byte[]> messages) throws IOException {
+        // iterable could be read only once
+        List<byte[]> messageList = new ArrayList<>();
+        for(byte[] message : messages) {
+            messageList.add(message);
+        }
+        if(messageList.isEmpty()) return;
 
-    public List<CharSequence> getChannelURIs() throws IOException {
-        List<CharSequence> uriList = new ArrayList<>();
+        ASAPChunk chunk;
+        int addEra;
+        this.eraLock.readLock().lock();
+        try {
+            addEra = this.era;
+            synchronized(this.getChannelLock(urlTarget)) {
+                chunk = this.getChunkForWriting(urlTarget, addEra);
+                chunk.addMessages(messageList);
+            }
+
+            // remember - something changed in that era
+            this.contentChanged();
+        }
+        finally {
+            this.eraLock.readLock().unlock();
+        }
+
+        if(this.asapOnlineMessageSender != null) {
+            // all messages in one pdu
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            long[] offsets = new long[messageList.size() - 1];
+            int i = 0;
+            for(byte[] message : messageList) {
+                if(i > 0) offsets[i-1] = baos.size();
+                baos.write(message);
+                i++;
+            }
 
-        List<ASAPChunk> chunks = this.chunkStorage.getChunks(this.era);
-        for(ASAPChunk chunk : chunks) {
-            uriList.add(chunk.getUri());
+            try {
+                Log.writeLog(this, "send online messages...");
+                this.asapOnlineMessageSender.sendASAPAssimilateMessage(
+                        this.format, urlTarget, chunk.getRecipients(),
+                        baos.toByteArray(), offsets, addEra);
+            } catch (IOException | ASAPException e) {
+                StringBuilder sb = Log.startLog(this);
+                sb.append("messages written to local storage - but could not write to open asap connection: ");
+                sb.append(e.getLocalizedMessage());
+                System.err.println(sb.toString());
+            }
+            Log.writeLog(this, "... done sending online messages");
         }
+    }
 
-        return uriList;
+    private void contentChanged() throws IOException {
+        // write status only if flag changes - not with each new message
+        if(!this.contentChanged) {
+            // new era must not reset flag between setting and saving
+            this.eraLock.readLock().lock();
+            try {
+                this.contentChanged = true;
+                this.saveStatus();
+            }
+            finally {
+                this.eraLock.readLock().unlock();
+            }
+        }
+    }
+
+    public List<CharSequence> getChannelURIs() throws IOException {
+        return this.chunkStorage.getChannelURIs();
     }
 
     @Override
@@ -229,18 +388,16 @@ public abstract class ASAPEngine implements ASAPStorage, ASAPProtocolEngine, ASA
 
     @Override
     public boolean channelExists(CharSequence uri) throws IOException {
-        return this.chunkStorage.existsChunk(uri, this.getEra());
+        return this.getLatestChunk(uri) != null;
     }
 
     public void removeChannel(CharSequence uri) throws IOException {
-        int currentEra;
-        int nextEra = this.getOldestEra();
-        do {
-            currentEra = nextEra;
-            ASAPChunk chunk = this.chunkStorage.getChunk(uri, currentEra);
+        // drop chunks of that channel - newest first
+        ASAPChunk chunk;
+        while((chunk = this.getLatestChunk(uri)) != null) {
             chunk.drop();
-            nextEra = ASAP.nextEra(currentEra);
-        } while(currentEra != this.getEra());
+            this.syncIndex.chunkDropped(this.owner, chunk.getEra(), chunk.getUri());
+        }
     }
 
     public ASAPMessages getChunkChain(int uriPosition) throws IOException, ASAPException {
@@ -275,7 +432,7 @@ public abstract class ASAPEngine implements ASAPStorage, ASAPProtocolEngine, ASA
     //                       ProtocolEngine                             //
     //////////////////////////////////////////////////////////////////////
     
-    List<String> activePeers = new ArrayList<>();
+    final Set<String> activePeers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
     
     private String getLogStart() {
         StringBuilder b = new StringBuilder();
@@ -374,12 +531,13 @@ public abstract class ASAPEngine implements ASAPStorage, ASAPProtocolEngine, ASA
 
         boolean changed = false;
 
-        try {
-            // read URI
-            String uri = asapAssimiliationPDU.getChannelUri();
+        // read URI
+        String uri = asapAssimiliationPDU.getChannelUri();
+        boolean receiving = false;
 
+        try {
             // get local target for data to come
-            ASAPChunk localChunk = null;
+            boolean localChannel = false;
 
             if(!incomingSenderStorage.existsChunk(uri, eraSender)) {
                 //<<<<<<<<<<<<<<<<<<debug
@@ -390,19 +548,21 @@ public abstract class ASAPEngine implements ASAPStorage, ASAPProtocolEngine, ASA
                 System.out.println(b.toString());
                 //>>>>>>>>>>>>>>>>>>>debug
 
-                // is there a local chunk - to clone recipients from?
-                if(this.channelExists(uri)) {
-                    localChunk = this.getStorage().getChunk(uri, this.getEra());
-                }
+                // is there a local channel - to clone recipients from?
+                localChannel = this.channelExists(uri);
             }
 
             ASAPChunk incomingChunk = incomingSenderStorage.getChunk(uri, eraSender);
-            if(localChunk != null) {
+            if(localChannel) {
                 System.out.println(this.getLogStart() + "copy local meta data into newly created incoming chunk");
                 incomingChunk.copyMetaData(this.getChannel(uri));
             }
 
-            List<Integer> messageOffsets = asapAssimiliationPDU.getMessageOffsets();
+            // chunk grows - sync index must not forget what peers have got of it meanwhile
+            this.syncIndex.startReceiving(sender, eraSender, uri);
+            receiving = true;
+
+            long[] messageOffsets = asapAssimiliationPDU.getMessageOffsetArray();
 
             // iterate messages and stream into chunk
             InputStream protocolInputStream = asapAssimiliationPDU.getInputStream();
@@ -437,6 +597,9 @@ public abstract class ASAPEngine implements ASAPStorage, ASAPProtocolEngine, ASA
             incomingChunk.addMessage(protocolInputStream, asapAssimiliationPDU.getLength() - offset);
             if(!changed) { changed = true; this.contentChanged();}
 
+            // got anything sent - an earlier interruption is healed
+            this.syncIndex.setComplete(sender, eraSender, uri);
+
             // read all messages
             if(listener != null) {
                 //<<<<<<<<<<<<<<<<<<debug
@@ -470,13 +633,24 @@ public abstract class ASAPEngine implements ASAPStorage, ASAPProtocolEngine, ASA
             b.append("Exception (give up, keep streams untouched): ");
             b.append(e.getLocalizedMessage());
             System.out.println(b.toString());
+
+            // chunk ends with last complete message - tell sender next time what we got
+            if(sender != null && uri != null) this.syncIndex.setIncomplete(sender, eraSender, uri);
             throw e;
         }
+        finally {
+            if(receiving) this.syncIndex.stopReceiving(sender, eraSender, uri);
+        }
     }
 
     public void handleASAPInterest(ASAP_Interest_PDU_1_0 asapInterest, ASAP_1_0 protocol, OutputStream os)
             throws ASAPException, IOException {
 
+        if(ASAPResumeReport.isResumeReport(asapInterest)) {
+            this.handleResumeReport(ASAPResumeReport.fromPDU(asapInterest), asapInterest.getPeer(), protocol, os);
+            return;
+        }
+
         // get remote peer
         String peer = asapInterest.getPeer();
 
@@ -500,61 +674,224 @@ public abstract class ASAPEngine implements ASAPStorage, ASAPProtocolEngine, ASA
             System.out.println(this.getLogStart() + "permission ok, process interest");
         }
 
+        try {
+            this.sendChunksToPeer(peer, ASAPSubscription.fromInterest(asapInterest), protocol, os);
+        }
+        finally {
+            // conversation is over - next one can come
+            this.activePeers.remove(peer);
+        }
+    }
+
+    /**
+     * Remote peer tells what it holds of a chunk whose transfer was interrupted. That is the truth - even if
+     * we believed it got more. Missing suffix is sent right away.
+     */
+    private void handleResumeReport(ASAPResumeReport report, String peer, ASAP_1_0 protocol, OutputStream os)
+            throws IOException, ASAPException {
+
+        //<<<<<<<<<<<<<<<<<<debug
+        StringBuilder b = new StringBuilder();
+        b.append(this.getLogStart());
+        b.append("handle resume report from ");
+        b.append(peer);
+        b.append(" | ");
+        b.append(report);
+        System.out.println(b.toString());
+        //>>>>>>>>>>>>>>>>>>>debug
+
+        String sender = report.getSender();
+        String uri = report.getUri();
+        int era = report.getEra();
+
+        ASAPChunkStorage storage;
+        if(sender.equals(this.owner)) {
+            if(era == this.era) {
+                System.out.println(this.getLogStart() + "resume report ignored: current era is not synchronized yet");
+                return;
+            }
+            storage = this.chunkStorage;
+        } else if(this.isSendReceivedChunks() && this.getSender().contains(sender)) {
+            storage = this.getIncomingChunkStorage(sender);
+        } else {
+            System.out.println(this.getLogStart() + "resume report ignored: we do not send chunks of " + sender);
+            return;
+        }
+
+        if(!storage.existsChunk(uri, era)) {
+            System.out.println(this.getLogStart() + "resume report ignored: no such chunk");
+            return;
+        }
+
+        ASAPChunk chunk = storage.getChunk(uri, era);
+        long length = storage.getChunkLength(uri, era);
+        if(!isMessageBorder(chunk, length, report.getLength(), report.getNumberMessages())) {
+            // remote chunk is no prefix of ours - better send nothing than garbage
+            Log.writeLogErr(this, "resume report ignored: reported length is no message border: " + report);
+            return;
+        }
+
+        if(!this.permission2ProceedConversation(peer)) {
+            System.out.println(this.getLogStart() + "resume report ignored: conversation with peer is running");
+            return;
+        }
+
+        try {
+            this.syncIndex.setHandledLength(peer, sender, era, uri, report.getLength());
+            this.sendChunk(sender, peer, storage, protocol, uri, era, os);
+
+            if(storage == this.chunkStorage && this.isSynchronized(peer, era)) {
+                // era was synchronized before - last seen tells the rest
+                this.syncIndex.eraCompleted(peer, this.owner, era);
+            }
+        }
+        finally {
+            this.activePeers.remove(peer);
+        }
+    }
+
+    /**
+     * @return true if that own era was already synchronized with that peer
+     */
+    private boolean isSynchronized(String peer, int era) throws IOException {
+        int workingEra = this.getEraStartSync(peer);
+        if(workingEra == this.era) return true;
+
+        return !this.chunkStorage.getEras(workingEra, this.getPreviousEra(this.era)).contains(era);
+    }
+
+    /**
+     * @return true if our chunk has a message that ends at length
+     */
+    private static boolean isMessageBorder(ASAPChunk chunk, long chunkLength, long length, int numberMessages) {
+        if(numberMessages == 0) return length == 0;
+
+        // offsets are starts of messages - except first one
+        long[] offsets = chunk.getOffsetIndex().toArray();
+        if(numberMessages <= offsets.length) return offsets[numberMessages - 1] == length;
+
+        return numberMessages == offsets.length + 1 && length == chunkLength;
+    }
+
+    /**
+     * @return what we hold of received chunks whose transfer was interrupted
+     */
+    List<ASAPResumeReport> getResumeReports() throws IOException {
+        List<ASAPResumeReport> reports = new ArrayList<>();
+
+        for(ASAPSyncIndex.ChunkKey incomplete : this.syncIndex.getIncompleteChunks()) {
+            ASAPChunkStorage incomingStorage = this.getIncomingChunkStorage(incomplete.getSender());
+            long length = 0;
+            int numberMessages = 0;
+            if(incomingStorage.existsChunk(incomplete.getUri(), incomplete.getEra())) {
+                ASAPChunk chunk = incomingStorage.getChunk(incomplete.getUri(), incomplete.getEra());
+                length = incomingStorage.getChunkLength(incomplete.getUri(), incomplete.getEra());
+                numberMessages = chunk.getNumberMessage();
+            }
+
+            reports.add(new ASAPResumeReport(incomplete.getSender(), this.format, incomplete.getUri(),
+                    incomplete.getEra(), length, numberMessages));
+        }
+
+        return reports;
+    }
+
+    /**
+     * Send chunks matching that subscription. Only a blanket subscription moves last seen era forward -
+     * peer has got anything of an era in that case. Sync index remembers up to which era a scoped
+     * subscription was served - own eras are walked once for it. Sync index tells what is sent of
+     * any other chunk.
+     */
+    private void sendChunksToPeer(String peer, ASAPSubscription subscription, ASAP_1_0 protocol,
+                                  OutputStream os) throws ASAPException, IOException {
+
+        System.out.println(this.getLogStart() + "subscription: " + subscription);
+
+        // era can change meanwhile - work with current one
+        int currentEra = this.era;
+
         // era we are about to transmit
         int workingEra = this.getEraStartSync(peer);
-        System.out.println(this.getLogStart() + "last_seen: " + workingEra + " | era: " + this.era);
+        if(!subscription.isBlanket()) {
+            // set after last blanket sync - is not behind last seen era
+            Integer subscriptionEra = this.syncIndex.getSubscriptionEra(peer, subscription);
+            if(subscriptionEra != null) workingEra = subscriptionEra;
+        }
+        System.out.println(this.getLogStart() + "last_seen: " + workingEra + " | era: " + currentEra);
 
-        if(workingEra == this.era) {
+        StringBuilder b;
+        if(!subscription.matchesSourcePeer(this.owner)) {
+            System.out.println(this.getLogStart() + "local chunks not subscribed");
+        } else if(workingEra == currentEra) {
             // nothing todo
             b = new StringBuilder();
             b.append(this.getLogStart());
             b.append("there are no information before that era; ");
-            b.append("we only deliver information from previous eras - nothing todo here.");
+            b.append("we only deliver information from previous eras - nothing todo with local chunks.");
             System.out.println(b.toString());
-            return;
-        }
+        } else {
+            // we iterate up to era just before current one - current one is active sync.
+            int lastEra = this.getPreviousEra(currentEra);
 
-        // we iterate up to era just before current one - current one is active sync.
-        int lastEra = this.getPreviousEra(this.era);
+            //<<<<<<<<<<<<<<<<<<debug
+            b = new StringBuilder();
+            b.append(this.getLogStart());
+            b.append("workingEra: ");
+            b.append(workingEra);
+            b.append(" | lastEra: ");
+            b.append(lastEra);
+            b.append(" | this.era: ");
+            b.append(currentEra);
+            System.out.println(b.toString());
+            //>>>>>>>>>>>>>>>>>>>debug
 
-        //<<<<<<<<<<<<<<<<<<debug
-        b = new StringBuilder();
-        b.append(this.getLogStart());
-        b.append("workingEra: ");
-        b.append(workingEra);
-        b.append(" | lastEra: ");
-        b.append(lastEra);
-        b.append(" | this.era: ");
-        b.append(this.era);
-        System.out.println(b.toString());
-        //>>>>>>>>>>>>>>>>>>>debug
+            // only eras with chunks - in chronological order
+            for(int era : this.chunkStorage.getEras(workingEra, lastEra)) {
+                if(!subscription.matchesEra(era)) continue;
 
-        // make a breakpoint here
-        if(this.memento != null) this.memento.save(this);
-        //<<<<<<<<<<<<<<<<<<debug
-        b = new StringBuilder();
-        b.append(this.getLogStart());
-        b.append("memento saved");
-        System.out.println(b.toString());
-        //>>>>>>>>>>>>>>>>>>>debug
+                this.sendChunks(this.owner, peer, this.chunkStorage, subscription, protocol, era, os);
 
-        this.sendChunks(this.owner, peer, this.getChunkStorage(), protocol, workingEra, lastEra, os);
+                if(subscription.isBlanket()) {
+                    // remember that we are in sync until that era - chunk details are not needed any longer
+                    this.setLastSeen(peer, this.getNextEra(era));
+                    this.syncIndex.eraCompleted(peer, this.owner, era);
 
-        //<<<<<<<<<<<<<<<<<<debug
-        b = new StringBuilder();
-        b.append(this.getLogStart());
-        b.append("ended iterating local chunks");
-        System.out.println(b.toString());
-        //>>>>>>>>>>>>>>>>>>>debug
+                    // make a breakpoint here
+                    if(this.memento != null) this.memento.save(this);
+                }
+            }
+
+            if(subscription.isBlanket()) {
+                // eras without chunks are in sync as well
+                this.setLastSeen(peer, currentEra);
+                this.syncIndex.blanketSync(peer);
+                if(this.memento != null) this.memento.save(this);
+            } else {
+                this.syncIndex.setSubscriptionEra(peer, subscription, currentEra);
+            }
+
+            //<<<<<<<<<<<<<<<<<<debug
+            b = new StringBuilder();
+            b.append(this.getLogStart());
+            b.append("ended iterating local chunks");
+            System.out.println(b.toString());
+            //>>>>>>>>>>>>>>>>>>>debug
+        }
 
         if(this.isSendReceivedChunks()) {
             System.out.println(this.getLogStart() + "send also received chunks - if any");
 
             for(CharSequence sender : this.getSender()) {
+                if(!subscription.matchesSourcePeer(sender)) continue;
+
                 System.out.println(this.getLogStart() + "send chunks received from: " + sender);
                 ASAPChunkStorage incomingChunkStorage = this.getIncomingChunkStorage(sender);
 
-                this.sendChunks(sender, peer, incomingChunkStorage, protocol, workingEra, lastEra, os);
+                // eras of sender - any of them could have got new messages
+                for(int era : incomingChunkStorage.getEras(ASAP.INITIAL_ERA, ASAP.MAX_ERA)) {
+                    if(!subscription.matchesEra(era)) continue;
+                    this.sendChunks(sender, peer, incomingChunkStorage, subscription, protocol, era, os);
+                }
             }
         } else {
             System.out.println(this.getLogStart() + "engine does not send received chunks");
@@ -570,120 +907,206 @@ public abstract class ASAPEngine implements ASAPStorage, ASAPProtocolEngine, ASA
         this.saveStatus();
     }
 
+    /**
+     * Send anything in that era which was subscribed but not yet handled for that peer. Sync index tells
+     * what that is - chunks without new messages are not read.
+     */
     private void sendChunks(CharSequence sender, String remotePeer, ASAPChunkStorage chunkStorage,
-                            ASAP_1_0 protocol, int workingEra,
-                            int lastEra, OutputStream os) throws IOException, ASAPException {
-        /*
-        There is a little challenge: era uses a circle of numbers
-        We cannot say: higher number, later era. That rule does *not*
-        apply. We can calculate next era, though.
-
-        That loop has to be re-entered as long as working era has not
-        yet reached lastEra. In other words: lastRound is reached whenever
-        workingEra == lastEra. Processing lastEra is the last round
-        We at at least one round!
-        */
-
-        boolean lastRound = false; // assume more than one round
-        do {
-            boolean goAhead = true; // to avoid deep if-if-if-if structures
-            lastRound = workingEra == lastEra;
-
-            List<ASAPChunk> chunks = chunkStorage.getChunks(workingEra);
-            //<<<<<<<<<<<<<<<<<<debug
-            StringBuilder b = new StringBuilder();
-            b.append(this.getLogStart());
-            b.append("start iterating chunks with working Era: ");
-            b.append(workingEra);
-            System.out.println(b.toString());
-            //>>>>>>>>>>>>>>>>>>>debug
+                            ASAPSubscription subscription, ASAP_1_0 protocol, int era, OutputStream os)
+            throws IOException, ASAPException {
 
-            for(ASAPChunk chunk : chunks) {
-                //<<<<<<<<<<<<<<<<<<debug
-                b = new StringBuilder();
-                b.append(this.getLogStart());
-                b.append("chunkUrl: ");
-                b.append(chunk.getUri());
-                b.append(" | isPublic: ");
-                b.append(this.isPublic(chunk));
-                b.append(" | len: ");
-                b.append(chunk.getLength());
-                System.out.println(b.toString());
-                //>>>>>>>>>>>>>>>>>>>debug
+        //<<<<<<<<<<<<<<<<<<debug
+        StringBuilder b = new StringBuilder();
+        b.append(this.getLogStart());
+        b.append("start iterating chunks with era: ");
+        b.append(era);
+        System.out.println(b.toString());
+        //>>>>>>>>>>>>>>>>>>>debug
 
-                if(chunk.getLength() < 1) {
-                    goAhead = false;
-                }
+        for(CharSequence uri : chunkStorage.getChannelURIs(era)) {
+            if(!subscription.matchesChannel(uri)) continue;
+            this.sendChunk(sender, remotePeer, chunkStorage, protocol, uri, era, os);
+        }
+    }
 
-                // is not a public chunk
-                if (goAhead && !this.isPublic(chunk)) {
-                    Set<CharSequence> recipients = chunk.getRecipients();
-                    if (recipients == null || !recipients.contains(remotePeer)) {
-                        goAhead = false;
-                    }
-                }
+    /**
+     * Send that chunk beyond the length that is already handled for that peer.
+     */
+    private void sendChunk(CharSequence sender, String remotePeer, ASAPChunkStorage chunkStorage,
+                           ASAP_1_0 protocol, CharSequence uri, int era, OutputStream os)
+            throws IOException, ASAPException {
 
-                if (goAhead) {
-                    //<<<<<<<<<<<<<<<<<<debug
-                    b = new StringBuilder();
-                    b.append(this.getLogStart());
-                    b.append("send chunk");
-                    System.out.println(b.toString());
-                    //>>>>>>>>>>>>>>>>>>>debug
-
-                    protocol.assimilate(sender, // remotePeer
-                            remotePeer, // remotePeer
-                            this.format,
-                            chunk.getUri(), // channel ok
-                            workingEra, // era ok
-                            chunk.getLength(), // data length
-                            chunk.getOffsetList(),
-                            chunk.getMessageInputStream(),
-                            os,
-                            false);
-
-                    // remember sent
-                    chunk.deliveredTo(remotePeer);
-                    //<<<<<<<<<<<<<<<<<<debug
-                    b = new StringBuilder();
-                    b.append(this.getLogStart());
-                    b.append("remembered delivered to ");
-                    b.append(remotePeer);
-                    System.out.println(b.toString());
-                    //>>>>>>>>>>>>>>>>>>>debug
-                    // sent to all recipients
-                    if (chunk.getRecipients().size() == chunk.getDeliveredTo().size()) {
-                        b = Log.startLog(this);
-                        b.append("#recipients == #deliveredTo chunk delivered to any potential remotePeer - could drop it");
-                        System.out.println(b.toString());
-                        if (this.isDropDeliveredChunks()) {
-                            chunk.drop();
-                            //<<<<<<<<<<<<<<<<<<debug
-                            b = Log.startLog(this);
-                            b.append("chunk dropped");
-                            System.out.println(b.toString());
-                        } else {
-                            b = Log.startLog(this);
-                            b.append("drop flag set false - engine does not remove delivered chunks");
-                            System.out.println(b.toString());
-                        }
-                    }
-                } else {
-                    System.out.println(this.getLogStart() + "nothing sent: empty or not on recipient list");
+        long length = chunkStorage.getChunkLength(uri, era);
+        long handled = this.syncIndex.getHandledLength(remotePeer, sender, era, uri);
+        boolean known = handled != ASAPSyncIndex.UNKNOWN;
+        if(!known) handled = 0;
+        if(length <= handled) {
+            // nothing new
+            return;
+        }
+
+        ASAPChunk chunk = chunkStorage.getChunk(uri, era);
+        if(!known && chunk.getDeliveredTo().contains(remotePeer)) {
+            // delivered completely - index entry is dropped in that case
+            return;
+        }
+        //<<<<<<<<<<<<<<<<<<debug
+        StringBuilder b = new StringBuilder();
+        b.append(this.getLogStart());
+        b.append("chunkUrl: ");
+        b.append(uri);
+        b.append(" | isPublic: ");
+        b.append(this.isPublic(chunk));
+        b.append(" | len: ");
+        b.append(length);
+        b.append(" | already handled: ");
+        b.append(handled);
+        System.out.println(b.toString());
+        //>>>>>>>>>>>>>>>>>>>debug
+
+        // is not a public chunk
+        if (!this.isPublic(chunk)) {
+            Set<CharSequence> recipients = chunk.getRecipients();
+            if (recipients == null || !recipients.contains(remotePeer)) {
+                System.out.println(this.getLogStart() + "nothing sent: not on recipient list");
+                if(chunkStorage != this.chunkStorage) {
+                    // own eras are walked once - last seen era or subscription era tells the rest
+                    this.syncIndex.setHandledLength(remotePeer, sender, era, uri, length);
                 }
+                return;
+            }
+        }
+
+        //<<<<<<<<<<<<<<<<<<debug
+        b = new StringBuilder();
+        b.append(this.getLogStart());
+        b.append("send chunk");
+        System.out.println(b.toString());
+        //>>>>>>>>>>>>>>>>>>>debug
+
+        InputStream chunkIS = chunk.getMessageInputStream();
+        try {
+            skipFully(chunkIS, handled);
+            protocol.assimilate(sender, // remotePeer
+                    remotePeer, // remotePeer
+                    this.format,
+                    uri, // channel ok
+                    era, // era ok
+                    length - handled, // data length
+                    offsetsInRange(chunk.getOffsetIndex().toArray(), handled, length),
+                    chunkIS,
+                    os,
+                    false);
+        }
+        finally {
+            chunkIS.close();
+        }
+
+        // remember sent - chunk first, index can forget it
+        chunk.deliveredTo(remotePeer);
+        this.syncIndex.setDelivered(remotePeer, sender, era, uri, length);
+        //<<<<<<<<<<<<<<<<<<debug
+        b = new StringBuilder();
+        b.append(this.getLogStart());
+        b.append("remembered delivered to ");
+        b.append(remotePeer);
+        System.out.println(b.toString());
+        //>>>>>>>>>>>>>>>>>>>debug
+        // sent to all recipients
+        if (this.deliveredToAllRecipients(chunk)) {
+            b = Log.startLog(this);
+            b.append("chunk delivered to any recipient - could drop it");
+            System.out.println(b.toString());
+            if (this.isDropDeliveredChunks()) {
+                this.dropDeliveredChunk(sender, chunkStorage, chunk);
+                //<<<<<<<<<<<<<<<<<<debug
+                b = Log.startLog(this);
+                b.append("chunk dropped");
+                System.out.println(b.toString());
+            } else {
+                b = Log.startLog(this);
+                b.append("drop flag set false - engine does not remove delivered chunks");
+                System.out.println(b.toString());
             }
+        }
+    }
 
-            // remember that we are in sync until that era
-            this.setLastSeen(remotePeer, workingEra);
+    /**
+     * @return true if chunk has recipients and was delivered to each of them
+     */
+    private boolean deliveredToAllRecipients(ASAPChunk chunk) {
+        Set<CharSequence> recipients = chunk.getRecipients();
+        if(recipients == null || recipients.isEmpty()) return false;
 
-            // make a breakpoint here
-            if(this.memento != null) this.memento.save(this);
+        Set<String> deliveredTo = new HashSet<>();
+        for(CharSequence peer : chunk.getDeliveredTo()) {
+            deliveredTo.add(peer.toString());
+        }
+        for(CharSequence recipient : recipients) {
+            if(!deliveredTo.contains(recipient.toString())) return false;
+        }
 
-            // next era which isn't necessarilly workingEra++
-            workingEra = this.getNextEra(workingEra);
+        return true;
+    }
 
-            // as long as not already performed last round
-        } while(!lastRound);
+    private static void skipFully(InputStream is, long n) throws IOException {
+        while(n > 0) {
+            long skipped = is.skip(n);
+            if(skipped <= 0) throw new EOFException("chunk shorter than expected");
+            n -= skipped;
+        }
+    }
+
+    /**
+     * @return offsets of messages starting within (from, to) - relative to from
+     */
+    private static long[] offsetsInRange(long[] offsets, long from, long to) {
+        int number = 0;
+        for(long offset : offsets) {
+            if(offset > from && offset < to) number++;
+        }
+
+        long[] range = new long[number];
+        int i = 0;
+        for(long offset : offsets) {
+            if(offset > from && offset < to) range[i++] = offset - from;
+        }
+
+        return range;
+    }
+
+    private void dropDeliveredChunk(CharSequence sender, ASAPChunkStorage chunkStorage, ASAPChunk chunk)
+            throws IOException {
+
+        if(chunkStorage != this.chunkStorage) {
+            // received chunk - no channel of ours
+            chunk.drop();
+            this.syncIndex.chunkDropped(sender, chunk.getEra(), chunk.getUri());
+            return;
+        }
+
+        this.eraLock.readLock().lock();
+        try {
+            synchronized(this.getChannelLock(chunk.getUri())) {
+                this.keepChannelMetaData(chunk, this.era);
+                chunk.drop();
+                this.syncIndex.chunkDropped(this.owner, chunk.getEra(), chunk.getUri());
+            }
+        }
+        finally {
+            this.eraLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Newest chunk of a channel holds channel meta data. They are copied into target era before that chunk
+     * is dropped.
+     */
+    private void keepChannelMetaData(ASAPChunk chunk, int targetEra) throws IOException {
+        ASAPChunk latestChunk = this.chunkStorage.getLatestChunk(chunk.getUri(), targetEra);
+        if(latestChunk != null && latestChunk.getEra() == chunk.getEra()) {
+            this.getChunkForWriting(chunk.getUri(), targetEra);
+        }
     }
 
     private boolean isDropDeliveredChunks() {
@@ -714,7 +1137,10 @@ public abstract class ASAPEngine implements ASAPStorage, ASAPProtocolEngine, ASA
         return lastEra;
     }
 
-    private void setLastSeen(String peer, int workingEra) {
+    /**
+     * @param era first era not yet synchronized with that peer
+     */
+    private void setLastSeen(String peer, int era) {
         this.lastSeen.put(peer, era);
     }
 
@@ -746,15 +1172,9 @@ public abstract class ASAPEngine implements ASAPStorage, ASAPProtocolEngine, ASA
      * @param peer
      * @return 
      */
-    private synchronized boolean permission2ProceedConversation(String peer) {
-        // if that peer is not in the list - go ahead
-        boolean goAhead = !this.activePeers.contains(peer);
-        if(goAhead) {
-            // add that peer - an other call will fail.
-            this.activePeers.add(peer);
-        }
-        
-        return goAhead;
+    private boolean permission2ProceedConversation(String peer) {
+        // if that peer is not in the set - go ahead. Add is atomic - an other call will fail.
+        return this.activePeers.add(peer);
     }
 
     /**
@@ -777,40 +1197,43 @@ public abstract class ASAPEngine implements ASAPStorage, ASAPProtocolEngine, ASA
         sb.append(this.format);
         sb.append(" | ");
 
-        if(this.contentChanged) {
-            sb.append("content changed - increment era...");
-            System.out.println(sb.toString());
-            try {
-                int oldEra = this.era;
-                int nextEra = this.getNextEra(this.era);
-
-                // set as fast as possible to make race conditions less likely
-                this.contentChanged = false;
+        // no writer is active while era changes
+        this.eraLock.writeLock().lock();
+        try {
+            if(this.contentChanged) {
+                sb.append("content changed - increment era...");
+                System.out.println(sb.toString());
+                try {
+                    int oldEra = this.era;
+                    int nextEra = this.getNextEra(oldEra);
+
+                    // drop very very old chunks - if available. Era numbers are re-used after a whole cycle.
+                    for(ASAPChunk chunk : this.chunkStorage.getChunks(nextEra)) {
+                        this.keepChannelMetaData(chunk, oldEra);
+                        this.syncIndex.chunkDropped(this.owner, nextEra, chunk.getUri());
+                    }
+                    this.chunkStorage.dropChunks(nextEra);
 
-                // we are done here - we are in a new era.
-                this.era = nextEra;
+                    // nothing to copy - chunks of new era are created with first change of a channel
+                    this.era = nextEra;
+                    this.contentChanged = false;
 
-                // persistent values
-                if(this.memento != null) this.memento.save(this);
+                    // persistent values
+                    if(this.memento != null) this.memento.save(this);
 
-                // drop very very old chunks - if available
-                this.chunkStorage.dropChunks(nextEra);
-
-                // setup new era - copy all chunks
-                for(ASAPChunk chunk : this.chunkStorage.getChunks(oldEra)) {
-                    ASAPChunk copyChunk = this.chunkStorage.getChunk(chunk.getUri(), nextEra);
-                    copyChunk.clone(chunk);
+                    System.out.println(this.getLogStart() + "era incremented");
+                } catch (IOException ex) {
+                    sb.append("IOException while incrementing era: ");
+                    sb.append(ex.getLocalizedMessage());
+                    System.err.println(sb.toString());
                 }
-
-                System.out.println(this.getLogStart() + "era incremented");
-            } catch (IOException ex) {
-                sb.append("IOException while incrementing era: ");
-                sb.append(ex.getLocalizedMessage());
-                System.err.println(sb.toString());
+            } else {
+                sb.append("content not changed - era not changed");
+                System.out.println(sb.toString());
             }
-        } else {
-            sb.append("content not changed - era not changed");
-            System.out.println(sb.toString());
+        }
+        finally {
+            this.eraLock.writeLock().unlock();
         }
     }
 
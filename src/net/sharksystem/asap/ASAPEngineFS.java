@@ -28,6 +28,7 @@ public class ASAPEngineFS extends ASAPEngine {
 
         this.owner = owner;
         this.rootDirectory = rootDirectory;
+        this.syncIndex = new ASAPSyncIndex(new File(rootDirectory + "/" + ASAPSyncIndex.SYNC_INDEX_FILENAME));
     }
 
     public String toString() {
@@ -165,22 +166,35 @@ public class ASAPEngineFS extends ASAPEngine {
     }
     
     private void restoreFromMemento() throws IOException {
+        if(this.memento instanceof ASAPMementoFS) {
+            // re-read only if changed by another engine object in the meantime
+            ((ASAPMementoFS) this.memento).restoreIfChanged(this);
+            return;
+        }
+
         ASAPMementoFS mementoFS = this.getMemento(rootDirectory);
         this.memento = mementoFS;
 
         mementoFS.restore(this);
-
     }
 
     @Override
     public void add(CharSequence urlTarget, byte[] messageAsBytes) throws IOException {
-        // always re-read metainformation
+        // re-read meta information if changed
         this.restoreFromMemento();
         
         // do the real work
         super.add(urlTarget, messageAsBytes);
     }
 
+    @Override
+    public void addAll(CharSequence urlTarget, Iterable<byte[]> messages) throws IOException {
+        // re-read meta information if changed
+        this.restoreFromMemento();
+
+        super.addAll(urlTarget, messages);
+    }
+
     /*
     public static ASAPEngine getASAPEngine(String rootDirectory, CharSequence format)
             throws IOException, ASAPException {
@@ -197,8 +211,38 @@ public class ASAPEngineFS extends ASAPEngine {
 
     @Override
     public ASAPChunkStorage getIncomingChunkStorage(CharSequence sender) {
-        String dir = this.rootDirectory + "/" + sender;
-        return new ASAPChunkStorageFS(dir, this.format);
+        // keep storage - and its chunk cache
+        synchronized(this.storageList) {
+            ASAPChunkStorage storage = this.storageList.get(sender.toString());
+            if(storage == null || !storage.getFormat().equals(this.format)) {
+                if(storage instanceof ASAPChunkStorageFS) {
+                    ((ASAPChunkStorageFS) storage).close();
+                }
+                String dir = this.rootDirectory + "/" + sender;
+                ASAPChunkStorageFS storageFS = new ASAPChunkStorageFS(dir, this.format);
+                this.watchDeliveredChunks(storageFS, sender.toString());
+                storage = storageFS;
+                this.storageList.put(sender.toString(), storage);
+            }
+            return storage;
+        }
+    }
+
+    /**
+     * Received chunks can grow after they were delivered to peers (interrupted or partial transfers).
+     * Sync index gets back what those peers have got.
+     */
+    private void watchDeliveredChunks(ASAPChunkStorageFS storage, final String sender) {
+        storage.setDeliveredChunkListener(new ASAPChunkStorageFS.DeliveredChunkListener() {
+            @Override
+            public void deliveredChunkGrows(int era, String uri, List<CharSequence> deliveredTo,
+                                            long formerLength) throws IOException {
+
+                for(CharSequence peer : deliveredTo) {
+                    syncIndex.keepHandledLength(peer, sender, era, uri, formerLength);
+                }
+            }
+        });
     }
 
     public ASAPStorage getExistingIncomingStorage(CharSequence sender) throws IOException, ASAPException {
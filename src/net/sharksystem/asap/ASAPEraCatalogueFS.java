@@ -0,0 +1,318 @@
+package net.sharksystem.asap;
+
+import net.sharksystem.Utils;
+import net.sharksystem.asap.util.Log;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Index of eras and channels in a chunk storage - kept in memory and in a file in storage root folder.
+ * Eras are ordered - a range of eras is found without listing any folder. Eras of each channel are
+ * indexed as well - newest chunk of a channel is found without looking into each era.
+ *
+ * <pre>
+ * catalogue file: MAGIC | VERSION | snapshot | record*
+ * snapshot: #eras (ERA #channels (URI #messages LENGTH)*)*
+ * record: TYPE | record specific data
+ * </pre>
+ *
+ * Changes are journaled like chunk meta data (see {@link ASAPJournalFile}). Chunk folders are scanned only
+ * once - if there is no catalogue file yet (storage written by a former version).
+ *
+ * @author thsc
+ */
+class ASAPEraCatalogueFS extends ASAPJournalFile {
+    static final String CATALOGUE_FILENAME = "asapEraCatalogue";
+
+    private static final int MAGIC = 0x41534543;
+    private static final byte VERSION = 1;
+
+    private static final byte CHANNEL_RECORD = 1;
+    private static final byte MESSAGES_RECORD = 2;
+    private static final byte DROP_CHANNEL_RECORD = 3;
+    private static final byte DROP_ERA_RECORD = 4;
+
+    static class ChannelEntry {
+        private int numberMessages = 0;
+        private long length = 0;
+
+        int getNumberMessages() { return this.numberMessages; }
+
+        long getLength() { return this.length; }
+    }
+
+    private final ASAPChunkStorageFS storage;
+
+    private TreeMap<Integer, TreeMap<String, ChannelEntry>> eras = new TreeMap<>();
+    private TreeMap<String, TreeSet<Integer>> channelEras = new TreeMap<>();
+
+    ASAPEraCatalogueFS(ASAPChunkStorageFS storage) {
+        super(new File(storage.getRootDirectory() + "/" + CATALOGUE_FILENAME), MAGIC, VERSION, "era catalogue");
+        this.storage = storage;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    //                                          queries                                           //
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @return eras with at least one channel in chronological order - aware of era numbers starting
+     * again after reaching maximum.
+     */
+    synchronized List<Integer> getEras(int fromEra, int toEra) throws IOException {
+        this.refresh();
+
+        List<Integer> eraList = new ArrayList<>();
+        if(fromEra <= toEra) {
+            //INIT ---- from-> +++++++++++++ <-to ----- MAX
+            eraList.addAll(this.eras.subMap(fromEra, true, toEra, true).keySet());
+        } else {
+            // INIT+++++++++<-to ------ from->++++++MAX - older ones first
+            eraList.addAll(this.eras.tailMap(fromEra, true).keySet());
+            eraList.addAll(this.eras.headMap(toEra, true).keySet());
+        }
+
+        return eraList;
+    }
+
+    synchronized List<String> getChannels(int era) throws IOException {
+        this.refresh();
+
+        TreeMap<String, ChannelEntry> channels = this.eras.get(era);
+        if(channels == null) return new ArrayList<>();
+
+        return new ArrayList<>(channels.keySet());
+    }
+
+    /**
+     * @return all channels with a chunk in any era
+     */
+    synchronized List<String> getChannels() throws IOException {
+        this.refresh();
+
+        return new ArrayList<>(this.channelEras.keySet());
+    }
+
+    /**
+     * @return newest era up to that era with a chunk of that channel - null if there is none. Eras
+     * with higher numbers are older: they were used before era numbers started again.
+     */
+    synchronized Integer getLatestEra(String uri, int era) throws IOException {
+        this.refresh();
+
+        TreeSet<Integer> eraSet = this.channelEras.get(uri);
+        if(eraSet == null) return null;
+
+        Integer latestEra = eraSet.floor(era);
+        return latestEra != null ? latestEra : eraSet.last();
+    }
+
+    synchronized boolean containsChannel(int era, String uri) throws IOException {
+        return this.getChannelEntry(era, uri) != null;
+    }
+
+    /**
+     * @return number of messages and length of that channel in that era - null if there is no such channel.
+     */
+    synchronized ChannelEntry getChannelEntry(int era, String uri) throws IOException {
+        this.refresh();
+
+        TreeMap<String, ChannelEntry> channels = this.eras.get(era);
+        return channels == null ? null : channels.get(uri);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    //                                          changes                                           //
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    synchronized void addChannel(int era, String uri) throws IOException {
+        this.refresh();
+        if(this.getOrCreateChannel(era, uri, false) == null) return; // already known
+
+        DataOutputStream dos = this.startRecord(CHANNEL_RECORD);
+        dos.writeInt(era);
+        dos.writeUTF(uri);
+        this.appendRecord();
+    }
+
+    synchronized void addMessages(int era, String uri, int number, long length) throws IOException {
+        this.refresh();
+        ChannelEntry entry = this.getOrCreateChannel(era, uri, true);
+        entry.numberMessages += number;
+        entry.length += length;
+
+        DataOutputStream dos = this.startRecord(MESSAGES_RECORD);
+        dos.writeInt(era);
+        dos.writeUTF(uri);
+        dos.writeInt(number);
+        dos.writeLong(length);
+        this.appendRecord();
+    }
+
+    synchronized void dropChannel(int era, String uri) throws IOException {
+        this.refresh();
+        if(!this.removeChannel(era, uri)) return;
+
+        DataOutputStream dos = this.startRecord(DROP_CHANNEL_RECORD);
+        dos.writeInt(era);
+        dos.writeUTF(uri);
+        this.appendRecord();
+    }
+
+    synchronized void dropEra(int era) throws IOException {
+        this.refresh();
+        if(!this.removeEra(era)) return;
+
+        DataOutputStream dos = this.startRecord(DROP_ERA_RECORD);
+        dos.writeInt(era);
+        this.appendRecord();
+    }
+
+    /**
+     * @param existingToo return existing entry as well
+     * @return new entry or existing one if existingToo is set - null otherwise
+     */
+    private ChannelEntry getOrCreateChannel(int era, String uri, boolean existingToo) {
+        TreeMap<String, ChannelEntry> channels = this.eras.get(era);
+        if(channels == null) {
+            channels = new TreeMap<>();
+            this.eras.put(era, channels);
+        }
+
+        ChannelEntry entry = channels.get(uri);
+        if(entry != null) {
+            return existingToo ? entry : null;
+        }
+
+        entry = new ChannelEntry();
+        channels.put(uri, entry);
+
+        TreeSet<Integer> eraSet = this.channelEras.get(uri);
+        if(eraSet == null) {
+            eraSet = new TreeSet<>();
+            this.channelEras.put(uri, eraSet);
+        }
+        eraSet.add(era);
+
+        return entry;
+    }
+
+    private boolean removeChannel(int era, String uri) {
+        TreeMap<String, ChannelEntry> channels = this.eras.get(era);
+        if(channels == null || channels.remove(uri) == null) return false;
+
+        // an era without channels is no era
+        if(channels.isEmpty()) this.eras.remove(era);
+        this.removeChannelEra(uri, era);
+        return true;
+    }
+
+    private boolean removeEra(int era) {
+        TreeMap<String, ChannelEntry> channels = this.eras.remove(era);
+        if(channels == null) return false;
+
+        for(String uri : channels.keySet()) {
+            this.removeChannelEra(uri, era);
+        }
+        return true;
+    }
+
+    private void removeChannelEra(String uri, int era) {
+        TreeSet<Integer> eraSet = this.channelEras.get(uri);
+        eraSet.remove(era);
+        if(eraSet.isEmpty()) this.channelEras.remove(uri);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    //                                          journal                                           //
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    @Override
+    protected void clear() {
+        this.eras = new TreeMap<>();
+        this.channelEras = new TreeMap<>();
+    }
+
+    @Override
+    protected int getSnapshotSize() {
+        int size = this.eras.size();
+        for(TreeMap<String, ChannelEntry> channels : this.eras.values()) {
+            size += channels.size();
+        }
+        return size;
+    }
+
+    @Override
+    protected void writeSnapshot(DataOutputStream dos) throws IOException {
+        dos.writeInt(this.eras.size());
+        for(Map.Entry<Integer, TreeMap<String, ChannelEntry>> era : this.eras.entrySet()) {
+            dos.writeInt(era.getKey());
+            dos.writeInt(era.getValue().size());
+            for(Map.Entry<String, ChannelEntry> channel : era.getValue().entrySet()) {
+                dos.writeUTF(channel.getKey());
+                dos.writeInt(channel.getValue().numberMessages);
+                dos.writeLong(channel.getValue().length);
+            }
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    //                                          reading                                           //
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    @Override
+    protected void readSnapshot(DataInputStream dis) throws IOException {
+        int numberEras = dis.readInt();
+        for(int i = 0; i < numberEras; i++) {
+            int era = dis.readInt();
+            int numberChannels = dis.readInt();
+            for(int j = 0; j < numberChannels; j++) {
+                ChannelEntry entry = this.getOrCreateChannel(era, dis.readUTF(), true);
+                entry.numberMessages = dis.readInt();
+                entry.length = dis.readLong();
+            }
+        }
+    }
+
+    @Override
+    protected boolean replayRecord(int type, DataInputStream dis) throws IOException {
+        int era = dis.readInt();
+        switch (type) {
+            case CHANNEL_RECORD: this.getOrCreateChannel(era, dis.readUTF(), true); break;
+            case MESSAGES_RECORD:
+                String uri = dis.readUTF();
+                int number = dis.readInt();
+                long length = dis.readLong();
+                ChannelEntry entry = this.getOrCreateChannel(era, uri, true);
+                entry.numberMessages += number;
+                entry.length += length;
+                break;
+            case DROP_CHANNEL_RECORD: this.removeChannel(era, dis.readUTF()); break;
+            case DROP_ERA_RECORD: this.removeEra(era); break;
+            default: return false;
+        }
+        return true;
+    }
+
+    /**
+     * There is no catalogue file - set it up from chunks in era folders.
+     */
+    @Override
+    protected void loadWithoutFile() throws IOException {
+        for(Integer era : Utils.getErasInFolder(this.storage.getRootDirectory())) {
+            for(ASAPChunkFS chunk : this.storage.readChunksFromFolder(era)) {
+                ChannelEntry entry = this.getOrCreateChannel(era, chunk.getUri(), true);
+                entry.numberMessages = chunk.getNumberMessage();
+                entry.length = chunk.getLength();
+                chunk.close();
+            }
+        }
+
+        // nothing to remember otherwise - file is written with first channel
+        if(!this.eras.isEmpty()) {
+            Log.writeLog(this, "era catalogue set up from chunk folders: " + this.getFile());
+            this.compact();
+        }
+    }
+}
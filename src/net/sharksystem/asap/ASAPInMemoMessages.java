@@ -1,10 +1,12 @@
 package net.sharksystem.asap;
 
-import net.sharksystem.Utils;
+import net.sharksystem.asap.apps.ASAPMessageVisitor;
 import net.sharksystem.asap.apps.ASAPMessages;
 import net.sharksystem.asap.util.Log;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -20,14 +22,14 @@ class ASAPInMemoMessages implements ASAPMessages {
 
     private List<ASAPChunk> chunkList;
 
-    /** the internal message Cache */
-    private List<CharSequence> messageCache;
-    private int firstIndexMessageCache = -1;
-    private int lastIndexMessageCache = -1;
-    private int maxCacheLen;
+    /** chunkFirstIndex[i]: absolute position of first message in chunk i - ascending */
+    private int[] chunkFirstIndex;
 
     private int numberOfMessages = 0;
 
+    /**
+     * @param maxCacheLen not used any longer - messages are read directly from chunks
+     */
     public ASAPInMemoMessages(ASAPChunkStorageFS chunkStorage,
                               String format, CharSequence uri, int fromEra, int toEra, int maxCacheLen) {
 
@@ -36,7 +38,6 @@ class ASAPInMemoMessages implements ASAPMessages {
         this.chunkStorage = chunkStorage;
         this.fromEra = fromEra;
         this.toEra = toEra;
-        this.maxCacheLen = maxCacheLen;
 
         Log.writeLog(this, this.toString());
     }
@@ -66,50 +67,25 @@ class ASAPInMemoMessages implements ASAPMessages {
     }
 
     private void syncChunkList() throws IOException {
-        // get all chunks in chronological order
-        Collection<Integer> erasInFolder = Utils.getErasInFolder(this.chunkStorage.getRootDirectory());
-        if(erasInFolder.isEmpty()) return;
-
-        Collection<Integer> erasToUse = Utils.getErasInRange(erasInFolder, this.fromEra, this.toEra);
-        if(erasToUse.isEmpty()) return;
-
-        /*
-        // current era in following loop
-        int thisEra = this.fromEra;
-
-        // do we need more than one loop?
-        boolean anotherLoop = this.fromEra != this.toEra;
-        
-        // are we in the final loop?
-        boolean finalLoop = !anotherLoop;
-         */
-        
-        // drop old vunk list - if any
+        // get all chunks in chronological order - era catalogue knows eras and channels
         this.chunkList = new ArrayList<>();
-        
-//        do {
-        for(Integer thisEra : erasToUse) {
-            // check if chunk exists - don't create on
-            Log.writeLog(this, "reached era: " + thisEra);
-            if (erasInFolder.contains(thisEra) && this.chunkStorage.existsChunk(this.uri, thisEra)) {
+        List<Integer> firstIndexList = new ArrayList<>();
+
+        for(Integer thisEra : this.chunkStorage.getEras(this.fromEra, this.toEra)) {
+            // check if chunk exists - don't create one
+            ASAPEraCatalogueFS.ChannelEntry entry = this.chunkStorage.getChunkEntry(this.uri, thisEra);
+            if (entry != null) {
                 // is there - get it
                 Log.writeLog(this, "getChunk with era: " + thisEra);
-                ASAPChunk chunk = this.chunkStorage.getChunk(this.uri, thisEra);
-                this.chunkList.add(chunk);
-                this.numberOfMessages += chunk.getNumberMessage();
+                this.chunkList.add(this.chunkStorage.getChunk(this.uri, thisEra));
+                firstIndexList.add(this.numberOfMessages);
+                this.numberOfMessages += entry.getNumberMessages();
             }
+        }
 
-            /*
-            if (anotherLoop) {
-                if (finalLoop) {
-                    anotherLoop = false;
-                } else {
-                    thisEra = ASAP.nextEra(thisEra);
-                    finalLoop = thisEra == this.toEra;
-                }
-            }
-        } while (anotherLoop);
-             */
+        this.chunkFirstIndex = new int[firstIndexList.size()];
+        for(int i = 0; i < this.chunkFirstIndex.length; i++) {
+            this.chunkFirstIndex[i] = firstIndexList.get(i);
         }
     }
 
@@ -142,13 +118,30 @@ class ASAPInMemoMessages implements ASAPMessages {
         return new ChunkListByteMessageIterator(this.chunkList);
     }
 
+    @Override
+    public Iterator<ByteBuffer> getMessagesAsByteBuffer() throws IOException {
+        this.initialize();
+
+        return new ChunkListByteBufferMessageIterator(this.chunkList);
+    }
+
+    @Override
+    public void forEachMessage(ASAPMessageVisitor visitor) throws IOException {
+        this.initialize();
+        if(this.chunkList == null) return;
+
+        for(ASAPChunk chunk : this.chunkList) {
+            if(!chunk.forEachMessage(visitor)) return;
+        }
+    }
+
     @Override
     public CharSequence getMessage(int position, boolean chronologically) 
             throws ASAPException, IOException {
 
         this.initialize();
 
-        if(position >= this.numberOfMessages)
+        if(position < 0 || position >= this.numberOfMessages)
             throw new ASAPException("Position exceeds number of message");
 
         if(!chronologically) {
@@ -156,100 +149,32 @@ class ASAPInMemoMessages implements ASAPMessages {
             position = this.numberOfMessages - 1 - position;
         }
 
-        if(this.messageCache != null && position >= this.firstIndexMessageCache && position <= this.lastIndexMessageCache) {
-            return this.messageCache.get(position - this.firstIndexMessageCache); // TODO calculation correct?
-        }
-
-        // not yet in cache - find chunk with required message
-        int firstIndex = 0; // absolut index of first message in current chunk
-        int lastIndex = 0; // absolut index of last message in current chunk
-
-        boolean found = false;
-        ASAPChunk fittingChunk = null;
-        int fittingChunkIndex = 0;
-
-        for(ASAPChunk chunk : this.chunkList) {
-            lastIndex = firstIndex + chunk.getNumberMessage() - 1;
-
-            if(position >= firstIndex && position <= lastIndex) {
-                // we have got our chunk
-                fittingChunk = chunk;
-                break;
-            }
-
-            firstIndex += chunk.getNumberMessage();
-            fittingChunkIndex++;
-        }
-
-        if(fittingChunk == null) {
-            throw new ASAPException("internal failure - wrong calculation in chunk cache");
-        }
-
-        // we can fill our cache right now
-
-        // reset cache
-        this.messageCache = new ArrayList<>();
-
-        /////////////////////////////////////////////////////////////////
-        // simple approach in that first implementation ... we keep fitting chunk in memory
-        /////////////////////////////////////////////////////////////////
-
-        Iterator<CharSequence> messages = fittingChunk.getMessages();
-
-        // chunk bigger than max cache size?
-        int chunkSize = fittingChunk.getNumberMessage();
-        if(chunkSize > this.maxCacheLen) {
-            // calculate how many messages to skip before caching
-
-            /*
-            situation:
-            chunk head |................position...........................| tail
-            cache head |................| tail
-
-            solution: put position in middle of the cache
-            chunk |................position...........................|
-            planned cache |........position........|
-            skipLen...|
-             */
-
-            int skipLen = position - (this.maxCacheLen / 2);
-
-            // first index in cache will be this one:
-            firstIndex += skipLen;
-
-            // skip
-            for(;skipLen > 0; skipLen--) {
-                this.messageCache.add(messages.next());
+        // binary search for chunk containing that message - O(log chunks)
+        int chunkIndex = Arrays.binarySearch(this.chunkFirstIndex, position);
+        if(chunkIndex < 0) {
+            // not a first message - take chunk before insertion point
+            chunkIndex = -chunkIndex - 2;
+        } else {
+            // empty chunks share first index with their successor - take last one
+            while(chunkIndex + 1 < this.chunkFirstIndex.length
+                    && this.chunkFirstIndex[chunkIndex + 1] == position) {
+                chunkIndex++;
             }
         }
 
-        this.firstIndexMessageCache = firstIndex;
-
-        int counter = 0;
-        while(messages.hasNext()) {
-            this.messageCache.add(messages.next());
-            counter++;
-            if(counter > this.maxCacheLen) break;
+        if(chunkIndex < 0 || chunkIndex >= this.chunkList.size()) {
+            throw new ASAPException("internal failure - wrong calculation in chunk index");
         }
 
-        this.lastIndexMessageCache = this.firstIndexMessageCache + counter - 1;
-
-        // cache filled - call again
-        /* not: it is always chronologically true!!
-        a) we already came in with true -> it remains true
-        b) we came with false -> we have already recalculated that position, we would
-        move it around again with that call - keep position unchanged: true!
-         */
-
-        return this.getMessage(position, true);
+        // random access - neighbour messages are not read
+        ASAPChunk chunk = this.chunkList.get(chunkIndex);
+        return new String(chunk.getMessage(position - this.chunkFirstIndex[chunkIndex]));
     }
 
     public void sync() throws IOException {
         this.initialized = false;
-        this.firstIndexMessageCache = -1;
-        this.lastIndexMessageCache = -1;
         this.numberOfMessages = 0;
-        this.messageCache = null;
+        this.chunkFirstIndex = null;
     }
 
     //////////////////////////////////////////////////////////////////////////////////////////
@@ -272,32 +197,56 @@ class ASAPInMemoMessages implements ASAPMessages {
         }
 
         /**
-         * read next message in field messageAhead.
+         * read next message in field messageAhead. Only one chunk file is open at a time:
+         * chunk iterators are closed when exhausted.
+         * @throws IllegalStateException chunk cannot be read - like chunk iterators do
          */
         private void readAhead() {
-            if (this.currentIterator != null) {
-                if (this.currentIterator.hasNext()) {
-                    // 'normal' case: we read next message
-                    this.messageAhead = this.currentIterator.next();
-                    return; // done
+            for(;;) {
+                if (this.currentIterator != null) {
+                    if (this.currentIterator.hasNext()) {
+                        // 'normal' case: we read next message
+                        this.messageAhead = this.currentIterator.next();
+                        return; // done
+                    }
+                    this.closeCurrentIterator();
+                }
+                // no more messages in that iterator / chunk
+                if (this.chunkList == null || nextIndex >= this.chunkList.size()) {
+                    return; // there is no list at all or we are already through with it
+                }
+
+                // open next chunk / iterator
+                this.currentChunk = this.chunkList.get(this.nextIndex++);
+                try {
+                    this.currentIterator = this.getMessageIterator(currentChunk);
+                } catch (IOException e) {
+                    // cannot recover from that problem - but do not pretend there are no more messages
+                    this.close();
+                    throw new IllegalStateException("cannot read chunk: " + e.getLocalizedMessage());
                 }
             }
-            // no more messages in that iterator / chunk
-            if (this.chunkList == null || nextIndex >= this.chunkList.size() ) {
-                return; // there is no list at all or we are already through with it
-            }
+        }
 
-            // open next chunk / iterator
-            this.currentChunk = this.chunkList.get(this.nextIndex++);
-            try {
-                this.currentIterator = this.getMessageIterator(currentChunk);
-                this.readAhead(); // next try
-            } catch (IOException e) {
-                // cannot recover from that problem
-                return;
+        private void closeCurrentIterator() {
+            if(this.currentIterator instanceof Closeable) {
+                try {
+                    ((Closeable) this.currentIterator).close();
+                } catch (IOException e) {
+                    Log.writeLogErr(this, "cannot close chunk iterator: " + e.getLocalizedMessage());
+                }
             }
+            this.currentIterator = null;
         }
 
+        /**
+         * release file handles - no further messages are delivered
+         */
+        public void close() {
+            this.closeCurrentIterator();
+            this.messageAhead = null;
+            this.nextIndex = this.chunkList == null ? 0 : this.chunkList.size();
+        }
 
         public boolean hasNext() {
             return this.messageAhead != null;
@@ -321,9 +270,8 @@ class ASAPInMemoMessages implements ASAPMessages {
         abstract Iterator<T> getMessageIterator(ASAPChunk chunk) throws IOException;
     }
 
-    private class ChunkListMessageIterator extends ChunkListIterator<CharSequence> implements Iterator<CharSequence> {
-        private Iterator<CharSequence> currentIterator;
-        private CharSequence messageAhead;
+    private class ChunkListMessageIterator extends ChunkListIterator<CharSequence>
+            implements Iterator<CharSequence>, Closeable {
 
         public ChunkListMessageIterator(List<ASAPChunk> chunkList) throws IOException {
             super(chunkList);
@@ -335,9 +283,8 @@ class ASAPInMemoMessages implements ASAPMessages {
         }
     }
 
-    private class ChunkListByteMessageIterator extends ChunkListIterator<byte[]> implements Iterator<byte[]> {
-        private Iterator<CharSequence> currentIterator;
-        private CharSequence messageAhead;
+    private class ChunkListByteMessageIterator extends ChunkListIterator<byte[]>
+            implements Iterator<byte[]>, Closeable {
 
         public ChunkListByteMessageIterator(List<ASAPChunk> chunkList) throws IOException {
             super(chunkList);
@@ -348,4 +295,17 @@ class ASAPInMemoMessages implements ASAPMessages {
             return chunk.getMessagesAsBytes();
         }
     }
+
+    private class ChunkListByteBufferMessageIterator extends ChunkListIterator<ByteBuffer>
+            implements Iterator<ByteBuffer>, Closeable {
+
+        public ChunkListByteBufferMessageIterator(List<ASAPChunk> chunkList) throws IOException {
+            super(chunkList);
+        }
+
+        @Override
+        Iterator<ByteBuffer> getMessageIterator(ASAPChunk chunk) throws IOException {
+            return chunk.getMessagesAsByteBuffer();
+        }
+    }
 }
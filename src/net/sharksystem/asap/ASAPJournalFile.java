@@ -0,0 +1,274 @@
+package net.sharksystem.asap;
+
+import net.sharksystem.asap.util.Log;
+import net.sharksystem.asap.util.StreamHelper;
+
+import java.io.*;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Data kept in memory and in a file: a snapshot followed by a journal of changes.
+ *
+ * <pre>
+ * file: MAGIC | VERSION | snapshot | record*
+ * record: TYPE | record specific data
+ * </pre>
+ *
+ * Any change is appended as a small record. The file is compacted (snapshot re-written, journal
+ * emptied) whenever the journal becomes larger than the snapshot - appending remains O(1) amortized.
+ * Compaction writes a new file which replaces the old one - a crash leaves either of them. Data are
+ * re-read if another object changed or replaced that file.
+ *
+ * Subclasses encode and decode snapshot and records. They synchronize on this object as well.
+ *
+ * @author thsc
+ */
+abstract class ASAPJournalFile {
+    static final int MIN_JOURNAL_RECORDS_BEFORE_COMPACTION = 128;
+
+    private final File file;
+    private final int magic;
+    private final byte version;
+    private final String name;
+
+    private OutputStream journalOS = null;
+    private long knownFileLength = -1;
+    private Object knownFileKey = null;
+    private int journalRecords = 0;
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+
+    /**
+     * @param file data are kept in memory only if null
+     * @param name used in log and error messages
+     */
+    ASAPJournalFile(File file, int magic, byte version, String name) {
+        this.file = file;
+        this.magic = magic;
+        this.version = version;
+        this.name = name;
+    }
+
+    File getFile() { return this.file; }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    //                                       subclasses                                           //
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /** set empty data - before reading file */
+    protected abstract void clear();
+
+    /** number of entries in snapshot - journal is compacted if it has more records */
+    protected abstract int getSnapshotSize();
+
+    protected abstract void writeSnapshot(DataOutputStream dos) throws IOException;
+
+    protected abstract void readSnapshot(DataInputStream dis) throws IOException;
+
+    /**
+     * read whole record before applying it
+     * @return false if record type is unknown
+     * @throws EOFException record is torn
+     */
+    protected abstract boolean replayRecord(int type, DataInputStream dis) throws IOException;
+
+    /**
+     * There is no file or it is empty. Nothing to read by default - file is written with first change.
+     */
+    protected void loadWithoutFile() throws IOException { }
+
+    /**
+     * File does not start with magic number. It is no such file by default.
+     * @param dis stream positioned at file start
+     * @return false if there is nothing in that file - true if data were read. File is compacted in
+     * that case.
+     */
+    protected boolean readFormerFormat(DataInputStream dis) throws IOException {
+        throw new IOException("not a " + this.name + ": " + this.file);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    //                                          journal                                           //
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    protected DataOutputStream startRecord(byte type) throws IOException {
+        this.recordBytes.reset();
+        DataOutputStream dos = new DataOutputStream(this.recordBytes);
+        dos.writeByte(type);
+        return dos;
+    }
+
+    /**
+     * record is written with a single write call - concurrent appends cannot interleave
+     */
+    protected void appendRecord() throws IOException {
+        if(this.file == null) return;
+
+        if(this.knownFileLength <= 0) {
+            // no snapshot yet
+            this.compact();
+            return;
+        }
+
+        if(this.journalOS == null) {
+            this.journalOS = new FileOutputStream(this.file, true);
+        }
+
+        this.journalOS.write(this.recordBytes.toByteArray());
+        this.knownFileLength += this.recordBytes.size();
+        this.journalRecords++;
+
+        if(this.journalRecords > MIN_JOURNAL_RECORDS_BEFORE_COMPACTION
+                && this.journalRecords > this.getSnapshotSize()) {
+            this.compact();
+        }
+    }
+
+    /**
+     * Write a snapshot of all data and drop journal. File is replaced - other objects on that
+     * file notice it with next refresh.
+     */
+    synchronized void compact() throws IOException {
+        if(this.file == null) return;
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(this.magic);
+        dos.writeByte(this.version);
+        this.writeSnapshot(dos);
+
+        File folder = this.file.getAbsoluteFile().getParentFile();
+        if(folder != null && !folder.exists()) {
+            folder.mkdirs();
+        }
+
+        // journal stream would write into replaced file
+        this.close();
+        StreamHelper.writeAtomically(baos, this.file);
+
+        BasicFileAttributes attributes = StreamHelper.getAttributes(this.file);
+        this.knownFileKey = attributes == null ? null : attributes.fileKey();
+        this.knownFileLength = baos.size();
+        this.journalRecords = 0;
+    }
+
+    /**
+     * release file handle. Object remains usable - file is re-opened if required.
+     */
+    synchronized void close() {
+        if(this.journalOS != null) {
+            try {
+                this.journalOS.close();
+            } catch (IOException e) {
+                Log.writeLogErr(this, "cannot close " + this.name + ": " + e.getLocalizedMessage());
+            }
+            this.journalOS = null;
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    //                                          reading                                           //
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * re-read file if it was changed by someone else. Each change makes that file longer - except
+     * compaction which replaces that file. A missing file has length 0.
+     * @return true if data were re-read
+     */
+    synchronized boolean refresh() throws IOException {
+        if(this.file == null) return false;
+
+        BasicFileAttributes attributes = StreamHelper.getAttributes(this.file);
+        long fileLength = attributes == null ? 0 : attributes.size();
+        if(fileLength == this.knownFileLength
+                && (this.knownFileKey == null || this.knownFileKey.equals(attributes.fileKey()))) {
+            return false;
+        }
+
+        this.load();
+        return true;
+    }
+
+    /**
+     * forget anything - file is read again with next refresh
+     */
+    synchronized void reset() {
+        this.clear();
+        this.knownFileLength = -1;
+        this.knownFileKey = null;
+        this.journalRecords = 0;
+    }
+
+    /**
+     * @return false if there are no data in that file - empty data are set in that case.
+     */
+    synchronized boolean load() throws IOException {
+        this.reset();
+        if(this.file == null) return false;
+
+        // file could have been replaced - append to current one
+        this.close();
+
+        BasicFileAttributes attributes = StreamHelper.getAttributes(this.file);
+        if(attributes == null || attributes.size() == 0) {
+            this.knownFileLength = 0;
+            this.loadWithoutFile();
+            return false;
+        }
+
+        long fileLength = attributes.size();
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+        boolean complete;
+        try {
+            dis.mark(4);
+            if(fileLength < 4 || dis.readInt() != this.magic) {
+                dis.reset();
+                if(!this.readFormerFormat(dis)) return false;
+                complete = false;
+            } else {
+                complete = this.readSnapshotAndJournal(dis);
+            }
+        }
+        finally {
+            dis.close();
+        }
+
+        if(complete) {
+            this.knownFileLength = fileLength;
+            this.knownFileKey = attributes.fileKey();
+        } else {
+            this.compact();
+        }
+
+        return true;
+    }
+
+    /**
+     * @return false if journal has a torn record at its end (crash while writing).
+     */
+    private boolean readSnapshotAndJournal(DataInputStream dis) throws IOException {
+        byte version = dis.readByte();
+        if(version != this.version) {
+            throw new IOException("unknown " + this.name + " version: " + version);
+        }
+
+        this.readSnapshot(dis);
+
+        // replay journal
+        for(;;) {
+            int type = dis.read();
+            if(type < 0) return true; // clean end of journal
+
+            try {
+                if(!this.replayRecord(type, dis)) {
+                    Log.writeLogErr(this, "unknown journal record - ignore rest of file: " + this.file);
+                    return false;
+                }
+                this.journalRecords++;
+            }
+            catch(EOFException eof) {
+                Log.writeLogErr(this, "torn record at end of journal - drop it: " + this.file);
+                return false;
+            }
+        }
+    }
+}
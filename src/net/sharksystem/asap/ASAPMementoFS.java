@@ -3,7 +3,8 @@ package net.sharksystem.asap;
 import net.sharksystem.asap.protocol.ASAP_1_0;
 
 import java.io.*;
-import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Engine memento implementation in filesystem.
@@ -13,12 +14,16 @@ import java.util.HashMap;
 class ASAPMementoFS implements ASAPMemento {
     private final File rootDirectory;
 
+    /** state of memento file when last written or read by this object */
+    private long knownLastModified = -1;
+    private long knownLength = -1;
+
     public ASAPMementoFS(File rootDirectory) {
         this.rootDirectory = rootDirectory;
     }
 
     @Override
-    public void save(ASAPEngine engine) throws IOException {
+    public synchronized void save(ASAPEngine engine) throws IOException {
         String fName = this.getMementoFileName();
 
         File file = new File(fName);
@@ -28,8 +33,9 @@ class ASAPMementoFS implements ASAPMemento {
             }
         }
 
-        DataOutputStream dos = new DataOutputStream(
-                                new FileOutputStream(fName));
+        // write memento with a single write
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
 
         dos.writeUTF(engine.owner);
         dos.writeUTF(engine.format);
@@ -41,14 +47,48 @@ class ASAPMementoFS implements ASAPMemento {
 
         // write lastSeen hash map
         if(engine.lastSeen != null && !engine.lastSeen.isEmpty()) {
-            for(String key : engine.lastSeen.keySet()) {
-                Integer era = engine.lastSeen.get(key);
-
+            // entries can be added meanwhile - iterate entries, a removed key would make get return null
+            for(Map.Entry<String, Integer> entry : engine.lastSeen.entrySet()) {
                 // write peer and era
-                dos.writeUTF(key);
-                dos.writeInt(era);
+                dos.writeUTF(entry.getKey());
+                dos.writeInt(entry.getValue());
             }
         }
+
+        OutputStream os = new FileOutputStream(file);
+        try {
+            baos.writeTo(os);
+        }
+        finally {
+            os.close();
+        }
+
+        this.rememberFileState(file);
+    }
+
+    private void rememberFileState(File file) {
+        this.knownLastModified = file.lastModified();
+        this.knownLength = file.length();
+    }
+
+    /**
+     * @return true if memento file was changed (by another object) after this object
+     * has written or read it.
+     */
+    boolean changedExternally() {
+        File file = new File(this.getMementoFileName());
+        return file.lastModified() != this.knownLastModified || file.length() != this.knownLength;
+    }
+
+    /**
+     * restore engine only if memento file was changed by others.
+     * @return true if engine was restored
+     */
+    synchronized boolean restoreIfChanged(ASAPEngine engine) throws IOException {
+        if(!this.changedExternally()) return false;
+
+        this.restore(engine);
+        return true;
     }
 
     private void setDefaults(ASAPEngine engine) {
@@ -57,22 +97,25 @@ class ASAPMementoFS implements ASAPMemento {
         engine.format = ASAP_1_0.ANY_FORMAT.toString();
         engine.era = ASAPEngine.DEFAULT_INIT_ERA;
         engine.oldestEra = ASAPEngine.DEFAULT_INIT_ERA;
-        engine.lastSeen = new HashMap<>();
+        engine.lastSeen = new ConcurrentHashMap<>();
         engine.dropDeliveredChunks = false;
         engine.sendReceivedChunks = false;
     }
 
-    public void restore(ASAPEngine engine) throws IOException {
+    public synchronized void restore(ASAPEngine engine) throws IOException {
         String fName = this.getMementoFileName();
 
         File file = new File(fName);
         if(!file.exists()) {
             this.setDefaults(engine);
+            this.knownLastModified = -1;
+            this.knownLength = -1;
             return;
         }
 
-        DataInputStream dis = new DataInputStream(
-                                new FileInputStream(file));
+        this.rememberFileState(file);
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(
+                                new FileInputStream(file)));
 
         try {
             engine.owner = dis.readUTF();
@@ -85,6 +128,7 @@ class ASAPMementoFS implements ASAPMemento {
         }
         catch(EOFException e) {
             // ignore and work with set defaults
+            dis.close();
             return; // reached end of file - nothing to do here
         }
 
@@ -96,7 +140,7 @@ class ASAPMementoFS implements ASAPMemento {
                 // got one
                 if(first) {
                     // init empty list
-                    engine.lastSeen = new HashMap<>();
+                    engine.lastSeen = new ConcurrentHashMap<>();
                     first = false;
                 }
 
@@ -109,6 +153,9 @@ class ASAPMementoFS implements ASAPMemento {
         catch(IOException ioe) {
                 // ok  no more data
         }
+        finally {
+            dis.close();
+        }
     }
 
     private String getMementoFileName() {
@@ -0,0 +1,113 @@
+package net.sharksystem.asap;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Offsets of messages in a chunk. Message 0 starts at offset 0 which is not
+ * stored. Entry i is the first byte of message i+1.
+ *
+ * Offsets are kept in a growable array of primitives - no boxing, no parsing.
+ * Start and length of any message are found in O(1).
+ *
+ * @author thsc
+ */
+public class ASAPOffsetIndex {
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private long[] offsets;
+    private int size;
+
+    public ASAPOffsetIndex() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ASAPOffsetIndex(int capacity) {
+        this.offsets = new long[Math.max(capacity, 1)];
+        this.size = 0;
+    }
+
+    /**
+     * @param offsets array is copied
+     */
+    public ASAPOffsetIndex(long[] offsets) {
+        this(offsets == null ? 0 : offsets.length);
+        if(offsets != null) {
+            System.arraycopy(offsets, 0, this.offsets, 0, offsets.length);
+            this.size = offsets.length;
+        }
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public long get(int index) {
+        if(index < 0 || index >= this.size) {
+            throw new IndexOutOfBoundsException("offset index " + index + " / size " + this.size);
+        }
+        return this.offsets[index];
+    }
+
+    /**
+     * Only chunk meta data change an index. Indices handed out are copies.
+     */
+    void add(long offset) {
+        if(this.size == this.offsets.length) {
+            this.offsets = Arrays.copyOf(this.offsets, this.offsets.length * 2);
+        }
+        this.offsets[this.size++] = offset;
+    }
+
+    /**
+     * @return copy of all offsets
+     */
+    public long[] toArray() {
+        return Arrays.copyOf(this.offsets, this.size);
+    }
+
+    /**
+     * @param contentLength length of message content
+     * @return number of messages in a content of that length
+     */
+    public int getNumberMessages(long contentLength) {
+        if(contentLength == 0) return 0;
+        return this.size + 1;
+    }
+
+    /**
+     * @return offset of first byte of message at position
+     */
+    public long getMessageStart(int position) {
+        if(position == 0) return 0;
+        return this.get(position - 1);
+    }
+
+    /**
+     * @param position message position
+     * @param contentLength length of message content - required to calculate length of last message
+     * @return length of message at position
+     */
+    public long getMessageLength(int position, long contentLength) {
+        long end = position < this.size ? this.get(position) : contentLength;
+        return end - this.getMessageStart(position);
+    }
+
+    /**
+     * @return read only list view. Entries are boxed when accessed - prefer get(int).
+     */
+    public List<Long> asList() {
+        return new AbstractList<Long>() {
+            @Override
+            public Long get(int index) {
+                return ASAPOffsetIndex.this.get(index);
+            }
+
+            @Override
+            public int size() {
+                return ASAPOffsetIndex.this.size;
+            }
+        };
+    }
+}
@@ -7,6 +7,14 @@ public interface ASAPOnlineMessageSender {
     void sendASAPAssimilateMessage(CharSequence format, CharSequence urlTarget, Set<CharSequence> recipients,
                                    byte[] messageAsBytes, int era) throws IOException, ASAPException;
 
+    /**
+     * Send a number of messages in one assimilate PDU
+     * @param messagesAsBytes concatenated messages
+     * @param offsets start of each message - except the first one
+     */
+    void sendASAPAssimilateMessage(CharSequence format, CharSequence urlTarget, Set<CharSequence> recipients,
+                                   byte[] messagesAsBytes, long[] offsets, int era) throws IOException, ASAPException;
+
     void sendASAPAssimilateMessage(CharSequence format, CharSequence urlTarget, CharSequence recipient,
                                    byte[] messageAsBytes, int era) throws IOException, ASAPException;
 
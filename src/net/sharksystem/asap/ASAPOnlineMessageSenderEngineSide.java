@@ -6,6 +6,7 @@ import net.sharksystem.asap.protocol.ASAP_1_0;
 import net.sharksystem.asap.protocol.ASAP_Modem_Impl;
 import net.sharksystem.asap.util.Log;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -35,6 +36,10 @@ public class ASAPOnlineMessageSenderEngineSide extends ASAPAbstractOnlineMessage
     public void sendASAPAssimilateMessage(CharSequence format, CharSequence uri, byte[] messageAsBytes, int era)
             throws IOException, ASAPException {
 
+        this.sendASAPAssimilateMessage(format, uri, this.getOnlinePeers(), messageAsBytes, era);
+    }
+
+    private Set<CharSequence> getOnlinePeers() throws ASAPException {
         Set<CharSequence> onlinePeers = this.multiEngine.getOnlinePeers();
         if(onlinePeers == null || onlinePeers.size() < 1) {
             System.out.println(this.getLogStart() + "no online peers");
@@ -47,16 +52,26 @@ public class ASAPOnlineMessageSenderEngineSide extends ASAPAbstractOnlineMessage
             System.out.println(this.getLogStart() + peerName  + " is online");
         }
 
-        this.sendASAPAssimilateMessage(format, uri, onlinePeerList, messageAsBytes, era);
+        return onlinePeerList;
     }
 
     public void sendASAPAssimilateMessage(CharSequence format, CharSequence uri, Set<CharSequence> recipients,
                                           byte[] messageAsBytes, int era) throws IOException, ASAPException {
 
+        this.sendASAPAssimilateMessage(format, uri, recipients, messageAsBytes, null, era);
+    }
+
+    public void sendASAPAssimilateMessage(CharSequence format, CharSequence uri, Set<CharSequence> recipients,
+                                          byte[] messageAsBytes, long[] offsets, int era)
+            throws IOException, ASAPException {
+
+        if(messageAsBytes == null || messageAsBytes.length == 0) {
+            throw new ASAPException("message must not be null");
+        }
+
         if(recipients == null || recipients.size() < 1) {
             // replace empty recipient list with list of online peers.
-            this.sendASAPAssimilateMessage(format, uri, messageAsBytes, era);
-            return;
+            recipients = this.getOnlinePeers();
         }
 
         StringBuilder sb = Log.startLog(this);
@@ -91,8 +106,9 @@ public class ASAPOnlineMessageSenderEngineSide extends ASAPAbstractOnlineMessage
 
                 // serialize message for this recipient
                 ByteArrayOutputStream asapPDUBytes = new ByteArrayOutputStream();
-                protocol.assimilate(this.multiEngine.getOwner(), recipient, format, uri, era, null, // no offsets
-                        messageAsBytes, asapPDUBytes, asapConnection.isSigned());
+                protocol.assimilate(this.multiEngine.getOwner(), recipient, format, uri, era,
+                        messageAsBytes.length, offsets, new ByteArrayInputStream(messageAsBytes),
+                        asapPDUBytes, asapConnection.isSigned());
 
                 // I guess maps are synchronized
                 List<byte[]> messageList = this.messages.get(recipient);
@@ -103,9 +119,9 @@ public class ASAPOnlineMessageSenderEngineSide extends ASAPAbstractOnlineMessage
 
                 messageList.add(asapPDUBytes.toByteArray());
 
-                // subscribe and remember it
-                asapConnection.addOnlineMessageSource(this);
+                // remember and subscribe - connection can send right away
                 this.connectionPeers.put(asapConnection, recipient);
+                asapConnection.addOnlineMessageSource(this);
 
             } else {
                 sb = Log.startLog(this);
@@ -26,6 +26,15 @@ public class ASAPSingleProcessOnlineMessageSender
                 format, uri, recipients, messageAsBytes, era);
     }
 
+    @Override
+    public void sendASAPAssimilateMessage(CharSequence format, CharSequence uri, Set<CharSequence> recipients,
+                                          byte[] messagesAsBytes, long[] offsets, int era)
+            throws IOException, ASAPException {
+
+        this.asapOnlineMessageSenderEngineSide.sendASAPAssimilateMessage(
+                format, uri, recipients, messagesAsBytes, offsets, era);
+    }
+
     public void sendASAPAssimilateMessage(CharSequence format, CharSequence uri, byte[] messageAsBytes)
             throws IOException, ASAPException {
         this.sendASAPAssimilateMessage(format, uri, messageAsBytes, ASAPEngineFS.DEFAULT_INIT_ERA);
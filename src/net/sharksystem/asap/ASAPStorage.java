@@ -192,6 +192,15 @@ public interface ASAPStorage {
 
     void add(CharSequence urlTarget, byte[] messageAsBytes) throws IOException;
 
+    /**
+     * Add a number of messages at once. Messages are appended in one pass, channel meta data and
+     * storage status are written once and online peers get a single PDU with all messages.
+     * @param urlTarget chunk address
+     * @param messages messages to be added
+     * @throws IOException
+     */
+    void addAll(CharSequence urlTarget, Iterable<byte[]> messages) throws IOException;
+
     void attachASAPMessageAddListener(ASAPOnlineMessageSender asapOnlineMessageSender);
 
     void detachASAPMessageAddListener();
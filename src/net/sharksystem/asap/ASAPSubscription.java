@@ -0,0 +1,132 @@
+package net.sharksystem.asap;
+
+import net.sharksystem.asap.protocol.ASAP_1_0;
+import net.sharksystem.asap.protocol.ASAP_Interest_PDU_1_0;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * What a peer wants to get of an application: chunks of a source peer (the one who wrote them), of a
+ * channel and / or within a window of eras of that source peer. Any unset part matches anything. A
+ * subscription with nothing set is the blanket interest of ASAP 1.0.
+ *
+ * Subscriptions are sent as interests. Peers only stream matching chunks.
+ *
+ * @author thsc
+ */
+public class ASAPSubscription {
+    public static final int ANY_ERA = ASAP_1_0.ERA_NOT_DEFINED;
+
+    private final String sourcePeer;
+    private final String uri;
+    private final int eraFrom;
+    private final int eraTo;
+
+    /**
+     * @param sourcePeer peer who wrote those chunks - any if null
+     * @param uri channel - any if null
+     * @param eraFrom first era of source peer - ANY_ERA means no lower limit
+     * @param eraTo last era of source peer - ANY_ERA means no upper limit. Window wraps around if
+     *              smaller than eraFrom.
+     */
+    public ASAPSubscription(CharSequence sourcePeer, CharSequence uri, int eraFrom, int eraTo)
+            throws ASAPException {
+
+        if(eraFrom < ANY_ERA || eraTo < ANY_ERA) {
+            throw new ASAPException("era cannot be smaller than " + ANY_ERA);
+        }
+
+        this.sourcePeer = sourcePeer == null ? null : sourcePeer.toString();
+        this.uri = uri == null ? null : uri.toString();
+        this.eraFrom = eraFrom;
+        this.eraTo = eraTo;
+    }
+
+    /**
+     * @param uri channel - any if null
+     */
+    public ASAPSubscription(CharSequence uri) throws ASAPException {
+        this(null, uri, ANY_ERA, ANY_ERA);
+    }
+
+    static ASAPSubscription fromInterest(ASAP_Interest_PDU_1_0 interest) throws ASAPException {
+        return new ASAPSubscription(
+                interest.sourcePeerSet() ? interest.getSourcePeer() : null,
+                interest.channelSet() ? interest.getChannelUri() : null,
+                interest.eraFromSet() ? interest.getEraFrom() : ANY_ERA,
+                interest.eraToSet() ? interest.getEraTo() : ANY_ERA);
+    }
+
+    public String getSourcePeer() { return this.sourcePeer; }
+
+    public String getUri() { return this.uri; }
+
+    public int getEraFrom() { return this.eraFrom; }
+
+    public int getEraTo() { return this.eraTo; }
+
+    /**
+     * @return true if anything matches
+     */
+    public boolean isBlanket() {
+        return this.sourcePeer == null && this.uri == null && this.eraFrom == ANY_ERA && this.eraTo == ANY_ERA;
+    }
+
+    public boolean matchesSourcePeer(CharSequence sourcePeer) {
+        return this.sourcePeer == null || this.sourcePeer.equals(sourcePeer.toString());
+    }
+
+    public boolean matchesChannel(CharSequence uri) {
+        return this.uri == null || this.uri.equals(uri.toString());
+    }
+
+    public boolean matchesEra(int era) {
+        if(this.eraFrom == ANY_ERA && this.eraTo == ANY_ERA) return true;
+        if(this.eraFrom == ANY_ERA) return era <= this.eraTo;
+        if(this.eraTo == ANY_ERA) return era >= this.eraFrom;
+
+        if(this.eraFrom <= this.eraTo) {
+            //INIT ---- from-> +++++++++++++ <-to ----- MAX
+            return era >= this.eraFrom && era <= this.eraTo;
+        }
+
+        // INIT+++++++++<-to ------ from->++++++MAX
+        return era >= this.eraFrom || era <= this.eraTo;
+    }
+
+    /**
+     * send this subscription as interest
+     */
+    public void sendInterest(CharSequence owner, CharSequence format, ASAP_1_0 protocol, OutputStream os)
+            throws IOException, ASAPException {
+
+        protocol.interest(owner, this.sourcePeer, format, this.uri, this.eraFrom, this.eraTo, os, false);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(!(o instanceof ASAPSubscription)) return false;
+        ASAPSubscription other = (ASAPSubscription) o;
+
+        return this.eraFrom == other.eraFrom && this.eraTo == other.eraTo
+                && (this.sourcePeer == null ? other.sourcePeer == null : this.sourcePeer.equals(other.sourcePeer))
+                && (this.uri == null ? other.uri == null : this.uri.equals(other.uri));
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = this.sourcePeer == null ? 0 : this.sourcePeer.hashCode();
+        hash = 31 * hash + (this.uri == null ? 0 : this.uri.hashCode());
+        hash = 31 * hash + this.eraFrom;
+        return 31 * hash + this.eraTo;
+    }
+
+    @Override
+    public String toString() {
+        return "sourcePeer: " + (this.sourcePeer == null ? "any" : this.sourcePeer)
+                + " | uri: " + (this.uri == null ? "any" : this.uri)
+                + " | eras: " + (this.eraFrom == ANY_ERA ? "any" : String.valueOf(this.eraFrom))
+                + " - " + (this.eraTo == ANY_ERA ? "any" : String.valueOf(this.eraTo));
+    }
+}
@@ -0,0 +1,518 @@
+package net.sharksystem.asap;
+
+import net.sharksystem.asap.util.Log;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remembers per peer what was already handled: a chunk (sender, era, channel) is handled up to a length
+ * if its bytes up to that length were sent to that peer or if that chunk is not meant for that peer.
+ * Only bytes beyond that length are to be sent. Chunks are not even read if nothing was added.
+ *
+ * Index remains small: entries of own eras are dropped when an era is completely synchronized with a
+ * peer - last seen era tells the rest. Scoped interests do not move last seen era - index remembers
+ * with which era a sync of that subscription starts next time. Those eras are dropped with next blanket
+ * interest of that peer. Entries of chunks which were sent completely and cannot grow any
+ * longer are dropped - those chunks remember to whom they were delivered. Entries of dropped chunks are
+ * dropped.
+ *
+ * Receiving side: chunks whose transfer was interrupted are remembered until a later transfer of that
+ * chunk completes. Peers are told what is held of them - they only send the missing suffix.
+ *
+ * <pre>
+ * index file: MAGIC | VERSION | snapshot | record*
+ * snapshot: #peers (PEER #entries (SENDER ERA URI LENGTH)*)* #incomplete (SENDER ERA URI)*
+ *           #peers (PEER #subscriptions (SUBSCRIPTION ERA)*)*
+ * subscription: [SOURCE_PEER] [URI] ERA_FROM ERA_TO - peer and uri with a leading flag
+ * record: TYPE | record specific data
+ * </pre>
+ *
+ * Changes are journaled like chunk meta data (see {@link ASAPJournalFile}).
+ *
+ * @author thsc
+ */
+class ASAPSyncIndex extends ASAPJournalFile {
+    static final String SYNC_INDEX_FILENAME = "asapSyncIndex";
+
+    /** nothing known about that chunk */
+    static final long UNKNOWN = -1;
+
+    private static final int MAGIC = 0x41535349;
+    private static final byte VERSION = 1;
+
+    private static final byte HANDLED_RECORD = 1;
+    private static final byte FORGET_RECORD = 2;
+    private static final byte ERA_COMPLETED_RECORD = 3;
+    private static final byte INCOMPLETE_RECORD = 4;
+    private static final byte COMPLETE_RECORD = 5;
+    private static final byte CHUNK_DROPPED_RECORD = 6;
+    private static final byte SUBSCRIPTION_ERA_RECORD = 7;
+    private static final byte BLANKET_SYNC_RECORD = 8;
+
+    /** peer -> chunk key -> handled length */
+    private Map<String, Map<ChunkKey, Long>> peers = new HashMap<>();
+
+    /** received chunks with interrupted transfer */
+    private Set<ChunkKey> incomplete = new HashSet<>();
+
+    /** peer -> scoped subscription -> era to start next sync with */
+    private Map<String, Map<ASAPSubscription, Integer>> subscriptionEras = new HashMap<>();
+
+    /** received chunks which are written right now - not persistent */
+    private final Set<ChunkKey> receiving = new HashSet<>();
+
+    static class ChunkKey {
+        private final String sender;
+        private final int era;
+        private final String uri;
+
+        ChunkKey(CharSequence sender, int era, CharSequence uri) {
+            this.sender = sender.toString();
+            this.era = era;
+            this.uri = uri.toString();
+        }
+
+        String getSender() { return this.sender; }
+
+        int getEra() { return this.era; }
+
+        String getUri() { return this.uri; }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof ChunkKey)) return false;
+            ChunkKey other = (ChunkKey) o;
+            return this.era == other.era && this.sender.equals(other.sender) && this.uri.equals(other.uri);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * this.sender.hashCode() + this.era) + this.uri.hashCode();
+        }
+    }
+
+    /**
+     * @param indexFile index is kept in memory only if null
+     */
+    ASAPSyncIndex(File indexFile) {
+        super(indexFile, MAGIC, VERSION, "sync index");
+
+        try {
+            this.load();
+        } catch (IOException e) {
+            Log.writeLogErr(this, "cannot read sync index - start with empty one: " + e.getLocalizedMessage());
+            this.reset();
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    //                                      sending side                                          //
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @return number of bytes of that chunk which are already handled for that peer - UNKNOWN if there
+     * is no entry. That chunk was not handled or was delivered completely in that case.
+     */
+    synchronized long getHandledLength(CharSequence peer, CharSequence sender, int era, CharSequence uri)
+            throws IOException {
+
+        this.refresh();
+
+        Map<ChunkKey, Long> chunks = this.peers.get(peer.toString());
+        if(chunks == null) return UNKNOWN;
+
+        Long length = chunks.get(new ChunkKey(sender, era, uri));
+        return length == null ? UNKNOWN : length;
+    }
+
+    synchronized void setHandledLength(CharSequence peer, CharSequence sender, int era, CharSequence uri,
+                                       long length) throws IOException {
+
+        this.refresh();
+        ChunkKey key = new ChunkKey(sender, era, uri);
+        this.putHandledLength(peer.toString(), key, length);
+
+        DataOutputStream dos = this.startRecord(HANDLED_RECORD);
+        dos.writeUTF(peer.toString());
+        this.writeChunkKey(key, dos);
+        dos.writeLong(length);
+        this.appendRecord();
+    }
+
+    /**
+     * Set handled length unless there is an entry.
+     */
+    synchronized void keepHandledLength(CharSequence peer, CharSequence sender, int era, CharSequence uri,
+                                        long length) throws IOException {
+
+        if(this.getHandledLength(peer, sender, era, uri) == UNKNOWN) {
+            this.setHandledLength(peer, sender, era, uri, length);
+        }
+    }
+
+    /**
+     * That chunk was sent up to length and was marked as delivered to that peer. Entry is dropped -
+     * unless that chunk can still grow: a received chunk which is written right now or whose transfer
+     * was interrupted.
+     */
+    synchronized void setDelivered(CharSequence peer, CharSequence sender, int era, CharSequence uri,
+                                   long length) throws IOException {
+
+        this.refresh();
+        ChunkKey key = new ChunkKey(sender, era, uri);
+        if(this.receiving.contains(key) || this.incomplete.contains(key)) {
+            this.setHandledLength(peer, sender, era, uri, length);
+            return;
+        }
+
+        Map<ChunkKey, Long> chunks = this.peers.get(peer.toString());
+        if(chunks == null || !chunks.containsKey(key)) return;
+        this.removeHandledLength(peer.toString(), key);
+
+        DataOutputStream dos = this.startRecord(FORGET_RECORD);
+        dos.writeUTF(peer.toString());
+        this.writeChunkKey(key, dos);
+        this.appendRecord();
+    }
+
+    /**
+     * That era of that sender is completely synchronized with that peer - forget its chunks.
+     */
+    synchronized void eraCompleted(CharSequence peer, CharSequence sender, int era) throws IOException {
+        this.refresh();
+        if(!this.removeEra(peer.toString(), sender.toString(), era)) return;
+
+        DataOutputStream dos = this.startRecord(ERA_COMPLETED_RECORD);
+        dos.writeUTF(peer.toString());
+        dos.writeUTF(sender.toString());
+        dos.writeInt(era);
+        this.appendRecord();
+    }
+
+    /**
+     * That chunk is gone - forget it.
+     */
+    synchronized void chunkDropped(CharSequence sender, int era, CharSequence uri) throws IOException {
+        this.refresh();
+        ChunkKey key = new ChunkKey(sender, era, uri);
+        if(!this.removeChunk(key)) return;
+
+        DataOutputStream dos = this.startRecord(CHUNK_DROPPED_RECORD);
+        this.writeChunkKey(key, dos);
+        this.appendRecord();
+    }
+
+    /**
+     * @return era a sync of that scoped subscription starts with - null if last seen era tells
+     */
+    synchronized Integer getSubscriptionEra(CharSequence peer, ASAPSubscription subscription) throws IOException {
+        this.refresh();
+
+        Map<ASAPSubscription, Integer> eras = this.subscriptionEras.get(peer.toString());
+        return eras == null ? null : eras.get(subscription);
+    }
+
+    /**
+     * Anything of that scoped subscription before that era was sent to that peer.
+     */
+    synchronized void setSubscriptionEra(CharSequence peer, ASAPSubscription subscription, int era)
+            throws IOException {
+
+        this.refresh();
+        this.putSubscriptionEra(peer.toString(), subscription, era);
+
+        DataOutputStream dos = this.startRecord(SUBSCRIPTION_ERA_RECORD);
+        dos.writeUTF(peer.toString());
+        this.writeSubscription(subscription, dos);
+        dos.writeInt(era);
+        this.appendRecord();
+    }
+
+    /**
+     * Blanket interest of that peer moved last seen era - forget eras of scoped subscriptions.
+     */
+    synchronized void blanketSync(CharSequence peer) throws IOException {
+        this.refresh();
+        if(this.subscriptionEras.remove(peer.toString()) == null) return;
+
+        DataOutputStream dos = this.startRecord(BLANKET_SYNC_RECORD);
+        dos.writeUTF(peer.toString());
+        this.appendRecord();
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    //                                     receiving side                                         //
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * That received chunk is written - it grows. Not persistent.
+     */
+    synchronized void startReceiving(CharSequence sender, int era, CharSequence uri) {
+        this.receiving.add(new ChunkKey(sender, era, uri));
+    }
+
+    synchronized void stopReceiving(CharSequence sender, int era, CharSequence uri) {
+        this.receiving.remove(new ChunkKey(sender, era, uri));
+    }
+
+    /**
+     * Transfer of that received chunk was interrupted - sender is to be told what we got.
+     */
+    synchronized void setIncomplete(CharSequence sender, int era, CharSequence uri) throws IOException {
+        this.refresh();
+        ChunkKey key = new ChunkKey(sender, era, uri);
+        if(!this.incomplete.add(key)) return;
+
+        DataOutputStream dos = this.startRecord(INCOMPLETE_RECORD);
+        this.writeChunkKey(key, dos);
+        this.appendRecord();
+    }
+
+    /**
+     * A transfer of that received chunk completed - nothing to report any longer.
+     */
+    synchronized void setComplete(CharSequence sender, int era, CharSequence uri) throws IOException {
+        this.refresh();
+        if(this.incomplete.isEmpty()) return;
+
+        ChunkKey key = new ChunkKey(sender, era, uri);
+        if(!this.incomplete.remove(key)) return;
+
+        DataOutputStream dos = this.startRecord(COMPLETE_RECORD);
+        this.writeChunkKey(key, dos);
+        this.appendRecord();
+    }
+
+    synchronized List<ChunkKey> getIncompleteChunks() throws IOException {
+        this.refresh();
+        return new ArrayList<>(this.incomplete);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    //                                       in memory                                            //
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private void putHandledLength(String peer, ChunkKey key, long length) {
+        Map<ChunkKey, Long> chunks = this.peers.get(peer);
+        if(chunks == null) {
+            chunks = new HashMap<>();
+            this.peers.put(peer, chunks);
+        }
+
+        chunks.put(key, length);
+    }
+
+    private void removeHandledLength(String peer, ChunkKey key) {
+        Map<ChunkKey, Long> chunks = this.peers.get(peer);
+        if(chunks == null) return;
+
+        chunks.remove(key);
+        if(chunks.isEmpty()) this.peers.remove(peer);
+    }
+
+    private boolean removeEra(String peer, String sender, int era) {
+        Map<ChunkKey, Long> chunks = this.peers.get(peer);
+        if(chunks == null) return false;
+
+        boolean changed = false;
+        Iterator<ChunkKey> keyIter = chunks.keySet().iterator();
+        while(keyIter.hasNext()) {
+            ChunkKey key = keyIter.next();
+            if(key.era == era && key.sender.equals(sender)) {
+                keyIter.remove();
+                changed = true;
+            }
+        }
+
+        if(chunks.isEmpty()) this.peers.remove(peer);
+        return changed;
+    }
+
+    private void putSubscriptionEra(String peer, ASAPSubscription subscription, int era) {
+        Map<ASAPSubscription, Integer> eras = this.subscriptionEras.get(peer);
+        if(eras == null) {
+            eras = new HashMap<>();
+            this.subscriptionEras.put(peer, eras);
+        }
+
+        eras.put(subscription, era);
+    }
+
+    private boolean removeChunk(ChunkKey key) {
+        boolean changed = this.incomplete.remove(key);
+
+        Iterator<Map<ChunkKey, Long>> peerIter = this.peers.values().iterator();
+        while(peerIter.hasNext()) {
+            Map<ChunkKey, Long> chunks = peerIter.next();
+            if(chunks.remove(key) != null) changed = true;
+            if(chunks.isEmpty()) peerIter.remove();
+        }
+
+        return changed;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    //                                          journal                                           //
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private void writeChunkKey(ChunkKey key, DataOutputStream dos) throws IOException {
+        dos.writeUTF(key.sender);
+        dos.writeInt(key.era);
+        dos.writeUTF(key.uri);
+    }
+
+    private ChunkKey readChunkKey(DataInputStream dis) throws IOException {
+        String sender = dis.readUTF();
+        int era = dis.readInt();
+        return new ChunkKey(sender, era, dis.readUTF());
+    }
+
+    private void writeSubscription(ASAPSubscription subscription, DataOutputStream dos) throws IOException {
+        dos.writeBoolean(subscription.getSourcePeer() != null);
+        if(subscription.getSourcePeer() != null) dos.writeUTF(subscription.getSourcePeer());
+        dos.writeBoolean(subscription.getUri() != null);
+        if(subscription.getUri() != null) dos.writeUTF(subscription.getUri());
+        dos.writeInt(subscription.getEraFrom());
+        dos.writeInt(subscription.getEraTo());
+    }
+
+    private ASAPSubscription readSubscription(DataInputStream dis) throws IOException {
+        String sourcePeer = dis.readBoolean() ? dis.readUTF() : null;
+        String uri = dis.readBoolean() ? dis.readUTF() : null;
+        int eraFrom = dis.readInt();
+        int eraTo = dis.readInt();
+
+        try {
+            return new ASAPSubscription(sourcePeer, uri, eraFrom, eraTo);
+        } catch (ASAPException e) {
+            throw new IOException("corrupted subscription in sync index: " + e.getLocalizedMessage());
+        }
+    }
+
+    @Override
+    protected void clear() {
+        this.peers = new HashMap<>();
+        this.incomplete = new HashSet<>();
+        this.subscriptionEras = new HashMap<>();
+    }
+
+    @Override
+    protected int getSnapshotSize() {
+        int size = this.peers.size() + this.incomplete.size() + this.subscriptionEras.size();
+        for(Map<ChunkKey, Long> chunks : this.peers.values()) {
+            size += chunks.size();
+        }
+        for(Map<ASAPSubscription, Integer> eras : this.subscriptionEras.values()) {
+            size += eras.size();
+        }
+        return size;
+    }
+
+    @Override
+    protected void writeSnapshot(DataOutputStream dos) throws IOException {
+        dos.writeInt(this.peers.size());
+        for(Map.Entry<String, Map<ChunkKey, Long>> peer : this.peers.entrySet()) {
+            dos.writeUTF(peer.getKey());
+            dos.writeInt(peer.getValue().size());
+            for(Map.Entry<ChunkKey, Long> chunk : peer.getValue().entrySet()) {
+                this.writeChunkKey(chunk.getKey(), dos);
+                dos.writeLong(chunk.getValue());
+            }
+        }
+
+        dos.writeInt(this.incomplete.size());
+        for(ChunkKey chunk : this.incomplete) {
+            this.writeChunkKey(chunk, dos);
+        }
+
+        dos.writeInt(this.subscriptionEras.size());
+        for(Map.Entry<String, Map<ASAPSubscription, Integer>> peer : this.subscriptionEras.entrySet()) {
+            dos.writeUTF(peer.getKey());
+            dos.writeInt(peer.getValue().size());
+            for(Map.Entry<ASAPSubscription, Integer> subscription : peer.getValue().entrySet()) {
+                this.writeSubscription(subscription.getKey(), dos);
+                dos.writeInt(subscription.getValue());
+            }
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    //                                          reading                                           //
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private void readPeers(int numberPeers, DataInputStream dis) throws IOException {
+        for(int i = 0; i < numberPeers; i++) {
+            String peer = dis.readUTF();
+            int numberChunks = dis.readInt();
+            Map<ChunkKey, Long> chunks = new HashMap<>();
+            for(int j = 0; j < numberChunks; j++) {
+                ChunkKey key = this.readChunkKey(dis);
+                chunks.put(key, dis.readLong());
+            }
+            if(!chunks.isEmpty()) this.peers.put(peer, chunks);
+        }
+    }
+
+    private void readIncomplete(int numberIncomplete, DataInputStream dis) throws IOException {
+        for(int i = 0; i < numberIncomplete; i++) {
+            this.incomplete.add(this.readChunkKey(dis));
+        }
+    }
+
+    @Override
+    protected void readSnapshot(DataInputStream dis) throws IOException {
+        this.readPeers(dis.readInt(), dis);
+        this.readIncomplete(dis.readInt(), dis);
+        int numberPeers = dis.readInt();
+        for(int i = 0; i < numberPeers; i++) {
+            String peer = dis.readUTF();
+            int numberSubscriptions = dis.readInt();
+            for(int j = 0; j < numberSubscriptions; j++) {
+                ASAPSubscription subscription = this.readSubscription(dis);
+                this.putSubscriptionEra(peer, subscription, dis.readInt());
+            }
+        }
+    }
+
+    @Override
+    protected boolean replayRecord(int type, DataInputStream dis) throws IOException {
+        switch (type) {
+            case HANDLED_RECORD: {
+                String peer = dis.readUTF();
+                ChunkKey key = this.readChunkKey(dis);
+                this.putHandledLength(peer, key, dis.readLong());
+                break;
+            }
+            case FORGET_RECORD: {
+                String peer = dis.readUTF();
+                this.removeHandledLength(peer, this.readChunkKey(dis));
+                break;
+            }
+            case ERA_COMPLETED_RECORD: {
+                String peer = dis.readUTF();
+                String sender = dis.readUTF();
+                this.removeEra(peer, sender, dis.readInt());
+                break;
+            }
+            case INCOMPLETE_RECORD: this.incomplete.add(this.readChunkKey(dis)); break;
+            case COMPLETE_RECORD: this.incomplete.remove(this.readChunkKey(dis)); break;
+            case CHUNK_DROPPED_RECORD: this.removeChunk(this.readChunkKey(dis)); break;
+            case SUBSCRIPTION_ERA_RECORD: {
+                String peer = dis.readUTF();
+                ASAPSubscription subscription = this.readSubscription(dis);
+                this.putSubscriptionEra(peer, subscription, dis.readInt());
+                break;
+            }
+            case BLANKET_SYNC_RECORD: this.subscriptionEras.remove(dis.readUTF()); break;
+            default: return false;
+        }
+        return true;
+    }
+}
@@ -60,6 +60,20 @@ public interface MultiASAPEngineFS {
 
     public void pushInterests(OutputStream os) throws IOException, ASAPException;
 
+    /**
+     * Peers are asked for chunks matching subscriptions of that format only - for anything if there is
+     * none. Subscriptions are not stored - applications subscribe after each start.
+     * @throws ASAPException there is no engine for that format
+     */
+    void addSubscription(CharSequence format, ASAPSubscription subscription) throws ASAPException;
+
+    void removeSubscription(CharSequence format, ASAPSubscription subscription);
+
+    /**
+     * @return subscriptions of that format - empty if anything is requested
+     */
+    Set<ASAPSubscription> getSubscriptions(CharSequence format);
+
     Set<CharSequence> getOnlinePeers();
 
     boolean existASAPConnection(CharSequence recipient);
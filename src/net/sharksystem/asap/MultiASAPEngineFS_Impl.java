@@ -13,6 +13,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
 
 public class MultiASAPEngineFS_Impl implements
         MultiASAPEngineFS, ASAPConnectionListener, ThreadFinishedListener/*, ASAPChunkReceivedListener */ {
@@ -23,6 +24,7 @@ public class MultiASAPEngineFS_Impl implements
     private CharSequence owner;
     private HashMap<CharSequence, EngineSetting> folderMap;
     private final long maxExecutionTime;
+    private final boolean virtualThreads;
 
     public static MultiASAPEngineFS createMultiEngine(CharSequence owner, CharSequence rootFolder,
                                                       long maxExecutionTime,
@@ -30,7 +32,22 @@ public class MultiASAPEngineFS_Impl implements
                                                       ASAPChunkReceivedListener listener)
                             throws ASAPException, IOException {
 
-        return new MultiASAPEngineFS_Impl(owner, rootFolder, maxExecutionTime, supportFormats, listener);
+        return new MultiASAPEngineFS_Impl(owner, rootFolder, maxExecutionTime, supportFormats, listener, false);
+    }
+
+    /**
+     * @param virtualThreads connections, pdu processing and online message sending run on virtual threads
+     *                       - if runtime supports it (Java 21+). Platform threads are used otherwise.
+     */
+    public static MultiASAPEngineFS createMultiEngine(CharSequence owner, CharSequence rootFolder,
+                                                      long maxExecutionTime,
+                                                      Collection<CharSequence> supportFormats,
+                                                      ASAPChunkReceivedListener listener,
+                                                      boolean virtualThreads)
+                            throws ASAPException, IOException {
+
+        return new MultiASAPEngineFS_Impl(owner, rootFolder, maxExecutionTime, supportFormats, listener,
+                virtualThreads);
     }
 
     public static MultiASAPEngineFS createMultiEngine(CharSequence owner, CharSequence rootFolder, long maxExecutionTime,
@@ -52,13 +69,15 @@ public class MultiASAPEngineFS_Impl implements
      */
     private MultiASAPEngineFS_Impl(CharSequence owner, CharSequence rootFolderName, long maxExecutionTime,
                                    ASAPChunkReceivedListener listener) throws ASAPException, IOException {
-        this(owner, rootFolderName, maxExecutionTime, null, listener);
+        this(owner, rootFolderName, maxExecutionTime, null, listener, false);
     }
 
     private MultiASAPEngineFS_Impl(CharSequence owner, CharSequence rootFolderName, long maxExecutionTime,
-        Collection<CharSequence> apps, ASAPChunkReceivedListener listener) throws ASAPException, IOException {
+        Collection<CharSequence> apps, ASAPChunkReceivedListener listener, boolean virtualThreads)
+            throws ASAPException, IOException {
         this.owner = owner;
         this.maxExecutionTime = maxExecutionTime;
+        this.virtualThreads = virtualThreads;
         this.rootFolderName = rootFolderName;
         this.listener = listener;
 
@@ -259,9 +278,12 @@ public class MultiASAPEngineFS_Impl implements
     ////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
     public ASAPConnection handleConnection(InputStream is, OutputStream os) throws IOException, ASAPException {
+        ExecutorService executorService = this.virtualThreads ?
+                ASAPConnectionExecutor.getVirtualThreadExecutor() : ASAPConnectionExecutor.getSharedExecutor();
+
         ASAPPersistentConnection asapConnection = new ASAPPersistentConnection(
                 is, os, this, new ASAP_Modem_Impl(),
-                maxExecutionTime, this, this);
+                maxExecutionTime, this, this, executorService);
 
         StringBuilder sb = new StringBuilder();
         sb.append(this.getLogStart());
@@ -270,8 +292,7 @@ public class MultiASAPEngineFS_Impl implements
 
         // this.announceNewEra(); announce when connection is actually established
 
-        Thread thread = new Thread(asapConnection);
-        thread.start();
+        Thread thread = ASAPConnectionExecutor.startThread(asapConnection, this.virtualThreads);
 
         // remember
         this.runningThreads.add(thread);
@@ -294,7 +315,7 @@ public class MultiASAPEngineFS_Impl implements
     }
 
     /** all running threads */
-    private List<Thread> runningThreads = new ArrayList<>();
+    private List<Thread> runningThreads = Collections.synchronizedList(new ArrayList<Thread>());
 
     @Override
     public void finished(Thread thread) {
@@ -342,11 +363,15 @@ public class MultiASAPEngineFS_Impl implements
         return true;
     }
 
+    // don't list thousands of peers with each connection
+    private static final int MAX_LOGGED_PEERS = 10;
+
     private void notifyOnlinePeersChangedListener() {
         if(!this.connectedThreads.isEmpty()) {
             System.out.println(this.getLogStart()
                     + "#online peers: " + this.connectedThreads.keySet().size()
-                    + " | " + Helper.collection2String(this.connectedThreads.keySet()));
+                    + (this.connectedThreads.size() > MAX_LOGGED_PEERS ? "" :
+                        " | " + Helper.collection2String(this.connectedThreads.keySet())));
         } else {
             System.out.println(this.getLogStart() + "no (more) peers: ");
         }
@@ -362,7 +387,8 @@ public class MultiASAPEngineFS_Impl implements
         if(!this.connectedThreads.isEmpty()) {
             System.out.println(this.getLogStart()
                     + "getOnlinePeers called | #online peers: " + this.connectedThreads.keySet().size()
-                    + " | " + Helper.collection2String(this.connectedThreads.keySet()));
+                    + (this.connectedThreads.size() > MAX_LOGGED_PEERS ? "" :
+                        " | " + Helper.collection2String(this.connectedThreads.keySet())));
         } else {
             System.out.println(this.getLogStart() + "getOnlinePeers called | no (more) peers: ");
         }
@@ -371,7 +397,7 @@ public class MultiASAPEngineFS_Impl implements
     }
 
     @Override
-    public void asapConnectionStarted(String peerName, ASAPConnection thread) {
+    public synchronized void asapConnectionStarted(String peerName, ASAPConnection thread) {
         if(thread == null) {
             StringBuilder sb = new StringBuilder();
             sb.append(this.getLogStart());
@@ -464,6 +490,25 @@ public class MultiASAPEngineFS_Impl implements
             System.out.println(this.getLogStart() + "no more apps/formats on that engine - no interests to be sent");
         }
 
+        // announce protocol features before anything else - ignored by peers not supporting it
+        ASAPCapabilities.sendCapabilities(this.owner, protocol, os);
+
+        // tell what we got of interrupted transfers - remote peer sends only the rest
+        for(CharSequence format : this.folderMap.keySet()) {
+            ASAPEngine engine;
+            try {
+                engine = this.getEngineByFormat(format);
+            }
+            catch(ASAPException e) {
+                continue; // engine does not exist
+            }
+
+            for(ASAPResumeReport report : engine.getResumeReports()) {
+                System.out.println(this.getLogStart() + "send resume report: " + report);
+                report.send(this.owner, protocol, os);
+            }
+        }
+
         // management messages must be sent first - if any
         try {
             ASAPEngine managementEngine = this.getEngineByFormat(ASAP_1_0.ASAP_MANAGEMENT_FORMAT);
@@ -476,8 +521,61 @@ public class MultiASAPEngineFS_Impl implements
         // issue an interest for each owner / format combination
         for(CharSequence format : this.folderMap.keySet()) {
             if(format.toString().equalsIgnoreCase(ASAP_1_0.ASAP_MANAGEMENT_FORMAT)) continue; // already sent
-            System.out.println(this.getLogStart() + "send interest for app/format: " + format);
-            protocol.interest(this.owner, null, format,null, -1, -1, os, false);
+
+            Set<ASAPSubscription> subscriptions = this.getSubscriptions(format);
+            if(subscriptions.isEmpty()) {
+                System.out.println(this.getLogStart() + "send interest for app/format: " + format);
+                protocol.interest(this.owner, null, format,null, -1, -1, os, false);
+            } else {
+                // only what was subscribed
+                for(ASAPSubscription subscription : subscriptions) {
+                    System.out.println(this.getLogStart() + "send interest for app/format: " + format
+                            + " | " + subscription);
+                    subscription.sendInterest(this.owner, format, protocol, os);
+                }
+            }
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //                                              subscriptions                                             //
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private final Map<String, Set<ASAPSubscription>> subscriptions = new HashMap<>();
+
+    @Override
+    public void addSubscription(CharSequence format, ASAPSubscription subscription) throws ASAPException {
+        // there must be an engine
+        this.getEngineSettings(format);
+
+        synchronized(this.subscriptions) {
+            Set<ASAPSubscription> formatSubscriptions = this.subscriptions.get(format.toString());
+            if(formatSubscriptions == null) {
+                formatSubscriptions = new HashSet<>();
+                this.subscriptions.put(format.toString(), formatSubscriptions);
+            }
+            formatSubscriptions.add(subscription);
+        }
+    }
+
+    @Override
+    public void removeSubscription(CharSequence format, ASAPSubscription subscription) {
+        synchronized(this.subscriptions) {
+            Set<ASAPSubscription> formatSubscriptions = this.subscriptions.get(format.toString());
+            if(formatSubscriptions == null) return;
+
+            formatSubscriptions.remove(subscription);
+            if(formatSubscriptions.isEmpty()) this.subscriptions.remove(format.toString());
+        }
+    }
+
+    @Override
+    public Set<ASAPSubscription> getSubscriptions(CharSequence format) {
+        synchronized(this.subscriptions) {
+            Set<ASAPSubscription> formatSubscriptions = this.subscriptions.get(format.toString());
+            if(formatSubscriptions == null) return new HashSet<>();
+
+            return new HashSet<>(formatSubscriptions);
         }
     }
 
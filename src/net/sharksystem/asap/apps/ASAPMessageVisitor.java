@@ -0,0 +1,23 @@
+package net.sharksystem.asap.apps;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Visits messages without copying them.
+ *
+ * @see ASAPMessages#forEachMessage(ASAPMessageVisitor)
+ * @author thsc
+ */
+public interface ASAPMessageVisitor {
+    /**
+     * Called for each message. The buffer is read only. Its content is the message - from position
+     * to limit. The very same buffer object is re-used for following messages. It must not be kept after
+     * returning from this method - copy data if required.
+     *
+     * @param message message
+     * @return true: go ahead, false: stop visiting
+     * @throws IOException stops visiting, exception is passed to caller of forEachMessage
+     */
+    boolean visitMessage(ByteBuffer message) throws IOException;
+}
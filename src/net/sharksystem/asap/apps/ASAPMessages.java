@@ -3,6 +3,7 @@ package net.sharksystem.asap.apps;
 import net.sharksystem.asap.ASAPException;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 
 /**
@@ -53,6 +54,21 @@ public interface ASAPMessages {
      */
     Iterator<byte[]> getMessages() throws IOException;
 
+    /**
+     * Messages as read only buffers. Buffers are views on stored messages - no message is copied.
+     * @return iterator of all messages in chronological order
+     * @throws IOException
+     */
+    Iterator<ByteBuffer> getMessagesAsByteBuffer() throws IOException;
+
+    /**
+     * Visits all messages in chronological order. Messages are neither copied nor decoded and
+     * no object is created per message.
+     * @param visitor visitor
+     * @throws IOException couldn't read from storage or thrown by visitor
+     */
+    void forEachMessage(ASAPMessageVisitor visitor) throws IOException;
+
     /**
      * Returns a message with a given position
      * @param position
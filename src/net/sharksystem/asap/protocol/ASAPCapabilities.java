@@ -0,0 +1,116 @@
+package net.sharksystem.asap.protocol;
+
+import net.sharksystem.asap.ASAPException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Optional protocol features beyond ASAP 1.0.
+ *
+ * Peers announce their features with an interest in format ASAP_CAPABILITIES_FORMAT which is sent
+ * before any other PDU. Its channel parameter lists feature names separated by comma. A feature
+ * is used on a connection only if both sides announced it. Peers without capability support
+ * have no engine for that format and ignore that interest - they are served with plain ASAP 1.0.
+ *
+ * @author thsc
+ */
+public class ASAPCapabilities {
+    /** message offsets in assimilate PDUs are varint-delta encoded */
+    public static final String BINARY_OFFSETS = "binaryOffsets";
+
+    /** data of assimilate PDUs can be deflated - requires binary offsets */
+    public static final String DEFLATE = "deflate";
+
+    public static final String DELIMITER = ",";
+
+    private static final ASAPCapabilities LOCAL = new ASAPCapabilities(BINARY_OFFSETS + DELIMITER + DEFLATE);
+
+    private final Set<String> capabilities = new HashSet<>();
+
+    public ASAPCapabilities(CharSequence capabilityList) {
+        if(capabilityList == null) return;
+
+        for(String capability : capabilityList.toString().split(DELIMITER)) {
+            capability = capability.trim();
+            if(capability.length() > 0) this.capabilities.add(capability);
+        }
+    }
+
+    private ASAPCapabilities(Set<String> capabilities) {
+        this.capabilities.addAll(capabilities);
+    }
+
+    /**
+     * @return features this implementation supports
+     */
+    public static ASAPCapabilities getLocalCapabilities() {
+        return LOCAL;
+    }
+
+    public boolean supports(String capability) {
+        return this.capabilities.contains(capability);
+    }
+
+    public Set<String> getCapabilities() {
+        return Collections.unmodifiableSet(this.capabilities);
+    }
+
+    /**
+     * @return features supported by both sides
+     */
+    public ASAPCapabilities intersect(ASAPCapabilities other) {
+        Set<String> common = new HashSet<>(this.capabilities);
+        common.retainAll(other.capabilities);
+        return new ASAPCapabilities(common);
+    }
+
+    /**
+     * Switch on features in protocol engine. Nothing changes with unknown implementations.
+     */
+    public void configure(ASAP_1_0 protocol) {
+        if(protocol instanceof ASAP_Modem_Impl) {
+            ASAP_Modem_Impl modem = (ASAP_Modem_Impl) protocol;
+            modem.setBinaryOffsets(this.supports(BINARY_OFFSETS));
+            if(this.supports(DEFLATE)) {
+                // keep statistics if already compressing
+                if(modem.getCompression() == null) modem.setCompression(new ASAPCompression());
+            } else {
+                modem.setCompression(null);
+            }
+        }
+    }
+
+    static boolean isCapabilitiesPDU(ASAP_PDU_1_0 pdu) {
+        return pdu.getCommand() == ASAP_1_0.INTEREST_CMD
+                && ASAP_1_0.ASAP_CAPABILITIES_FORMAT.equalsIgnoreCase(pdu.getFormat());
+    }
+
+    static ASAPCapabilities fromPDU(ASAP_PDU_1_0 pdu) {
+        return new ASAPCapabilities(pdu.getChannelUri());
+    }
+
+    /**
+     * announce local capabilities - should be first pdu on a connection
+     */
+    public static void sendCapabilities(CharSequence owner, ASAP_1_0 protocol, OutputStream os)
+            throws IOException, ASAPException {
+
+        protocol.interest(owner, null, ASAP_1_0.ASAP_CAPABILITIES_FORMAT,
+                LOCAL.toString(), -1, -1, os, false);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for(String capability : this.capabilities) {
+            if(sb.length() > 0) sb.append(DELIMITER);
+            sb.append(capability);
+        }
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,152 @@
+package net.sharksystem.asap.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * DEFLATE compression of assimilate PDU data and its statistics.
+ *
+ * Data are compressed as a whole - message offsets still describe positions in uncompressed data.
+ * Data below a threshold are sent as they are, so are data that did not shrink. Data above a
+ * maximum are not compressed either: they must be kept in memory during (de-)compression.
+ *
+ * One object is meant to be used with one connection. Statistics can be read at any time.
+ *
+ * @author thsc
+ */
+public class ASAPCompression {
+    public static final int DEFAULT_THRESHOLD = 512;
+    public static final int DEFAULT_MAX_LENGTH = 16 * 1024 * 1024;
+
+    private final int threshold;
+    private final int maxLength;
+    private final int level;
+
+    // sent
+    private long compressedPDUs = 0;
+    private long uncompressedPDUs = 0;
+    private long bytesBeforeCompression = 0;
+    private long bytesAfterCompression = 0;
+    private long compressionNanos = 0;
+
+    // received
+    private long receivedCompressedPDUs = 0;
+    private long receivedCompressedBytes = 0;
+    private long receivedInflatedBytes = 0;
+
+    public ASAPCompression() {
+        this(DEFAULT_THRESHOLD, DEFAULT_MAX_LENGTH, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param threshold data shorter than that are not compressed
+     * @param maxLength data longer than that are not compressed
+     * @param level deflater level 0..9 (Deflater.DEFAULT_COMPRESSION is fine)
+     */
+    public ASAPCompression(int threshold, int maxLength, int level) {
+        this.threshold = threshold;
+        this.maxLength = maxLength;
+        this.level = level;
+    }
+
+    /**
+     * @return true if data of that length are worth a try
+     */
+    boolean shouldCompress(long length) {
+        if(length >= this.threshold && length <= this.maxLength) return true;
+
+        synchronized(this) {
+            this.uncompressedPDUs++;
+        }
+        return false;
+    }
+
+    /**
+     * @return compressed data or null if compression did not shrink data
+     */
+    byte[] deflate(byte[] data) {
+        long start = System.nanoTime();
+
+        Deflater deflater = new Deflater(this.level);
+        byte[] compressed;
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length / 2 + 64);
+            byte[] buffer = new byte[Math.min(data.length + 64, 64 * 1024)];
+            while(!deflater.finished()) {
+                int len = deflater.deflate(buffer);
+                baos.write(buffer, 0, len);
+                // give up as soon as it is clear that data do not shrink
+                if(baos.size() >= data.length) break;
+            }
+            compressed = deflater.finished() && baos.size() < data.length ? baos.toByteArray() : null;
+        }
+        finally {
+            deflater.end();
+        }
+
+        synchronized(this) {
+            this.compressionNanos += System.nanoTime() - start;
+            if(compressed == null) {
+                this.uncompressedPDUs++;
+            } else {
+                this.compressedPDUs++;
+                this.bytesBeforeCompression += data.length;
+                this.bytesAfterCompression += compressed.length;
+            }
+        }
+
+        return compressed;
+    }
+
+    synchronized void received(long compressedLength, long inflatedLength) {
+        this.receivedCompressedPDUs++;
+        this.receivedCompressedBytes += compressedLength;
+        this.receivedInflatedBytes += inflatedLength;
+    }
+
+    public int getThreshold() { return this.threshold; }
+
+    public int getMaxLength() { return this.maxLength; }
+
+    public synchronized long getCompressedPDUs() { return this.compressedPDUs; }
+
+    /**
+     * @return number of assimilate PDUs sent without compression: below threshold, above maximum or incompressible
+     */
+    public synchronized long getUncompressedPDUs() { return this.uncompressedPDUs; }
+
+    public synchronized long getBytesBeforeCompression() { return this.bytesBeforeCompression; }
+
+    public synchronized long getBytesAfterCompression() { return this.bytesAfterCompression; }
+
+    /**
+     * @return cpu time spent compressing - including unsuccessful attempts
+     */
+    public synchronized long getCompressionNanos() { return this.compressionNanos; }
+
+    /**
+     * @return compressed / uncompressed size of compressed PDUs - 1.0 if nothing was compressed
+     */
+    public synchronized double getCompressionRatio() {
+        if(this.bytesBeforeCompression == 0) return 1.0;
+        return (double) this.bytesAfterCompression / this.bytesBeforeCompression;
+    }
+
+    public synchronized long getReceivedCompressedPDUs() { return this.receivedCompressedPDUs; }
+
+    public synchronized long getReceivedCompressedBytes() { return this.receivedCompressedBytes; }
+
+    public synchronized long getReceivedInflatedBytes() { return this.receivedInflatedBytes; }
+
+    @Override
+    public synchronized String toString() {
+        return "compressed: " + this.compressedPDUs + " (" + this.bytesBeforeCompression + " -> "
+                + this.bytesAfterCompression + " bytes in " + this.compressionNanos / 1000000 + " ms)"
+                + " | uncompressed: " + this.uncompressedPDUs
+                + " | received compressed: " + this.receivedCompressedPDUs + " (" + this.receivedCompressedBytes
+                + " -> " + this.receivedInflatedBytes + " bytes)";
+    }
+}
@@ -0,0 +1,127 @@
+package net.sharksystem.asap.protocol;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor shared by asap connections. PDUs are processed and online messages are sent by its
+ * threads - idle threads are re-used, no thread is created per PDU. Idle threads die.
+ *
+ * Shared executor grows as needed: engines block on stream I/O. A bounded pool could run out of
+ * threads while each of them waits for a peer whose PDU is queued behind them.
+ *
+ * Virtual threads can be used instead if the runtime offers them (Java 21+). They are looked up
+ * by reflection - code still runs on older runtimes and Android and falls back to platform threads.
+ *
+ * @author thsc
+ */
+public class ASAPConnectionExecutor {
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static ExecutorService sharedExecutor = null;
+    private static ExecutorService virtualThreadExecutor = null;
+
+    private static final Method startVirtualThread = lookupVirtualThreadStarter();
+
+    private static Method lookupVirtualThreadStarter() {
+        try {
+            Method method = Thread.class.getMethod("startVirtualThread", Runnable.class);
+            // preview releases know that method but refuse to call it
+            method.invoke(null, new Runnable() { public void run() { } });
+            return method;
+        } catch (Throwable t) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if runtime can start virtual threads
+     */
+    public static boolean virtualThreadsAvailable() {
+        return startVirtualThread != null;
+    }
+
+    /**
+     * @return executor starting a virtual thread per task - shared executor if virtual threads
+     * are not available
+     */
+    public static synchronized ExecutorService getVirtualThreadExecutor() {
+        if(!virtualThreadsAvailable()) return getSharedExecutor();
+
+        if(virtualThreadExecutor == null) {
+            try {
+                Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                virtualThreadExecutor = (ExecutorService) method.invoke(null);
+            } catch (Exception e) {
+                return getSharedExecutor();
+            }
+        }
+
+        return virtualThreadExecutor;
+    }
+
+    /**
+     * Start a thread - virtual if wished and available, a platform thread otherwise.
+     * @return started thread
+     */
+    public static Thread startThread(Runnable runnable, boolean virtual) {
+        if(virtual && virtualThreadsAvailable()) {
+            try {
+                return (Thread) startVirtualThread.invoke(null, runnable);
+            } catch (Exception e) {
+                // fall back
+            }
+        }
+
+        Thread thread = new Thread(runnable);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * @return executor used by connections that are not given an executor of their own
+     */
+    public static synchronized ExecutorService getSharedExecutor() {
+        if(sharedExecutor == null) {
+            sharedExecutor = createExecutor(Integer.MAX_VALUE, "asap-connection");
+        }
+
+        return sharedExecutor;
+    }
+
+    /**
+     * @param maxThreads maximum number of threads - tasks are queued if all threads are busy.
+     *                   Integer.MAX_VALUE: a thread is started whenever no idle one is left.
+     * @param name prefix of thread names
+     * @return executor with daemon threads which die after some idle time
+     */
+    public static ExecutorService createExecutor(int maxThreads, final String name) {
+        ThreadPoolExecutor executor = maxThreads == Integer.MAX_VALUE ?
+                new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                        KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<Runnable>()) :
+                new ThreadPoolExecutor(maxThreads, maxThreads,
+                        KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+        executor.setThreadFactory(new ThreadFactory() {
+            private final AtomicInteger number = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + number.incrementAndGet());
+                // connections are killed with their app - don't keep vm alive
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+
+        return executor;
+    }
+}
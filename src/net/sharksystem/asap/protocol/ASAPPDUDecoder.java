@@ -0,0 +1,236 @@
+package net.sharksystem.asap.protocol;
+
+import net.sharksystem.asap.ASAPException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes PDUs from bytes pushed in pieces of any size - decoder never waits for bytes. That's meant for
+ * non-blocking transports. readPDU is the choice if a thread can wait for a stream.
+ *
+ * Decoder knows which parameters follow command and flags. It collects bytes until a header is complete.
+ * Header is parsed by the same code as in readPDU - results are the same. Data of assimilate PDUs are not
+ * collected but passed on to a handler while they arrive.
+ *
+ * @author thsc
+ */
+public class ASAPPDUDecoder {
+    /** headers are small - larger ones are malformed. Offsets of many messages take most space. */
+    public static final int MAX_HEADER_LENGTH = 16 * 1024 * 1024;
+
+    public interface PDUHandler {
+        /**
+         * Called when header of an assimilate PDU is received. Data will follow with dataReceived.
+         * @param wireLength number of data bytes to follow
+         * @return stream delivering data to whoever reads that PDU - it gets what is handed to dataReceived
+         */
+        InputStream createDataStream(long wireLength);
+
+        /**
+         * @param pdu interest or offer or assimilate pdu - data of assimilate PDUs are still to come
+         */
+        void pduDecoded(ASAP_PDU_1_0 pdu) throws IOException, ASAPException;
+
+        /**
+         * Part of data section of recent assimilate PDU. Handler takes what it can and moves buffer position.
+         * Decoding pauses if bytes remain - call decode again with remaining bytes.
+         */
+        void dataReceived(ByteBuffer data) throws IOException;
+    }
+
+    // parameter types
+    private static final byte BYTES = 0; // length | bytes
+    private static final byte INT = 1;
+    private static final byte LONG = 2;
+
+    private static final int COMMAND_FLAGS_LENGTH = 2;
+    private static final int MAX_KEPT_HEADER_SIZE = 64 * 1024;
+
+    private final ASAP_Modem_Impl protocol;
+    private final PDUHandler handler;
+
+    private byte[] header = new byte[256];
+    private int headerLength = 0;
+    // header bytes required for next step
+    private int target = COMMAND_FLAGS_LENGTH;
+    private byte[] parameters = null;
+    private int parameterIndex = 0;
+    private boolean bytesLengthRead = false;
+    private long dataRemaining = 0;
+
+    /**
+     * @param protocol creates PDUs and counts received compressed data
+     */
+    public ASAPPDUDecoder(ASAP_Modem_Impl protocol, PDUHandler handler) {
+        this.protocol = protocol;
+        this.handler = handler;
+    }
+
+    /**
+     * @return true if no PDU is partially received
+     */
+    public boolean isIdle() {
+        return this.headerLength == 0 && this.dataRemaining == 0;
+    }
+
+    /**
+     * Decode as much as possible. Bytes remain in buffer if handler did not take all data.
+     */
+    public void decode(ByteBuffer buffer) throws IOException, ASAPException {
+        while(true) {
+            if(this.dataRemaining > 0) {
+                if(!buffer.hasRemaining()) return;
+
+                int offered = (int) Math.min(buffer.remaining(), this.dataRemaining);
+                ByteBuffer data = buffer.duplicate();
+                data.limit(buffer.position() + offered);
+                this.handler.dataReceived(data);
+
+                int taken = data.position() - buffer.position();
+                buffer.position(data.position());
+                this.dataRemaining -= taken;
+
+                if(taken < offered) return; // handler is full
+                continue;
+            }
+
+            if(this.headerLength < this.target) {
+                if(!buffer.hasRemaining()) return;
+
+                int copy = Math.min(buffer.remaining(), this.target - this.headerLength);
+                buffer.get(this.header, this.headerLength, copy);
+                this.headerLength += copy;
+
+                if(this.headerLength < this.target) return;
+            }
+
+            this.nextStep();
+        }
+    }
+
+    private void nextStep() throws IOException, ASAPException {
+        if(this.parameters == null) {
+            // command and flags received
+            this.parameters = parameterTypes(this.header[0], this.header[1]);
+            this.parameterIndex = 0;
+            this.expectParameter();
+            return;
+        }
+
+        if(this.parameters[this.parameterIndex] == BYTES && !this.bytesLengthRead) {
+            int length = readInt(this.header, this.headerLength - 4);
+            if(length < 0) {
+                throw new ASAPException("negative parameter length: " + length);
+            }
+            this.bytesLengthRead = true;
+            this.expect(length);
+            return;
+        }
+
+        this.parameterIndex++;
+        this.expectParameter();
+    }
+
+    private void expectParameter() throws IOException, ASAPException {
+        if(this.parameterIndex == this.parameters.length) {
+            this.headerReceived();
+            return;
+        }
+
+        this.bytesLengthRead = false;
+        this.expect(this.parameters[this.parameterIndex] == LONG ? 8 : 4);
+    }
+
+    private void expect(int length) throws ASAPException {
+        if((long) this.target + length > MAX_HEADER_LENGTH) {
+            throw new ASAPException("pdu header exceeds maximum length of " + MAX_HEADER_LENGTH);
+        }
+
+        this.target += length;
+        if(this.target > this.header.length) {
+            byte[] newHeader = new byte[Math.max(this.target, 2 * this.header.length)];
+            System.arraycopy(this.header, 0, newHeader, 0, this.headerLength);
+            this.header = newHeader;
+        }
+    }
+
+    private void headerReceived() throws IOException, ASAPException {
+        byte cmd = this.header[0];
+        int flagsInt = this.header[1];
+        InputStream parameterIS = new ByteArrayInputStream(this.header,
+                COMMAND_FLAGS_LENGTH, this.headerLength - COMMAND_FLAGS_LENGTH);
+
+        InputStream dataIS = null;
+        if(cmd == ASAP_1_0.ASSIMILATE_CMD) {
+            // length is last parameter
+            this.dataRemaining = readInt(this.header, this.headerLength - 8) & 0xFFFFFFFFL;
+            this.dataRemaining = (this.dataRemaining << 32) | (readInt(this.header, this.headerLength - 4) & 0xFFFFFFFFL);
+            if(this.dataRemaining < 0) {
+                throw new ASAPException("negative data length: " + this.dataRemaining);
+            }
+            dataIS = this.handler.createDataStream(this.dataRemaining);
+        }
+
+        // ready for next pdu
+        if(this.header.length > MAX_KEPT_HEADER_SIZE) this.header = new byte[256];
+        this.headerLength = 0;
+        this.target = COMMAND_FLAGS_LENGTH;
+        this.parameters = null;
+
+        this.handler.pduDecoded(this.protocol.createPDU(cmd, flagsInt, parameterIS, dataIS));
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+                | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+    }
+
+    private static boolean isSet(int flags, int bitPosition) {
+        return (flags & (1 << bitPosition)) != 0;
+    }
+
+    /**
+     * @return parameters following command and flags - same order as read by PDU constructors
+     */
+    private static byte[] parameterTypes(byte cmd, int flags) throws ASAPException {
+        byte[] types = new byte[8];
+        int number = 0;
+
+        switch(cmd) {
+            case ASAP_1_0.INTEREST_CMD:
+                if(isSet(flags, PDU_Impl.PEER_BIT_POSITION)) types[number++] = BYTES;
+                if(isSet(flags, PDU_Impl.SOURCE_PEER_BIT_POSITION)) types[number++] = BYTES;
+                types[number++] = BYTES; // format
+                if(isSet(flags, PDU_Impl.CHANNEL_BIT_POSITION)) types[number++] = BYTES;
+                if(isSet(flags, PDU_Impl.ERA_FROM_BIT_POSITION)) types[number++] = INT;
+                if(isSet(flags, PDU_Impl.ERA_TO_BIT_POSITION)) types[number++] = INT;
+                break;
+
+            case ASAP_1_0.OFFER_CMD:
+                if(isSet(flags, PDU_Impl.PEER_BIT_POSITION)) types[number++] = BYTES;
+                types[number++] = BYTES; // format
+                if(isSet(flags, PDU_Impl.CHANNEL_BIT_POSITION)) types[number++] = BYTES;
+                if(isSet(flags, PDU_Impl.ERA_BIT_POSITION)) types[number++] = INT;
+                break;
+
+            case ASAP_1_0.ASSIMILATE_CMD:
+                if(isSet(flags, PDU_Impl.PEER_BIT_POSITION)) types[number++] = BYTES;
+                if(isSet(flags, PDU_Impl.RECIPIENT_PEER_BIT_POSITION)) types[number++] = BYTES;
+                types[number++] = BYTES; // format
+                if(isSet(flags, PDU_Impl.CHANNEL_BIT_POSITION)) types[number++] = BYTES;
+                if(isSet(flags, PDU_Impl.ERA_BIT_POSITION)) types[number++] = INT;
+                if(isSet(flags, PDU_Impl.OFFSETS_BIT_POSITION)) types[number++] = BYTES;
+                types[number++] = LONG; // data length
+                break;
+
+            default: throw new ASAPException("unknown command: " + cmd);
+        }
+
+        byte[] result = new byte[number];
+        System.arraycopy(types, 0, result, 0, number);
+        return result;
+    }
+}
@@ -0,0 +1,114 @@
+package net.sharksystem.asap.protocol;
+
+import net.sharksystem.asap.ASAPException;
+import net.sharksystem.asap.EngineSetting;
+import net.sharksystem.asap.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Passes a received PDU to the engine responsible for its format.
+ */
+class ASAPPDUExecutor implements Runnable {
+    private final ASAP_PDU_1_0 asapPDU;
+    private final InputStream is;
+    private final OutputStream os;
+    private final EngineSetting engineSetting;
+    private final ASAP_1_0 protocol;
+    private final String logStart;
+    private final CountDownLatch started = new CountDownLatch(1);
+
+    ASAPPDUExecutor(ASAP_PDU_1_0 asapPDU, InputStream is, OutputStream os,
+                    EngineSetting engineSetting, ASAP_1_0 protocol, String logStart) {
+        this.asapPDU = asapPDU;
+        this.is = is;
+        this.os = os;
+        this.engineSetting = engineSetting;
+        this.protocol = protocol;
+        this.logStart = logStart;
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(this.getLogStart());
+        sb.append("ASAPPDUExecutor: ");
+        sb.append("engine: " + engineSetting.engine.getClass().getSimpleName() + " | ");
+        if(engineSetting.listener != null) {
+            sb.append("listener: " + engineSetting.listener.getClass().getSimpleName() + " | ");
+        }
+        sb.append("folder: " + engineSetting.folder);
+
+        System.out.println(sb.toString());
+    }
+
+    private String getLogStart() {
+        return this.logStart;
+    }
+
+    /**
+     * wait until an executor thread picks up this pdu
+     * @return false if no thread picked it up within that time
+     */
+    boolean awaitStart(long maxWaitMillis) throws InterruptedException {
+        return this.started.await(maxWaitMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void run() {
+        this.started.countDown();
+
+        try {
+            if(engineSetting.engine == null) {
+                System.err.println(this.getLogStart() + "ASAPPDUExecutor called without engine set - fatal");
+                return;
+            }
+
+            System.out.println(this.getLogStart() + "ASAPPDUExecutor calls engine: "
+                    + engineSetting.engine.getClass().getSimpleName());
+
+            switch (asapPDU.getCommand()) {
+                case ASAP_1_0.INTEREST_CMD:
+                    System.out.println(this.getLogStart() + "ASAPPDUExecutor call handleASAPInterest");
+                    engineSetting.engine.handleASAPInterest((ASAP_Interest_PDU_1_0) asapPDU, protocol, os);
+                    break;
+                case ASAP_1_0.OFFER_CMD:
+                    System.out.println(this.getLogStart() + "ASAPPDUExecutor call handleASAPOffer");
+                    engineSetting.engine.handleASAPOffer((ASAP_OfferPDU_1_0) asapPDU, protocol, os);
+                    break;
+                case ASAP_1_0.ASSIMILATE_CMD:
+                    System.out.println(this.getLogStart() + "ASAPPDUExecutor call handleASAPAssimilate");
+                    engineSetting.engine.handleASAPAssimilate((ASAP_AssimilationPDU_1_0) asapPDU, protocol, is, os,
+                            engineSetting.listener);
+                    break;
+
+                default:
+                    System.err.println(this.getLogStart() + ": " + "unknown ASAP command: " + asapPDU.getCommand());
+            }
+        }
+        catch(ASAPException asape) {
+            Log.writeLogErr(this, "asap exception while processing PDU - but go ahead: " + asape.getLocalizedMessage());
+        }
+        catch(IOException ioe) {
+            System.err.println(this.getLogStart()
+                    + "IOException while processing ASAP PDU - close streams: " + ioe.getLocalizedMessage());
+            try {
+                os.close(); // more important to close than input stream - do it first
+                is.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+        finally {
+            // data are used - release what pdu holds (e.g. an inflater)
+            if(asapPDU instanceof Closeable) {
+                try {
+                    ((Closeable) asapPDU).close();
+                } catch (IOException e) {
+                    Log.writeLogErr(this, "cannot close pdu: " + e.getLocalizedMessage());
+                }
+            }
+        }
+    }
+}
@@ -8,28 +8,63 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
-
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs an asap session on a pair of streams. One thread (that runs this object) reads PDUs.
+ * Each PDU is processed by an executor - reading waits until processing is finished or
+ * max execution time exceeded. Online messages are sent by the executor as well. A lock
+ * guarantees that only one party writes at a time.
+ *
+ * Waiting for an executor thread is not processing time but it is bounded as well. Streams are
+ * closed when the connection is killed - an engine blocked in writing to a stalled peer gets free.
+ */
 public class ASAPPersistentConnection extends ASAPProtocolEngine
-        implements ASAPConnection, Runnable, ThreadFinishedListener {
+        implements ASAPConnection, Runnable {
+
+    /** a pdu waits at most that many times max execution time for an executor thread */
+    public static final int MAX_QUEUE_TIME_FACTOR = 10;
 
     private final ASAPConnectionListener asapConnectionListener;
     private final MultiASAPEngineFS multiASAPEngineFS;
     private final ThreadFinishedListener threadFinishedListener;
-    private Thread managementThread = null;
+    private final ExecutorService executorService;
+    private volatile Thread managementThread = null;
     private final long maxExecutionTime;
     private String remotePeer;
 
     private List<ASAPOnlineMessageSource> onlineMessageSources = new ArrayList<>();
-    private Thread threadWaiting4StreamsLock;
-    private boolean terminated = false;
+    private final ReentrantLock streamsLock = new ReentrantLock();
+    private volatile Future<?> runningPDUExecution = null;
+    private volatile boolean terminated = false;
+    private ASAPCapabilities capabilities = null;
 
     public ASAPPersistentConnection(InputStream is, OutputStream os, MultiASAPEngineFS multiASAPEngineFS,
                                     ASAP_1_0 protocol,
                                     long maxExecutionTime, ASAPConnectionListener asapConnectionListener,
                                     ThreadFinishedListener threadFinishedListener) {
 
+        this(is, os, multiASAPEngineFS, protocol, maxExecutionTime, asapConnectionListener,
+                threadFinishedListener, ASAPConnectionExecutor.getSharedExecutor());
+    }
+
+    /**
+     * @param executorService processes PDUs and sends online messages
+     */
+    public ASAPPersistentConnection(InputStream is, OutputStream os, MultiASAPEngineFS multiASAPEngineFS,
+                                    ASAP_1_0 protocol,
+                                    long maxExecutionTime, ASAPConnectionListener asapConnectionListener,
+                                    ThreadFinishedListener threadFinishedListener,
+                                    ExecutorService executorService) {
+
         super(is, os, protocol);
 
+        this.executorService = executorService;
         this.multiASAPEngineFS = multiASAPEngineFS;
         this.maxExecutionTime = maxExecutionTime;
         this.asapConnectionListener = asapConnectionListener;
@@ -63,7 +98,7 @@ public class ASAPPersistentConnection extends ASAPProtocolEngine
     }
 
     @Override
-    public void removeOnlineMessageSource(ASAPOnlineMessageSource source) {
+    public synchronized void removeOnlineMessageSource(ASAPOnlineMessageSource source) {
         this.onlineMessageSources.remove(source);
     }
 
@@ -71,6 +106,29 @@ public class ASAPPersistentConnection extends ASAPProtocolEngine
         return false;
     }
 
+    /**
+     * @return features both peers support - null if remote peer did not announce any (yet)
+     */
+    public ASAPCapabilities getCapabilities() {
+        return this.capabilities;
+    }
+
+    /**
+     * @return compression statistics - null if data are not compressed on that connection
+     */
+    public ASAPCompression getCompression() {
+        return this.protocol instanceof ASAP_Modem_Impl ? ((ASAP_Modem_Impl) this.protocol).getCompression() : null;
+    }
+
+    private void handleCapabilities(ASAP_PDU_1_0 asappdu) {
+        ASAPCapabilities remoteCapabilities = ASAPCapabilities.fromPDU(asappdu);
+        this.capabilities = ASAPCapabilities.getLocalCapabilities().intersect(remoteCapabilities);
+        this.capabilities.configure(this.protocol);
+
+        System.out.println(this.getLogStart() + "remote capabilities: " + remoteCapabilities
+                + " | use: " + this.capabilities);
+    }
+
     @Override
     public void kill() {
         this.kill(new ASAPException("kill called from outside asap connection"));
@@ -79,13 +137,17 @@ public class ASAPPersistentConnection extends ASAPProtocolEngine
     public void kill(Exception e) {
         if(!this.terminated) {
             this.terminated = true;
-            // kill reader - proofed to be useful in a bluetooth environment
-            if(this.pduReader != null && this.pduReader.isAlive()) {
-                this.pduReader.interrupt();
+            // stop processing and wake reader - proofed to be useful in a bluetooth environment
+            Future<?> execution = this.runningPDUExecution;
+            if(execution != null) {
+                execution.cancel(true);
             }
-            if(this.managementThread != null && this.managementThread.isAlive()) {
+            if(this.managementThread != null && this.managementThread.isAlive()
+                    && this.managementThread != Thread.currentThread()) {
                 this.managementThread.interrupt();
             }
+            // free threads blocked in reading or writing - closing input closes a socket as well
+            this.closeStreams();
             // inform listener
             if (this.asapConnectionListener != null) {
                 this.asapConnectionListener.asapConnectionTerminated(e, this);
@@ -97,10 +159,16 @@ public class ASAPPersistentConnection extends ASAPProtocolEngine
         }
     }
 
-    @Override
-    public void finished(Thread t) {
-        if(this.managementThread != null) {
-            this.managementThread.interrupt();
+    private void closeStreams() {
+        try {
+            this.is.close();
+        } catch (IOException e) {
+            Log.writeLogErr(this, "cannot close input stream: " + e.getLocalizedMessage());
+        }
+        try {
+            this.os.close();
+        } catch (IOException e) {
+            Log.writeLogErr(this, "cannot close output stream: " + e.getLocalizedMessage());
         }
     }
 
@@ -119,9 +187,18 @@ public class ASAPPersistentConnection extends ASAPProtocolEngine
         this.kill();
     }
 
-    private void sendOnlineMessages() throws IOException {
-        List<ASAPOnlineMessageSource> copy = onlineMessageSources;
+    private synchronized List<ASAPOnlineMessageSource> takeOnlineMessageSources() {
+        List<ASAPOnlineMessageSource> copy = this.onlineMessageSources;
         this.onlineMessageSources = new ArrayList<>();
+        return copy;
+    }
+
+    private synchronized boolean onlineMessagesWaiting() {
+        return !this.onlineMessageSources.isEmpty();
+    }
+
+    private void sendOnlineMessages() throws IOException {
+        List<ASAPOnlineMessageSource> copy = this.takeOnlineMessageSources();
         while(!copy.isEmpty()) {
             ASAPOnlineMessageSource asapOnline = copy.remove(0);
             StringBuilder sb = new StringBuilder();
@@ -132,307 +209,157 @@ public class ASAPPersistentConnection extends ASAPProtocolEngine
         }
     }
 
-    private class OnlineMessageSenderThread extends Thread {
-        public Exception caughtException = null;
-        public void run() {
+    /**
+     * Send waiting online messages if streams are not in use. Otherwise, the party using streams
+     * calls again after releasing it - no message is left behind.
+     */
+    private void trySendOnlineMessages() {
+        while(!this.terminated && this.onlineMessagesWaiting() && this.streamsLock.tryLock()) {
             try {
-                // get exclusive access to streams
-                System.out.println(getLogStart() + "online sender is going to wait for stream access");
-                wait4ExclusiveStreamsAccess();
                 System.out.println(getLogStart() + "online sender got stream access");
-                sendOnlineMessages();
-                // prepare a graceful death
-                onlineMessageSenderThread = null;
-                // are new message waiting in the meantime?
-                checkRunningOnlineMessageSender();
+                this.sendOnlineMessages();
             } catch (IOException e) {
-                terminate("could not write data into stream", e);
+                this.terminate("could not write data into stream", e);
             }
             finally {
-                System.out.println(getLogStart() + "online sender releases lock");
-                releaseStreamsLock();
+                this.streamsLock.unlock();
             }
         }
     }
 
-    private OnlineMessageSenderThread onlineMessageSenderThread = null;
-    private ASAPPDUReader pduReader = null;
-    Thread executor = null;
+    private final Runnable onlineMessageSender = new Runnable() {
+        @Override
+        public void run() {
+            trySendOnlineMessages();
+        }
+    };
 
     @Override
     public void addOnlineMessageSource(ASAPOnlineMessageSource source) {
-        this.onlineMessageSources.add(source);
-        this.checkRunningOnlineMessageSender();
-    }
-
-    private synchronized void checkRunningOnlineMessageSender() {
-        if(this.onlineMessageSenderThread == null
-                && this.onlineMessageSources != null && this.onlineMessageSources.size() > 0) {
-            this.onlineMessageSenderThread = new OnlineMessageSenderThread();
-            this.onlineMessageSenderThread.start();
+        synchronized(this) {
+            this.onlineMessageSources.add(source);
         }
+        this.executorService.execute(this.onlineMessageSender);
     }
 
     public void run() {
-        ASAP_1_0 protocol = new ASAP_Modem_Impl();
+        this.managementThread = Thread.currentThread();
 
         try {
             // let engine write their interest - at least management interest is sent which als introduces
             // this peer to the other one
-            this.multiASAPEngineFS.pushInterests(this.os);
+            this.streamsLock.lock();
+            try {
+                this.multiASAPEngineFS.pushInterests(this.os);
+            }
+            finally {
+                this.streamsLock.unlock();
+            }
         } catch (IOException | ASAPException e) {
             this.terminate("error when pushing interest: ", e);
             return;
         }
+        this.trySendOnlineMessages();
 
         /////////////////////////////// read
         while (!this.terminated) {
-            this.pduReader = new ASAPPDUReader(protocol, is, this);
+            ASAP_PDU_1_0 asappdu;
             try {
                 System.out.println(this.getLogStart() + "start reading");
-                this.runObservedThread(pduReader, this.maxExecutionTime);
-            } catch (ASAPExecTimeExceededException e) {
-                System.out.println(this.getLogStart() + "reading on stream took longer than allowed");
+                asappdu = this.protocol.readPDU(this.is);
+            } catch (IOException | ASAPException e) {
+                if(!this.terminated) {
+                    this.terminate("exception when reading from stream (stop asap session): ", e);
+                }
+                break;
             }
 
             System.out.println(this.getLogStart() + "back from reading");
-            if(terminated) break; // thread could be killed in the meantime
+            if(terminated) break; // connection could be killed in the meantime
 
-            if (pduReader.getIoException() != null || pduReader.getAsapException() != null) {
-                Exception e = pduReader.getIoException() != null ?
-                        pduReader.getIoException() : pduReader.getAsapException();
-
-                this.terminate("exception when reading from stream (stop asap session): ", e);
-                break;
-            }
-
-            ASAP_PDU_1_0 asappdu = pduReader.getASAPPDU();
             /////////////////////////////// process
             if(asappdu != null) {
                 System.out.println(this.getLogStart() + "read valid pdu");
                 this.setRemotePeer(asappdu.getPeer());
 
+                if(ASAPCapabilities.isCapabilitiesPDU(asappdu)) {
+                    // connection business - no engine involved
+                    this.handleCapabilities(asappdu);
+                    continue;
+                }
+
+                ASAPPDUExecutor executor;
                 try {
-                    this.executor = new ASAPPDUExecutor(asappdu,
+                    executor = new ASAPPDUExecutor(asappdu,
                                         this.is, this.os,
-                                        this.multiASAPEngineFS.getEngineSettings(asappdu.getFormat()),
-                                        protocol,this);
-
-                    // get exclusive access to streams
-                    System.out.println(this.getLogStart() + "asap pdu executor going to wait for stream access");
-                    this.wait4ExclusiveStreamsAccess();
-                    try {
-                        System.out.println(this.getLogStart() + "asap pdu executor got stream access - process pdu");
-                        this.runObservedThread(executor, maxExecutionTime);
-                    } catch (ASAPExecTimeExceededException e) {
-                        System.out.println(this.getLogStart() + "asap pdu processing took longer than allowed");
-                        this.terminate("asap pdu processing took longer than allowed", e);
-                        break;
-                    } finally {
-                        // wake waiting thread if any
-                        this.releaseStreamsLock();
-                        System.out.println(this.getLogStart() + "asap pdu executor release locks");
-                    }
+                                        this.multiASAPEngineFS.getEngineSettings(ASAPResumeReport.getEngineFormat(asappdu)),
+                                        this.protocol, this.getLogStart());
                 } catch (ASAPException e) {
                     System.out.println(this.getLogStart() + " problem when executing asap received pdu: " + e);
+                    continue;
                 }
-            }
-        }
-    }
-
-    private Thread threadUsingStreams = null;
-    private synchronized Thread getThreadUsingStreams(Thread t) {
-        if(this.threadUsingStreams == null) {
-            this.threadUsingStreams = t;
-            return null;
-        }
 
-        return this.threadUsingStreams;
-    }
-
-    private void wait4ExclusiveStreamsAccess() {
-        // synchronize with other thread using streams
-        Thread threadUsingStreams = this.getThreadUsingStreams(Thread.currentThread());
+                try {
+                    // get exclusive access to streams
+                    System.out.println(this.getLogStart() + "asap pdu executor going to wait for stream access");
+                    this.streamsLock.lockInterruptibly();
+                } catch (InterruptedException e) {
+                    // killed
+                    break;
+                }
 
-        // got lock - go ahead
-        if(threadUsingStreams == null) {
-            return;
-        }
+                try {
+                    System.out.println(this.getLogStart() + "asap pdu executor got stream access - process pdu");
+                    this.execute(executor);
+                } catch (ASAPExecTimeExceededException e) {
+                    System.out.println(this.getLogStart() + "asap pdu processing took longer than allowed");
+                    this.terminate("asap pdu processing took longer than allowed", e);
+                    break;
+                } finally {
+                    this.streamsLock.unlock();
+                    System.out.println(this.getLogStart() + "asap pdu executor release locks");
+                }
 
-        // there is another stream - wait until it dies
-        do {
-            System.out.println(this.getLogStart() + "enter waiting loop for exclusive stream access");
-            // wait
-            try {
-                this.threadWaiting4StreamsLock = Thread.currentThread();
-                threadUsingStreams.join();
-            } catch (InterruptedException e) {
-                System.out.println(this.getLogStart() + "woke up from join");
+                // online messages could have been waiting for streams
+                this.trySendOnlineMessages();
             }
-            finally {
-                this.threadWaiting4StreamsLock = null;
-            }
-            // try again
-            System.out.println(this.getLogStart() + "try to get streams access again");
-            threadUsingStreams = this.getThreadUsingStreams(Thread.currentThread());
-        } while(threadUsingStreams != null);
-        System.out.println(this.getLogStart() + "leave waiting loop for exclusive stream access");
-    }
-
-    private void releaseStreamsLock() {
-        this.threadUsingStreams = null; // take me out
-        if(this.threadWaiting4StreamsLock != null) {
-            System.out.println(this.getLogStart() + "wake waiting thread");
-            this.threadWaiting4StreamsLock.interrupt();
         }
     }
 
-    private void runObservedThread(Thread t, long maxExecutionTime) throws ASAPExecTimeExceededException {
-        this.managementThread = Thread.currentThread();
-        t.start();
-
-        // wait for reader
+    /**
+     * run processing in executor and wait for its end - reading must not go on before data are consumed
+     */
+    private void execute(ASAPPDUExecutor pduExecutor) throws ASAPExecTimeExceededException {
+        Future<?> execution = this.executorService.submit(pduExecutor);
+        this.runningPDUExecution = execution;
         try {
-            Thread.sleep(maxExecutionTime);
-        } catch (InterruptedException e) {
-            // was woken up by thread - that's good
-            return;
-        }
-
-        StringBuilder sb = new StringBuilder();
-        sb.append("thread (");
-        sb.append(t.getClass().getSimpleName());
-        sb.append(") exceeded max execution time of ");
-        sb.append(maxExecutionTime);
-        sb.append(" ms");
-
-        throw new ASAPExecTimeExceededException(sb.toString());
-    }
-
-    private class ASAPPDUExecutor extends Thread {
-        private final ASAP_PDU_1_0 asapPDU;
-        private final InputStream is;
-        private final OutputStream os;
-        private final EngineSetting engineSetting;
-        private final ASAP_1_0 protocol;
-        private final ThreadFinishedListener threadFinishedListener;
-
-        public ASAPPDUExecutor(ASAP_PDU_1_0 asapPDU, InputStream is, OutputStream os,
-                               EngineSetting engineSetting, ASAP_1_0 protocol,
-                               ThreadFinishedListener threadFinishedListener) {
-            this.asapPDU = asapPDU;
-            this.is = is;
-            this.os = os;
-            this.engineSetting = engineSetting;
-            this.protocol = protocol;
-            this.threadFinishedListener = threadFinishedListener;
-
-            StringBuilder sb = new StringBuilder();
-            sb.append(getLogStart());
-            sb.append("ASAPPDUExecutor: ");
-            sb.append("engine: " + engineSetting.engine.getClass().getSimpleName() + " | ");
-            if(engineSetting.listener != null) {
-                sb.append("listener: " + engineSetting.listener.getClass().getSimpleName() + " | ");
-            }
-            sb.append("folder: " + engineSetting.folder);
-
-            System.out.println(sb.toString());
-        }
-
-        private void finish() {
-            if(this.threadFinishedListener != null) {
-                this.threadFinishedListener.finished(this);
-            }
-        }
-
-        public void run() {
-            if(engineSetting.engine == null) {
-                System.err.println(getLogStart() + "ASAPPDUExecutor called without engine set - fatal");
-                this.finish();
-                return;
+            // time in executor queue is not processing time - but waiting for a thread is bounded as well
+            long maxQueueTime = this.maxExecutionTime > Long.MAX_VALUE / MAX_QUEUE_TIME_FACTOR ?
+                    Long.MAX_VALUE : MAX_QUEUE_TIME_FACTOR * this.maxExecutionTime;
+            if(!pduExecutor.awaitStart(maxQueueTime)) {
+                execution.cancel(true);
+                throw new ASAPExecTimeExceededException(
+                        "pdu waited longer than " + maxQueueTime + " ms for an executor thread");
             }
 
-            System.out.println(getLogStart() + "ASAPPDUExecutor calls engine: "
-                    + engineSetting.engine.getClass().getSimpleName());
+            execution.get(this.maxExecutionTime, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            execution.cancel(true);
 
-            try {
-                switch (asapPDU.getCommand()) {
-                    case ASAP_1_0.INTEREST_CMD:
-                        System.out.println(getLogStart() + "ASAPPDUExecutor call handleASAPInterest");
-                        engineSetting.engine.handleASAPInterest((ASAP_Interest_PDU_1_0) asapPDU, protocol, os);
-                        break;
-                    case ASAP_1_0.OFFER_CMD:
-                        System.out.println(getLogStart() + "ASAPPDUExecutor call handleASAPOffer");
-                        engineSetting.engine.handleASAPOffer((ASAP_OfferPDU_1_0) asapPDU, protocol, os);
-                        break;
-                    case ASAP_1_0.ASSIMILATE_CMD:
-                        System.out.println(getLogStart() + "ASAPPDUExecutor call handleASAPAssimilate");
-                        engineSetting.engine.handleASAPAssimilate((ASAP_AssimilationPDU_1_0) asapPDU, protocol, is, os,
-                                engineSetting.listener);
-                        break;
-
-                    default:
-                        System.err.println(getLogStart() + ": " + "unknown ASAP command: " + asapPDU.getCommand());
-                }
-            }
-            catch(ASAPException asape) {
-                Log.writeLogErr(this, "asap exception while processing PDU - but go ahead: " + asape.getLocalizedMessage());
-            }
-            catch(IOException ioe) {
-                System.err.println(getLogStart()
-                        + "IOException while processing ASAP PDU - close streams: " + ioe.getLocalizedMessage());
-                try {
-                    os.close(); // more important to close than input stream - do it first
-                    is.close();
-                } catch (IOException ex) {
-                    ex.printStackTrace();
-                }
-            }
-            finally {
-                this.finish();
-            }
-        }
-    }
-
-    private class ASAPPDUReader extends Thread {
-        private final ASAP_1_0 protocol;
-        private final InputStream is;
-        private final ThreadFinishedListener pduReaderListener;
-        private ASAP_PDU_1_0 asapPDU = null;
-        private IOException ioException = null;
-        private ASAPException asapException = null;
-
-        ASAPPDUReader(ASAP_1_0 protocol, InputStream is, ThreadFinishedListener listener) {
-            this.protocol = protocol;
-            this.is = is;
-            this.pduReaderListener = listener;
-        }
-
-        IOException getIoException() {
-            return this.ioException;
-        }
-
-        ASAPException getAsapException() {
-            return this.asapException;
-        }
-
-        ASAP_PDU_1_0 getASAPPDU() {
-            return this.asapPDU;
-        }
+            StringBuilder sb = new StringBuilder();
+            sb.append("pdu processing exceeded max execution time of ");
+            sb.append(this.maxExecutionTime);
+            sb.append(" ms");
 
-        public void run() {
-            try {
-                this.asapPDU = protocol.readPDU(is);
-            } catch (IOException e) {
-                this.ioException = e;
-            } catch (ASAPException e) {
-                this.asapException = e;
-            }
-            finally {
-                if(this.pduReaderListener != null) {
-                    this.pduReaderListener.finished(this);
-                }
-            }
+            throw new ASAPExecTimeExceededException(sb.toString());
+        } catch (InterruptedException e) {
+            // killed
+            execution.cancel(true);
+        } catch (ExecutionException e) {
+            // runtime exception in engine - go ahead like with any other problem in an engine
+            Log.writeLogErr(this, "exception while processing PDU: " + e.getCause());
+        } finally {
+            this.runningPDUExecution = null;
         }
     }
 }
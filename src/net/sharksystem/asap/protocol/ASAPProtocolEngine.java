@@ -2,6 +2,7 @@ package net.sharksystem.asap.protocol;
 
 import net.sharksystem.asap.ASAPException;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -14,7 +15,8 @@ public abstract class ASAPProtocolEngine {
     protected final OutputStream os;
 
     public ASAPProtocolEngine(InputStream is, OutputStream os, ASAP_1_0 protocol) {
-        this.is = is;
+        // pdus are parsed byte by byte - buffer once per connection. All reads must use this.is from now on.
+        this.is = is instanceof BufferedInputStream ? is : new BufferedInputStream(is);
         this.os = os;
         this.protocol = protocol;
     }
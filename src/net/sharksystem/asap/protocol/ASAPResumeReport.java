@@ -0,0 +1,123 @@
+package net.sharksystem.asap.protocol;
+
+import net.sharksystem.asap.ASAPException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Tells what a peer holds of a chunk whose transfer was interrupted. Any peer that has got that chunk
+ * can stream the missing suffix - nothing is sent twice.
+ *
+ * Reports are interests in format ASAP_RESUME_FORMAT which are sent before any other interest. Source
+ * peer parameter is the sender of that chunk, eraFrom its era. Channel parameter carries
+ * LENGTH,MESSAGES,FORMAT,URI - chunk length in bytes, number of complete messages, app format and
+ * channel uri. Reports are processed by the engine of that app format. Peers without that engine
+ * ignore them.
+ *
+ * @author thsc
+ */
+public class ASAPResumeReport {
+    public static final String DELIMITER = ",";
+
+    private final String sender;
+    private final String format;
+    private final String uri;
+    private final int era;
+    private final long length;
+    private final int numberMessages;
+
+    public ASAPResumeReport(CharSequence sender, CharSequence format, CharSequence uri, int era,
+                            long length, int numberMessages) {
+        this.sender = sender.toString();
+        this.format = format.toString();
+        this.uri = uri.toString();
+        this.era = era;
+        this.length = length;
+        this.numberMessages = numberMessages;
+    }
+
+    public String getSender() { return this.sender; }
+
+    public String getFormat() { return this.format; }
+
+    public String getUri() { return this.uri; }
+
+    public int getEra() { return this.era; }
+
+    /**
+     * @return number of bytes the reporting peer holds of that chunk
+     */
+    public long getLength() { return this.length; }
+
+    /**
+     * @return number of complete messages the reporting peer holds of that chunk
+     */
+    public int getNumberMessages() { return this.numberMessages; }
+
+    public static boolean isResumeReport(ASAP_PDU_1_0 pdu) {
+        return pdu.getCommand() == ASAP_1_0.INTEREST_CMD
+                && ASAP_1_0.ASAP_RESUME_FORMAT.equalsIgnoreCase(pdu.getFormat());
+    }
+
+    /**
+     * @return format of the engine that has to process that pdu
+     */
+    public static String getEngineFormat(ASAP_PDU_1_0 pdu) {
+        if(!isResumeReport(pdu)) return pdu.getFormat();
+
+        try {
+            return fromPDU((ASAP_Interest_PDU_1_0) pdu).getFormat();
+        } catch (ASAPException e) {
+            // malformed - there is no engine for that format, pdu is dropped
+            return pdu.getFormat();
+        }
+    }
+
+    public static ASAPResumeReport fromPDU(ASAP_Interest_PDU_1_0 pdu) throws ASAPException {
+        if(!pdu.sourcePeerSet() || !pdu.channelSet() || !pdu.eraFromSet()) {
+            throw new ASAPException("resume report misses parameters: " + pdu);
+        }
+
+        String[] fields = pdu.getChannelUri().split(DELIMITER, 4);
+        if(fields.length != 4) {
+            throw new ASAPException("malformed resume report: " + pdu.getChannelUri());
+        }
+
+        try {
+            long length = Long.parseLong(fields[0]);
+            int numberMessages = Integer.parseInt(fields[1]);
+            if(length < 0 || numberMessages < 0) {
+                throw new ASAPException("negative values in resume report: " + pdu.getChannelUri());
+            }
+
+            return new ASAPResumeReport(pdu.getSourcePeer(), fields[2], fields[3], pdu.getEraFrom(),
+                    length, numberMessages);
+        }
+        catch(NumberFormatException e) {
+            throw new ASAPException("malformed resume report: " + pdu.getChannelUri());
+        }
+    }
+
+    /**
+     * @param owner reporting peer
+     */
+    public void send(CharSequence owner, ASAP_1_0 protocol, OutputStream os) throws IOException, ASAPException {
+        StringBuilder sb = new StringBuilder();
+        sb.append(this.length);
+        sb.append(DELIMITER);
+        sb.append(this.numberMessages);
+        sb.append(DELIMITER);
+        sb.append(this.format);
+        sb.append(DELIMITER);
+        sb.append(this.uri);
+
+        protocol.interest(owner, this.sender, ASAP_1_0.ASAP_RESUME_FORMAT, sb.toString(), this.era, -1, os, false);
+    }
+
+    @Override
+    public String toString() {
+        return "sender: " + this.sender + " | format: " + this.format + " | uri: " + this.uri
+                + " | era: " + this.era + " | length: " + this.length + " | messages: " + this.numberMessages;
+    }
+}
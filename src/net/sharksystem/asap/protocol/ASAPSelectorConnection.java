@@ -0,0 +1,647 @@
+package net.sharksystem.asap.protocol;
+
+import net.sharksystem.asap.ASAPException;
+import net.sharksystem.asap.EngineSetting;
+import net.sharksystem.asap.MultiASAPEngineFS;
+import net.sharksystem.asap.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A peer connection served by ASAPSelectorServer.
+ *
+ * Selector thread pushes received bytes into a decoder. Data of an assimilate PDU are passed on to a pipe -
+ * engine reads while they arrive. Reading from socket pauses while that pipe is full.
+ *
+ * Anything that involves engines runs in executor threads - one task after another on each connection.
+ * An engine that waits longer than max execution time for its peer while processing a PDU gets an
+ * IOException - connection is closed. Stalled peers cannot occupy executor threads.
+ *
+ * @author thsc
+ */
+class ASAPSelectorConnection implements ASAPConnection {
+    static final int PIPE_CAPACITY = 64 * 1024;
+    static final int MAX_QUEUED_OUTPUT = 1024 * 1024;
+    private static final InputStream NO_DATA = new ByteArrayInputStream(new byte[0]);
+
+    private final ASAPSelectorServer server;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final MultiASAPEngineFS multiASAPEngineFS;
+    private final ASAPConnectionListener asapConnectionListener;
+    private final ASAP_Modem_Impl protocol = new ASAP_Modem_Impl();
+    private final SerialExecutor serialExecutor;
+    private final ChannelOutputStream os = new ChannelOutputStream();
+    private final long maxExecutionNanos;
+
+    // selector thread only
+    private final ASAPPDUDecoder decoder;
+    private ByteBuffer pending = null;
+    private volatile DataPipe dataPipe = null;
+    private boolean readingPaused = false;
+
+    // executor - set while a pdu is processed
+    private volatile boolean processing = false;
+    private volatile long processingStarted = 0;
+
+    private String remotePeer = null;
+    private volatile boolean closed = false;
+    private List<ASAPOnlineMessageSource> onlineMessageSources = new ArrayList<>();
+    private ASAPCapabilities capabilities = null;
+
+    ASAPSelectorConnection(ASAPSelectorServer server, SocketChannel channel, SelectionKey key) {
+        this.server = server;
+        this.channel = channel;
+        this.key = key;
+        this.multiASAPEngineFS = server.getMultiASAPEngineFS();
+        this.asapConnectionListener = this.multiASAPEngineFS instanceof ASAPConnectionListener ?
+                (ASAPConnectionListener) this.multiASAPEngineFS : null;
+        this.serialExecutor = new SerialExecutor(server.getExecutorService());
+        this.maxExecutionNanos = TimeUnit.MILLISECONDS.toNanos(server.getMaxExecutionTime());
+        this.decoder = new ASAPPDUDecoder(this.protocol, this.pduHandler);
+    }
+
+    private String getLogStart() {
+        return this.getClass().getSimpleName() + "(to: " + this.remotePeer + "): ";
+    }
+
+    @Override
+    public CharSequence getRemotePeer() {
+        return this.remotePeer;
+    }
+
+    @Override
+    public boolean isSigned() {
+        return false;
+    }
+
+    /**
+     * @return features both peers support - null if remote peer did not announce any (yet)
+     */
+    public ASAPCapabilities getCapabilities() {
+        return this.capabilities;
+    }
+
+    @Override
+    public void kill() {
+        this.close(new ASAPException("kill called from outside asap connection"));
+    }
+
+    /**
+     * Called by selector thread after registration.
+     */
+    void start() {
+        this.serialExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    multiASAPEngineFS.pushInterests(os);
+                } catch (IOException | ASAPException e) {
+                    close(e);
+                }
+            }
+        });
+    }
+
+    void close(Exception e) {
+        synchronized(this) {
+            if(this.closed) return;
+            this.closed = true;
+        }
+
+        System.out.println(this.getLogStart() + "close connection: " + e.getLocalizedMessage());
+
+        this.key.cancel();
+        try {
+            this.channel.close();
+        } catch (IOException ioe) {
+            // nothing to do
+        }
+
+        // wake anybody waiting for data or space
+        DataPipe pipe = this.dataPipe;
+        if(pipe != null) pipe.closed();
+        this.os.closed();
+
+        this.server.connectionClosed();
+
+        if(this.asapConnectionListener != null) {
+            final Exception terminatingException = e;
+            // don't wait for running tasks - they are about to fail anyway
+            this.server.getExecutorService().execute(new Runnable() {
+                @Override
+                public void run() {
+                    asapConnectionListener.asapConnectionTerminated(terminatingException,
+                            ASAPSelectorConnection.this);
+                }
+            });
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //                                               input - selector thread                                  //
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    void received(ByteBuffer buffer) throws IOException {
+        this.decode(buffer);
+
+        if(buffer.hasRemaining()) {
+            // engine is slower than socket - keep the rest and wait for engine
+            this.pending = ByteBuffer.allocate(buffer.remaining());
+            this.pending.put(buffer);
+            this.pending.flip();
+            this.pauseReading();
+        }
+    }
+
+    private void decode(ByteBuffer buffer) throws IOException {
+        try {
+            this.decoder.decode(buffer);
+        } catch (ASAPException e) {
+            throw new IOException("cannot decode pdu: " + e.getLocalizedMessage());
+        }
+    }
+
+    private final ASAPPDUDecoder.PDUHandler pduHandler = new ASAPPDUDecoder.PDUHandler() {
+        @Override
+        public InputStream createDataStream(long wireLength) {
+            // engine reads data while they arrive
+            dataPipe = new DataPipe(wireLength);
+            return dataPipe;
+        }
+
+        @Override
+        public void pduDecoded(ASAP_PDU_1_0 pdu) {
+            if(pdu.getCommand() == ASAP_1_0.ASSIMILATE_CMD) {
+                dispatch(pdu, dataPipe, dataPipe);
+            } else {
+                dispatch(pdu, NO_DATA, null);
+            }
+        }
+
+        @Override
+        public void dataReceived(ByteBuffer data) {
+            dataPipe.offer(data);
+        }
+    };
+
+    private void pauseReading() {
+        if(!this.readingPaused && this.key.isValid()) {
+            this.readingPaused = true;
+            this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    private final Runnable resumeReading = new Runnable() {
+        @Override
+        public void run() {
+            if(closed || !readingPaused) return;
+
+            if(pending != null) {
+                try {
+                    decode(pending);
+                } catch (IOException e) {
+                    close(e);
+                    return;
+                }
+
+                if(pending.hasRemaining()) return; // still full
+                pending = null;
+            }
+
+            readingPaused = false;
+            if(key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+    };
+
+    /**
+     * Pipe has space again
+     */
+    void dataConsumed() {
+        this.server.runInSelectorThread(this.resumeReading);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //                                              processing - executor                                     //
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private void dispatch(final ASAP_PDU_1_0 asappdu, final InputStream is, final DataPipe pipe) {
+        this.serialExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                processingStarted = System.nanoTime();
+                processing = true;
+                try {
+                    process(asappdu, is);
+                }
+                finally {
+                    processing = false;
+                    // engine might not have read all data - next pdu follows them
+                    if(pipe != null) pipe.discard();
+                    if(asappdu instanceof Closeable) {
+                        try {
+                            ((Closeable) asappdu).close();
+                        } catch (IOException e) {
+                            Log.writeLogErr(this, "cannot close pdu: " + e.getLocalizedMessage());
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    private void process(ASAP_PDU_1_0 asappdu, InputStream is) {
+        if(this.closed) return;
+
+        this.setRemotePeer(asappdu.getPeer());
+
+        if(ASAPCapabilities.isCapabilitiesPDU(asappdu)) {
+            ASAPCapabilities remoteCapabilities = ASAPCapabilities.fromPDU(asappdu);
+            this.capabilities = ASAPCapabilities.getLocalCapabilities().intersect(remoteCapabilities);
+            this.capabilities.configure(this.protocol);
+
+            System.out.println(this.getLogStart() + "remote capabilities: " + remoteCapabilities
+                    + " | use: " + this.capabilities);
+            return;
+        }
+
+        EngineSetting engineSetting;
+        try {
+            engineSetting = this.multiASAPEngineFS.getEngineSettings(ASAPResumeReport.getEngineFormat(asappdu));
+        } catch (ASAPException e) {
+            System.out.println(this.getLogStart() + " problem when executing asap received pdu: " + e);
+            return;
+        }
+
+        try {
+            new ASAPPDUExecutor(asappdu, is, this.os, engineSetting, this.protocol, this.getLogStart()).run();
+        } catch (RuntimeException e) {
+            // runtime exception in engine - go ahead like with any other problem in an engine
+            Log.writeLogErr(this, "exception while processing PDU: " + e);
+        }
+    }
+
+    private void setRemotePeer(String remotePeerName) {
+        if(this.remotePeer == null && remotePeerName != null) {
+            this.remotePeer = remotePeerName;
+
+            StringBuilder sb = new StringBuilder();
+            sb.append(this.getLogStart());
+            sb.append("set remotePeerName after reading first asap message: ");
+            sb.append(remotePeerName);
+            System.out.println(sb.toString());
+
+            if(this.asapConnectionListener != null) {
+                this.asapConnectionListener.asapConnectionStarted(remotePeerName, this);
+            }
+        }
+    }
+
+    /**
+     * @return ns an engine can still wait for its peer - Long.MAX_VALUE if no pdu is processed or there
+     * is no limit
+     */
+    private long processingTimeLeft() {
+        if(!this.processing || this.maxExecutionNanos == Long.MAX_VALUE) return Long.MAX_VALUE;
+
+        return this.maxExecutionNanos - (System.nanoTime() - this.processingStarted);
+    }
+
+    /**
+     * close connection - engine waited too long for its peer
+     * @return exception to be thrown to engine
+     */
+    private IOException processingTimeExceeded() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("pdu processing exceeded max execution time of ");
+        sb.append(TimeUnit.NANOSECONDS.toMillis(this.maxExecutionNanos));
+        sb.append(" ms");
+
+        this.close(new ASAPExecTimeExceededException(sb.toString()));
+        return new IOException(sb.toString());
+    }
+
+    @Override
+    public void addOnlineMessageSource(ASAPOnlineMessageSource source) {
+        synchronized(this) {
+            this.onlineMessageSources.add(source);
+        }
+
+        this.serialExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                sendOnlineMessages();
+            }
+        });
+    }
+
+    @Override
+    public synchronized void removeOnlineMessageSource(ASAPOnlineMessageSource source) {
+        this.onlineMessageSources.remove(source);
+    }
+
+    private void sendOnlineMessages() {
+        List<ASAPOnlineMessageSource> copy;
+        synchronized(this) {
+            copy = this.onlineMessageSources;
+            this.onlineMessageSources = new ArrayList<>();
+        }
+
+        try {
+            for(ASAPOnlineMessageSource asapOnline : copy) {
+                if(this.closed) return;
+                System.out.println(this.getLogStart() + "going to send online message");
+                asapOnline.sendStoredMessages(this, this.os);
+            }
+        } catch (IOException e) {
+            this.close(e);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //                                                  helper                                                //
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Passes a fixed number of bytes from selector thread to an engine. Never blocks writer.
+     */
+    private class DataPipe extends InputStream {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition dataAvailable = lock.newCondition();
+        private final byte[] ring;
+        private long toRead;
+        private int readPosition = 0;
+        private int size = 0;
+        private boolean writerStarved = false;
+        private boolean discarded = false;
+        private boolean pipeClosed = false;
+
+        DataPipe(long length) {
+            this.ring = new byte[(int) Math.max(1, Math.min(PIPE_CAPACITY, length))];
+            this.toRead = length;
+        }
+
+        /**
+         * take as much as fits - buffer position is moved
+         */
+        void offer(ByteBuffer data) {
+            this.lock.lock();
+            try {
+                int len = data.remaining();
+                if(this.discarded) {
+                    data.position(data.limit());
+                    return;
+                }
+
+                int taken = Math.min(len, this.ring.length - this.size);
+                int writePosition = (this.readPosition + this.size) % this.ring.length;
+                int first = Math.min(taken, this.ring.length - writePosition);
+                data.get(this.ring, writePosition, first);
+                data.get(this.ring, 0, taken - first);
+
+                this.size += taken;
+                if(taken < len) this.writerStarved = true;
+                if(taken > 0) this.dataAvailable.signal();
+            }
+            finally {
+                this.lock.unlock();
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return this.read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) return 0;
+
+            boolean wakeWriter;
+            int read;
+            this.lock.lock();
+            try {
+                if(this.toRead == 0) return -1;
+
+                long timeLeft = processingTimeLeft();
+                while(this.size == 0 && !this.pipeClosed && timeLeft > 0) {
+                    try {
+                        timeLeft = this.dataAvailable.awaitNanos(timeLeft);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("interrupted while waiting for data");
+                    }
+                }
+                if(this.size == 0) {
+                    if(this.pipeClosed) throw new IOException("connection closed");
+                    throw processingTimeExceeded(); // peer stalled
+                }
+
+                read = Math.min(len, this.size);
+                int first = Math.min(read, this.ring.length - this.readPosition);
+                System.arraycopy(this.ring, this.readPosition, b, off, first);
+                System.arraycopy(this.ring, 0, b, off + first, read - first);
+
+                this.readPosition = (this.readPosition + read) % this.ring.length;
+                this.size -= read;
+                this.toRead -= read;
+
+                wakeWriter = this.writerStarved;
+                this.writerStarved = false;
+            }
+            finally {
+                this.lock.unlock();
+            }
+
+            if(wakeWriter) dataConsumed();
+            return read;
+        }
+
+        /**
+         * drop anything not yet read
+         */
+        void discard() {
+            this.lock.lock();
+            try {
+                this.discarded = true;
+                this.size = 0;
+                this.toRead = 0;
+            }
+            finally {
+                this.lock.unlock();
+            }
+
+            dataConsumed();
+        }
+
+        /**
+         * connection is closed - wake reader
+         */
+        void closed() {
+            this.lock.lock();
+            try {
+                this.pipeClosed = true;
+                this.dataAvailable.signalAll();
+            }
+            finally {
+                this.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Queues written bytes - selector thread writes them to socket. Writers wait if too much is queued.
+     */
+    private class ChannelOutputStream extends OutputStream {
+        private static final int CHUNK_SIZE = 8 * 1024;
+
+        private final Queue<ByteBuffer> queue = new LinkedList<>();
+        private ByteBuffer tail = null;
+        private int queuedBytes = 0;
+        private boolean writeRequested = false;
+        private boolean streamClosed = false;
+
+        @Override
+        public void write(int b) throws IOException {
+            this.write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            while(this.queuedBytes > MAX_QUEUED_OUTPUT && !this.streamClosed) {
+                long timeLeft = processingTimeLeft();
+                if(timeLeft <= 0) throw processingTimeExceeded(); // peer does not read
+
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, timeLeft);
+                } catch (InterruptedException e) {
+                    throw new IOException("interrupted while waiting for socket");
+                }
+            }
+            if(this.streamClosed) throw new IOException("connection closed");
+
+            this.queuedBytes += len;
+            while(len > 0) {
+                if(this.tail == null || !this.tail.hasRemaining()) {
+                    if(this.tail != null) this.seal();
+                    this.tail = ByteBuffer.allocate(Math.max(CHUNK_SIZE, Math.min(len, MAX_QUEUED_OUTPUT)));
+                }
+                int copy = Math.min(len, this.tail.remaining());
+                this.tail.put(b, off, copy);
+                off += copy;
+                len -= copy;
+            }
+
+            if(!this.writeRequested) {
+                this.writeRequested = true;
+                server.runInSelectorThread(requestWrite);
+            }
+        }
+
+        private void seal() {
+            this.tail.flip();
+            this.queue.add(this.tail);
+            this.tail = null;
+        }
+
+        /**
+         * selector thread - write as much as socket takes
+         */
+        synchronized void writeQueued() throws IOException {
+            if(this.tail != null && this.tail.position() > 0) this.seal();
+
+            ByteBuffer head;
+            while((head = this.queue.peek()) != null) {
+                this.queuedBytes -= channel.write(head);
+                if(head.hasRemaining()) break;
+                this.queue.remove();
+            }
+
+            if(this.queue.isEmpty() && this.tail == null) {
+                this.writeRequested = false;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+
+            this.notifyAll();
+        }
+
+        synchronized void closed() {
+            this.streamClosed = true;
+            this.notifyAll();
+        }
+
+        @Override
+        public void close() {
+            ASAPSelectorConnection.this.close(new IOException("output stream closed"));
+        }
+    }
+
+    private final Runnable requestWrite = new Runnable() {
+        @Override
+        public void run() {
+            if(key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    };
+
+    void writeQueued() throws IOException {
+        this.os.writeQueued();
+    }
+
+    /**
+     * Runs tasks one after another in an executor.
+     */
+    private static class SerialExecutor implements Runnable {
+        private final ExecutorService executorService;
+        private final Queue<Runnable> tasks = new LinkedList<>();
+        private boolean running = false;
+
+        SerialExecutor(ExecutorService executorService) {
+            this.executorService = executorService;
+        }
+
+        synchronized void execute(Runnable task) {
+            this.tasks.add(task);
+            if(!this.running) {
+                this.running = true;
+                this.executorService.execute(this);
+            }
+        }
+
+        public void run() {
+            while(true) {
+                Runnable task;
+                synchronized(this) {
+                    task = this.tasks.poll();
+                    if(task == null) {
+                        this.running = false;
+                        return;
+                    }
+                }
+
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.writeLogErr(this, "task failed: " + e);
+                }
+            }
+        }
+    }
+}
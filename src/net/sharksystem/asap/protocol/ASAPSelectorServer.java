@@ -0,0 +1,228 @@
+package net.sharksystem.asap.protocol;
+
+import net.sharksystem.asap.MultiASAPEngineFS;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * ASAP server serving any number of peers with a single selector thread. Sockets are non-blocking.
+ * Received bytes are decoded incrementally. Complete PDUs are processed by an executor - one PDU after
+ * another for each peer. Engines see ordinary streams: data of assimilate PDUs are passed on while
+ * they arrive, written bytes are queued and sent when a socket can take them.
+ *
+ * That's an alternative to handleConnection which needs a thread per connection.
+ *
+ * @author thsc
+ */
+public class ASAPSelectorServer implements Runnable {
+    public static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final MultiASAPEngineFS multiASAPEngineFS;
+    private final ExecutorService executorService;
+    private final long maxExecutionTime;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    // selector can only be changed by its thread - other threads leave their wishes here
+    private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed = false;
+    private int numberConnections = 0;
+    private Thread selectorThread = null;
+
+    /**
+     * @param port port number, 0 takes any free port
+     */
+    public ASAPSelectorServer(MultiASAPEngineFS multiASAPEngineFS, int port) throws IOException {
+        this(multiASAPEngineFS, new InetSocketAddress(port), ASAPConnectionExecutor.getSharedExecutor());
+    }
+
+    /**
+     * @param executorService processes PDUs and sends online messages
+     */
+    public ASAPSelectorServer(MultiASAPEngineFS multiASAPEngineFS, InetSocketAddress address,
+                              ExecutorService executorService) throws IOException {
+
+        this(multiASAPEngineFS, address, executorService, MultiASAPEngineFS.DEFAULT_MAX_PROCESSING_TIME);
+    }
+
+    /**
+     * @param executorService processes PDUs and sends online messages
+     * @param maxExecutionTime ms a PDU can be processed - connection is closed if an engine waits longer
+     *                         for its peer
+     */
+    public ASAPSelectorServer(MultiASAPEngineFS multiASAPEngineFS, InetSocketAddress address,
+                              ExecutorService executorService, long maxExecutionTime) throws IOException {
+
+        this.multiASAPEngineFS = multiASAPEngineFS;
+        this.executorService = executorService;
+        this.maxExecutionTime = maxExecutionTime;
+
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.configureBlocking(false);
+        this.serverChannel.socket().bind(address);
+        this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+    }
+
+    private String getLogStart() {
+        return this.getClass().getSimpleName() + "(" + this.multiASAPEngineFS.getOwner() + "): ";
+    }
+
+    public int getPort() {
+        return this.serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * @return number of currently open connections
+     */
+    public synchronized int getNumberConnections() {
+        return this.numberConnections;
+    }
+
+    /**
+     * run selector in a thread of its own
+     */
+    public synchronized void start() {
+        if(this.selectorThread != null) return;
+
+        this.selectorThread = new Thread(this, "asap-selector-" + this.getPort());
+        this.selectorThread.start();
+    }
+
+    public void close() {
+        this.closed = true;
+        this.selector.wakeup();
+    }
+
+    /**
+     * Run task in selector thread
+     */
+    void runInSelectorThread(Runnable task) {
+        this.selectorTasks.add(task);
+        this.selector.wakeup();
+    }
+
+    ExecutorService getExecutorService() {
+        return this.executorService;
+    }
+
+    long getMaxExecutionTime() {
+        return this.maxExecutionTime;
+    }
+
+    MultiASAPEngineFS getMultiASAPEngineFS() {
+        return this.multiASAPEngineFS;
+    }
+
+    synchronized void connectionClosed() {
+        this.numberConnections--;
+    }
+
+    public void run() {
+        System.out.println(this.getLogStart() + "start serving on port " + this.getPort());
+        try {
+            while(!this.closed) {
+                this.selector.select();
+
+                Runnable task;
+                while((task = this.selectorTasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (CancelledKeyException e) {
+                        // connection closed in the meantime
+                    }
+                }
+
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while(keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if(!key.isValid()) continue;
+
+                    if(key.isAcceptable()) {
+                        this.accept();
+                        continue;
+                    }
+
+                    ASAPSelectorConnection connection = (ASAPSelectorConnection) key.attachment();
+                    try {
+                        if(key.isReadable()) {
+                            this.readBuffer.clear();
+                            int read = ((SocketChannel) key.channel()).read(this.readBuffer);
+                            if(read < 0) {
+                                connection.close(new IOException("connection closed by peer"));
+                                continue;
+                            }
+                            this.readBuffer.flip();
+                            connection.received(this.readBuffer);
+                        }
+
+                        if(key.isValid() && key.isWritable()) {
+                            connection.writeQueued();
+                        }
+                    }
+                    catch(IOException e) {
+                        connection.close(e);
+                    }
+                    catch(CancelledKeyException e) {
+                        // connection closed in the meantime
+                    }
+                }
+            }
+        }
+        catch(IOException | ClosedSelectorException e) {
+            System.err.println(this.getLogStart() + "selector failed: " + e.getLocalizedMessage());
+        }
+        finally {
+            this.shutdown();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = this.serverChannel.accept();
+        if(channel == null) return;
+
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        SelectionKey key = channel.register(this.selector, SelectionKey.OP_READ);
+
+        ASAPSelectorConnection connection = new ASAPSelectorConnection(this, channel, key);
+        key.attach(connection);
+
+        synchronized(this) {
+            this.numberConnections++;
+        }
+
+        connection.start();
+    }
+
+    private void shutdown() {
+        for(SelectionKey key : this.selector.keys()) {
+            if(key.attachment() instanceof ASAPSelectorConnection) {
+                ((ASAPSelectorConnection) key.attachment()).close(new IOException("server closed"));
+            }
+        }
+
+        try {
+            this.serverChannel.close();
+            this.selector.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+        System.out.println(this.getLogStart() + "closed");
+    }
+}
@@ -16,6 +16,8 @@ public interface ASAP_1_0 {
     byte ASSIMILATE_CMD = 'A';
     String ANY_FORMAT = "any_asap";
     String ASAP_MANAGEMENT_FORMAT = "asap/control";
+    String ASAP_CAPABILITIES_FORMAT = "asap/capabilities";
+    String ASAP_RESUME_FORMAT = "asap/resume";
     int ERA_NOT_DEFINED = -1;
 
     /*
@@ -25,7 +27,7 @@ public interface ASAP_1_0 {
 
     /**
      * @param peer identifies a peer - can be null
-     * @param era - current era of this peer (range 0..2^8) (-1 indicates: no information about era to be transmitted)
+     * @param era - current era of this peer (non-negative int) (-1 indicates: no information about era to be transmitted)
      * @param channel describes a channel (can be null)
      * @param format describes format - used to describe an application that can deal with transmitted data format.
      * @param os stream that PDU is to be sent
@@ -104,6 +106,14 @@ public interface ASAP_1_0 {
                     long length, List<Long> offsets, InputStream dataIS, OutputStream os, boolean signed)
             throws IOException, ASAPException;
 
+    /**
+     * Same as assimilate with offset list - offsets are passed as primitives
+     * @see #assimilate(CharSequence, CharSequence, CharSequence, CharSequence, int, long, List, InputStream, OutputStream, boolean)
+     */
+    void assimilate(CharSequence peer, CharSequence recipientPeer, CharSequence format, CharSequence channelUri, int era,
+                    long length, long[] offsets, InputStream dataIS, OutputStream os, boolean signed)
+            throws IOException, ASAPException;
+
     /**
      *
      * @param peer sender (optional, can be null)
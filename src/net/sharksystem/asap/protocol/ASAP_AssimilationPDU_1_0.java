@@ -33,6 +33,12 @@ public interface ASAP_AssimilationPDU_1_0 extends ASAP_PDU_1_0 {
      */
     List<Integer> getMessageOffsets();
 
+    /**
+     * @return message offsets as primitives - same content as getMessageOffsets() without any boxing.
+     * Offsets are not limited to integer range. Array is a copy.
+     */
+    long[] getMessageOffsetArray();
+
     /**
      * Streams data into a storage. That method should be used instead of getData() when possible.
      * Data can directly be passed from network to its final destination without allocation memory
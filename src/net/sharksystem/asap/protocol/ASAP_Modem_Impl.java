@@ -16,6 +16,36 @@ public class ASAP_Modem_Impl implements ASAP_1_0 {
     CMD | FLAGS | ... specifics
      */
 
+    private boolean binaryOffsets = false;
+
+    /**
+     * Message offsets in assimilate PDUs are sent as decimal list by default. A compact binary encoding
+     * is used if enabled. Only enable it if remote peer can read it. Both encodings are always read.
+     */
+    public void setBinaryOffsets(boolean binaryOffsets) {
+        this.binaryOffsets = binaryOffsets;
+    }
+
+    public boolean isBinaryOffsets() {
+        return this.binaryOffsets;
+    }
+
+    private ASAPCompression compression = null;
+
+    /**
+     * Data of assimilate PDUs are deflated if compression is set and binary offsets are enabled.
+     * Only set it if remote peer can read it. Compressed data are always read - up to maximum length of
+     * compression or its default if not set.
+     * @param compression compression settings and statistics - null switches compression off
+     */
+    public void setCompression(ASAPCompression compression) {
+        this.compression = compression;
+    }
+
+    public ASAPCompression getCompression() {
+        return this.compression;
+    }
+
     @Override
     public void offer(CharSequence peer, CharSequence format, CharSequence channel, int era,
                       OutputStream os, boolean signed) throws IOException, ASAPException {
@@ -49,7 +79,17 @@ public class ASAP_Modem_Impl implements ASAP_1_0 {
                            CharSequence channel, int era, long length, List<Long> offsets, InputStream dataIS,
                            OutputStream os, boolean signed) throws IOException, ASAPException {
 
-        AssimilationPDU_Impl.sendPDU(peer, recipientPeer, format, channel, era, length, offsets, dataIS, os, signed);
+        this.assimilate(peer, recipientPeer, format, channel, era, length,
+                AssimilationPDU_Impl.list2offsets(offsets), dataIS, os, signed);
+    }
+
+    @Override
+    public void assimilate(CharSequence peer, CharSequence recipientPeer, CharSequence format,
+                           CharSequence channel, int era, long length, long[] offsets, InputStream dataIS,
+                           OutputStream os, boolean signed) throws IOException, ASAPException {
+
+        AssimilationPDU_Impl.sendPDU(peer, recipientPeer, format, channel, era, length, offsets, dataIS, os, signed,
+                this.binaryOffsets, this.compression);
     }
 
     @Override
@@ -68,15 +108,34 @@ public class ASAP_Modem_Impl implements ASAP_1_0 {
         byte cmd = PDU_Impl.readByte(is);
         int flagsInt = PDU_Impl.readByte(is);
 
+        return this.createPDU(cmd, flagsInt, is, null);
+    }
+
+    /**
+     * @param is delivers parameters following command and flags
+     * @param dataIS delivers data section of assimilate PDUs - read from is if null
+     */
+    ASAP_PDU_1_0 createPDU(byte cmd, int flagsInt, InputStream is, InputStream dataIS)
+            throws IOException, ASAPException {
+
         ASAP_PDU_1_0 pdu = null;
 
         switch(cmd) {
             case ASAP_1_0.OFFER_CMD: pdu = new OfferPDU_Impl(flagsInt, is); break;
             case ASAP_1_0.INTEREST_CMD: pdu = new InterestPDU_Impl(flagsInt, is); break;
-            case ASAP_1_0.ASSIMILATE_CMD: pdu = new AssimilationPDU_Impl(flagsInt, is); break;
+            case ASAP_1_0.ASSIMILATE_CMD: pdu = new AssimilationPDU_Impl(flagsInt, is, dataIS,
+                    this.compression != null ?
+                            this.compression.getMaxLength() : ASAPCompression.DEFAULT_MAX_LENGTH); break;
             default: throw new ASAPException("unknown command: " + cmd);
         }
 
+        if(this.compression != null && pdu instanceof AssimilationPDU_Impl) {
+            AssimilationPDU_Impl assimilationPDU = (AssimilationPDU_Impl) pdu;
+            if(assimilationPDU.isDeflated()) {
+                this.compression.received(assimilationPDU.getWireLength(), assimilationPDU.getLength());
+            }
+        }
+
         return pdu;
     }
 }
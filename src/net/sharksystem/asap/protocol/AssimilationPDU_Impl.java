@@ -1,25 +1,57 @@
 package net.sharksystem.asap.protocol;
 
 import net.sharksystem.asap.ASAPException;
+import net.sharksystem.asap.util.StreamHelper;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.StringTokenizer;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
-class AssimilationPDU_Impl extends PDU_Impl implements ASAP_AssimilationPDU_1_0 {
+class AssimilationPDU_Impl extends PDU_Impl implements ASAP_AssimilationPDU_1_0, Closeable {
     private final long dataLength;
+    private final long wireLength;
     private final InputStream is;
     private String recipientPeer;
     public static final String OFFSET_DELIMITER = ",";
-    private List<Integer> offsets = new ArrayList<>();
+
+    /*
+    binary offsets: MARKER | ENCODING | COUNT | DELTA_1 | .. | DELTA_n [| INFLATED_LENGTH]
+    count and deltas are unsigned varints (7 bit groups, lowest first, high bit set if more follow).
+    Data are deflated if encoding has the deflated bit set. LENGTH is the number of bytes on the wire
+    in this case, inflated length follows offsets. Binary offsets are sent with deflated data even if
+    there are no offsets.
+    Marker can never be the first byte of the decimal encoding - receivers detect the encoding.
+    Binary encoding must only be sent to peers that can read it.
+     */
+    static final byte OFFSETS_BINARY_MARKER = 0x00;
+    static final byte OFFSETS_ENCODING_VARINT_DELTA = 0x01;
+    static final byte OFFSETS_ENCODING_DEFLATED = 0x02;
+
+    private long inflatedLength = -1;
+    private long[] offsets = new long[0];
 
     // PDU: CMD | FLAGS | PEER | RECIPIENT | FORMAT | CHANNEL | ERA | OFFSETS | LENGTH | DATA
 
     public AssimilationPDU_Impl(int flagsInt, InputStream is) throws IOException, ASAPException {
+        this(flagsInt, is, null, ASAPCompression.DEFAULT_MAX_LENGTH);
+    }
+
+    /**
+     * @param dataIS delivers data section - deflated data are inflated while read. Data are read from is
+     *               if null - deflated data are read completely in this case.
+     * @param maxDeflatedLength deflated pdus are rejected if data are longer - compressed or inflated
+     */
+    AssimilationPDU_Impl(int flagsInt, InputStream is, InputStream dataIS, int maxDeflatedLength)
+            throws IOException, ASAPException {
+
         super(ASAP_1_0.ASSIMILATE_CMD);
 
         evaluateFlags(flagsInt);
@@ -31,13 +63,81 @@ class AssimilationPDU_Impl extends PDU_Impl implements ASAP_AssimilationPDU_1_0
         if(this.eraSet()) { this.readEra(is); }
         if(this.offsetsSet()) { this.readOffsets(is); }
 
-        this.dataLength = this.readLongParameter(is);
+        this.wireLength = this.readLongParameter(is);
+
+        // peer decides about lengths - check before anything is allocated
+        if(this.inflatedLength >= 0
+                && (this.wireLength > maxDeflatedLength || this.inflatedLength > maxDeflatedLength)) {
+            throw new ASAPException("deflated data exceed maximum of " + maxDeflatedLength + " bytes: "
+                    + this.wireLength + " compressed / " + this.inflatedLength + " inflated");
+        }
+
+        if(this.inflatedLength < 0) {
+            this.dataLength = this.wireLength;
+            this.is = dataIS != null ? dataIS : is;
+        } else if(dataIS != null) {
+            // data are positioned by whoever delivers them
+            this.dataLength = this.inflatedLength;
+            this.is = new InflatingInputStream(dataIS);
+        } else {
+            // read compressed data completely - stream is positioned on next pdu regardless of data usage
+            byte[] deflated = new byte[(int) this.wireLength];
+            PDU_Impl.readFully(is, deflated);
+
+            this.dataLength = this.inflatedLength;
+            this.is = new InflatingInputStream(new ByteArrayInputStream(deflated));
+        }
+    }
+
+    /**
+     * Release native inflater memory of a deflated pdu. Data cannot be read any longer. Nothing happens
+     * with other pdus - their data belong to the connection.
+     */
+    @Override
+    public void close() {
+        if(this.is instanceof InflatingInputStream) {
+            ((InflatingInputStream) this.is).close();
+        }
+    }
+
+    /**
+     * Inflates pdu data. Inflater is released as soon as deflated data end or with close. Source is not
+     * closed - it is part of the connection.
+     */
+    private static class InflatingInputStream extends InflaterInputStream {
+        private boolean ended = false;
+
+        InflatingInputStream(InputStream source) {
+            super(source, new Inflater());
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if(this.ended) return -1;
+
+            int read = super.read(b, off, len);
+            if(read < 0 || this.inf.finished()) this.close();
+            return read;
+        }
+
+        @Override
+        public synchronized int available() throws IOException {
+            return this.ended ? 0 : super.available();
+        }
 
-        this.is = is;
+        @Override
+        public synchronized void close() {
+            if(!this.ended) {
+                this.ended = true;
+                this.inf.end();
+            }
+        }
     }
 
     private void readOffsets(InputStream is) throws IOException, ASAPException {
-        this.offsets = string2list(this.readCharSequenceParameter(is));
+        long[] inflatedLength = { -1 };
+        this.offsets = bytes2offsets(this.readByteArrayParameter(is), inflatedLength);
+        this.inflatedLength = inflatedLength[0];
     }
 
     private void readRecipientPeer(InputStream is) throws IOException, ASAPException {
@@ -45,7 +145,8 @@ class AssimilationPDU_Impl extends PDU_Impl implements ASAP_AssimilationPDU_1_0
     }
 
     static void sendPDU(CharSequence peer, CharSequence recipientPeer, CharSequence format, CharSequence channel,
-                        int era, long length, List<Long> offsets, InputStream is, OutputStream os, boolean signed)
+                        int era, long length, long[] offsets, InputStream is, OutputStream os, boolean signed,
+                        boolean binaryOffsets, ASAPCompression compression)
             throws IOException, ASAPException {
 
         // first: check protocol errors
@@ -54,67 +155,248 @@ class AssimilationPDU_Impl extends PDU_Impl implements ASAP_AssimilationPDU_1_0
         PDU_Impl.checkValidSign(peer, signed);
         PDU_Impl.checkValidStream(os);
 
+        // compress - requires binary offsets to announce it
+        byte[] data = null;
+        byte[] deflated = null;
+        if(binaryOffsets && compression != null && ascending(offsets) && compression.shouldCompress(length)) {
+            data = new byte[(int) length];
+            PDU_Impl.readFully(is, data);
+            deflated = compression.deflate(data);
+        }
+
         // create parameter bytes
         int flags = 0;
         flags = PDU_Impl.setFlag(peer, flags, PEER_BIT_POSITION);
         flags = PDU_Impl.setFlag(recipientPeer, flags, RECIPIENT_PEER_BIT_POSITION);
         flags = PDU_Impl.setFlag(channel, flags, CHANNEL_BIT_POSITION);
         flags = PDU_Impl.setFlag(era, flags, ERA_BIT_POSITION);
-        flags = PDU_Impl.setFlag(offsets, flags, OFFSETS_BIT_POSITION);
+        if(deflated != null) {
+            flags = PDU_Impl.setFlag(1, flags, OFFSETS_BIT_POSITION); // always sent with deflated data
+        } else {
+            flags = PDU_Impl.setFlag(offsets, flags, OFFSETS_BIT_POSITION);
+        }
 
-        PDU_Impl.sendHeader(ASAP_1_0.ASSIMILATE_CMD, flags, os);
+        ByteArrayOutputStream pdu = PDU_Impl.startPDU();
+        PDU_Impl.sendHeader(ASAP_1_0.ASSIMILATE_CMD, flags, pdu);
+
+        PDU_Impl.sendCharSequenceParameter(peer, pdu); // opt
+        PDU_Impl.sendCharSequenceParameter(recipientPeer, pdu); // opt
+        PDU_Impl.sendCharSequenceParameter(format, pdu); // mand
+        PDU_Impl.sendCharSequenceParameter(channel, pdu); // opt
+        PDU_Impl.sendNonNegativeIntegerParameter(era, pdu); // opt
+        if(deflated != null) {
+            PDU_Impl.sendByteArrayParameter(offsets2bytes(offsets, length), pdu); // mand if deflated
+            PDU_Impl.sendNonNegativeLongParameter(deflated.length, pdu); // mand
+
+            PDU_Impl.writePDU(pdu, os);
+            os.write(deflated);
+            return;
+        }
+
+        if(binaryOffsets) {
+            PDU_Impl.sendByteArrayParameter(offsets2bytes(offsets), pdu); // opt
+        } else {
+            PDU_Impl.sendCharSequenceParameter(offsets2string(offsets), pdu); // opt
+        }
 
-        PDU_Impl.sendCharSequenceParameter(peer, os); // opt
-        PDU_Impl.sendCharSequenceParameter(recipientPeer, os); // opt
-        PDU_Impl.sendCharSequenceParameter(format, os); // mand
-        PDU_Impl.sendCharSequenceParameter(channel, os); // opt
-        PDU_Impl.sendNonNegativeIntegerParameter(era, os); // opt
-        PDU_Impl.sendCharSequenceParameter(list2string(offsets), os); // opt
+        PDU_Impl.sendNonNegativeLongParameter(length, pdu); // mand
 
-        PDU_Impl.sendNonNegativeLongParameter(length, os); // mand
+        PDU_Impl.writePDU(pdu, os);
 
-        // stream data
-        while(length-- > 0) {
-            os.write(is.read());
+        if(data != null) {
+            // already read - did not shrink
+            os.write(data);
+        } else {
+            // stream data - zero copy if source is a file and target a file or socket channel
+            StreamHelper.copy(is, os, length);
         }
 
         // TODO: signature
     }
 
-    static String list2string(List<Long> list) {
-        if(list == null || list.size() == 0) return null;
+    static long[] list2offsets(List<Long> list) {
+        if(list == null) return null;
 
-        StringBuilder sb = new StringBuilder();
+        long[] offsets = new long[list.size()];
+        int i = 0;
+        for(Long offset : list) {
+            offsets[i++] = offset;
+        }
 
-        boolean first = true;
-        for(Long i : list) {
-            if(!first) {
+        return offsets;
+    }
+
+    static String offsets2string(long[] offsets) {
+        if(offsets == null || offsets.length == 0) return null;
+
+        StringBuilder sb = new StringBuilder(offsets.length * 8);
+
+        for(int i = 0; i < offsets.length; i++) {
+            if(i > 0) {
                 sb.append(OFFSET_DELIMITER);
             }
-            else first = false;
 
-            sb.append(i);
+            sb.append(offsets[i]);
         }
 
         return  sb.toString();
     }
 
-    private List<Integer> string2list(String s) throws ASAPException {
-        List<Integer> l = new ArrayList<>();
+    /**
+     * parse comma separated decimals without any intermediate objects
+     */
+    static long[] string2offsets(String s) throws ASAPException {
+        long[] offsets = new long[16];
+        int number = 0;
+
+        long value = 0;
+        boolean digits = false;
+        for(int i = 0; i <= s.length(); i++) {
+            char c = i < s.length() ? s.charAt(i) : OFFSET_DELIMITER.charAt(0);
+            if(c == OFFSET_DELIMITER.charAt(0)) {
+                if(digits) {
+                    if(number == offsets.length) {
+                        offsets = Arrays.copyOf(offsets, number * 2);
+                    }
+                    offsets[number++] = value;
+                }
+                value = 0;
+                digits = false;
+            } else if(c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                digits = true;
+                if(value < 0) {
+                    throw new ASAPException("offset exceeds long in received data: " + s);
+                }
+            } else {
+                throw new ASAPException("malformed offset parameter in received data: " + s);
+            }
+        }
+
+        return Arrays.copyOf(offsets, number);
+    }
+
+    /**
+     * @return binary offset encoding or decimal encoding if offsets are not ascending.
+     */
+    static byte[] offsets2bytes(long[] offsets) {
+        if(offsets == null || offsets.length == 0) return null;
 
-        StringTokenizer st = new StringTokenizer(s, OFFSET_DELIMITER);
+        // no compact encoding - fall back
+        if(!ascending(offsets)) return offsets2string(offsets).getBytes();
+
+        return offsets2bytes(offsets, -1);
+    }
 
-        try {
-            while (st.hasMoreTokens()) {
-                l.add(Integer.parseInt(st.nextToken()));
+    /**
+     * @param offsets must be ascending, can be null
+     * @param inflatedLength length of uncompressed data if data are deflated - negative otherwise
+     */
+    private static byte[] offsets2bytes(long[] offsets, long inflatedLength) {
+        int count = offsets == null ? 0 : offsets.length;
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(count * 2 + 16);
+        baos.write(OFFSETS_BINARY_MARKER);
+        baos.write(inflatedLength < 0 ?
+                OFFSETS_ENCODING_VARINT_DELTA : OFFSETS_ENCODING_VARINT_DELTA | OFFSETS_ENCODING_DEFLATED);
+        writeVarLong(count, baos);
+
+        long previous = 0;
+        for(int i = 0; i < count; i++) {
+            writeVarLong(offsets[i] - previous, baos);
+            previous = offsets[i];
+        }
+
+        if(inflatedLength >= 0) {
+            writeVarLong(inflatedLength, baos);
+        }
+
+        return baos.toByteArray();
+    }
+
+    private static boolean ascending(long[] offsets) {
+        if(offsets == null) return true;
+
+        long previous = 0;
+        for(long offset : offsets) {
+            if(offset < previous) return false;
+            previous = offset;
+        }
+
+        return true;
+    }
+
+    /**
+     * @param bytes offsets parameter - binary or decimal encoding
+     */
+    static long[] bytes2offsets(byte[] bytes) throws ASAPException {
+        return bytes2offsets(bytes, null);
+    }
+
+    /**
+     * @param inflatedLength receives inflated length at index 0 if data are deflated - can be null
+     */
+    static long[] bytes2offsets(byte[] bytes, long[] inflatedLength) throws ASAPException {
+        if(bytes.length == 0 || bytes[0] != OFFSETS_BINARY_MARKER) {
+            return string2offsets(new String(bytes));
+        }
+
+        if(bytes.length < 2 || (bytes[1] & ~OFFSETS_ENCODING_DEFLATED) != OFFSETS_ENCODING_VARINT_DELTA) {
+            throw new ASAPException("unknown offset encoding in received data");
+        }
+        boolean deflated = (bytes[1] & OFFSETS_ENCODING_DEFLATED) != 0;
+
+        int[] position = { 2 };
+        long count = readVarLong(bytes, position);
+        // each offset takes at least one byte
+        if(count > bytes.length - position[0]) {
+            throw new ASAPException("malformed binary offsets: count " + count + " exceeds data");
+        }
+
+        long[] offsets = new long[(int) count];
+        long offset = 0;
+        for(int i = 0; i < offsets.length; i++) {
+            offset += readVarLong(bytes, position);
+            if(offset < 0) {
+                throw new ASAPException("offset exceeds long in received data");
             }
+            offsets[i] = offset;
         }
-        catch(RuntimeException re) {
-            throw new ASAPException("malformed offset parameter in received data: " + s);
+
+        if(deflated) {
+            long length = readVarLong(bytes, position);
+            if(length < 0) {
+                throw new ASAPException("malformed binary offsets: negative inflated length");
+            }
+            if(inflatedLength != null) inflatedLength[0] = length;
         }
 
-        return l;
+        if(position[0] != bytes.length) {
+            throw new ASAPException("malformed binary offsets: trailing bytes");
+        }
+
+        return offsets;
+    }
+
+    private static void writeVarLong(long value, ByteArrayOutputStream baos) {
+        while((value & ~0x7FL) != 0) {
+            baos.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        baos.write((int) value);
+    }
+
+    private static long readVarLong(byte[] bytes, int[] position) throws ASAPException {
+        long value = 0;
+        for(int shift = 0; shift < 64; shift += 7) {
+            if(position[0] >= bytes.length) {
+                throw new ASAPException("malformed binary offsets: data ends within number");
+            }
+            byte b = bytes[position[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0) return value;
+        }
 
+        throw new ASAPException("malformed binary offsets: number too long");
     }
 
     @Override
@@ -123,9 +405,29 @@ class AssimilationPDU_Impl extends PDU_Impl implements ASAP_AssimilationPDU_1_0
     @Override
     public long getLength() { return this.dataLength; }
 
+    /**
+     * @return true if data were deflated on the wire - stream delivers inflated data anyway
+     */
+    boolean isDeflated() { return this.inflatedLength >= 0; }
+
+    /**
+     * @return number of data bytes on the wire - less than length if data were deflated
+     */
+    long getWireLength() { return this.wireLength; }
+
     @Override
     public List<Integer> getMessageOffsets() {
-        return this.offsets;
+        List<Integer> l = new ArrayList<>(this.offsets.length);
+        for(long offset : this.offsets) {
+            l.add((int) offset);
+        }
+
+        return l;
+    }
+
+    @Override
+    public long[] getMessageOffsetArray() {
+        return this.offsets.clone();
     }
 
     @Override
@@ -142,8 +444,6 @@ class AssimilationPDU_Impl extends PDU_Impl implements ASAP_AssimilationPDU_1_0
 
     @Override
     public void streamData(OutputStream os, long length) throws IOException {
-        for(int i = 0; i < length; i++) {
-            os.write(this.is.read());
-        }
+        StreamHelper.copy(this.is, os, length);
     }
 }
@@ -2,6 +2,7 @@ package net.sharksystem.asap.protocol;
 
 import net.sharksystem.asap.ASAPException;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -57,14 +58,17 @@ public class InterestPDU_Impl extends PDU_Impl implements ASAP_Interest_PDU_1_0
         flags = PDU_Impl.setFlag(eraFrom, flags, ERA_FROM_BIT_POSITION);
         flags = PDU_Impl.setFlag(eraTo, flags, ERA_TO_BIT_POSITION);
 
-        PDU_Impl.sendHeader(ASAP_1_0.INTEREST_CMD, flags, os);
+        ByteArrayOutputStream pdu = PDU_Impl.startPDU();
+        PDU_Impl.sendHeader(ASAP_1_0.INTEREST_CMD, flags, pdu);
 
-        PDU_Impl.sendCharSequenceParameter(peer, os); // opt
-        PDU_Impl.sendCharSequenceParameter(sourcePeer, os); // opt
-        PDU_Impl.sendCharSequenceParameter(format, os); // mand
-        PDU_Impl.sendCharSequenceParameter(channel, os); // opt
-        PDU_Impl.sendNonNegativeIntegerParameter(eraFrom, os); // opt
-        PDU_Impl.sendNonNegativeIntegerParameter(eraTo, os); // opt
+        PDU_Impl.sendCharSequenceParameter(peer, pdu); // opt
+        PDU_Impl.sendCharSequenceParameter(sourcePeer, pdu); // opt
+        PDU_Impl.sendCharSequenceParameter(format, pdu); // mand
+        PDU_Impl.sendCharSequenceParameter(channel, pdu); // opt
+        PDU_Impl.sendNonNegativeIntegerParameter(eraFrom, pdu); // opt
+        PDU_Impl.sendNonNegativeIntegerParameter(eraTo, pdu); // opt
+
+        PDU_Impl.writePDU(pdu, os);
 
         // TODO: signature
     }
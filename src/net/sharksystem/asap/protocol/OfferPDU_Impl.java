@@ -2,6 +2,7 @@ package net.sharksystem.asap.protocol;
 
 import net.sharksystem.asap.ASAPException;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -34,12 +35,15 @@ class OfferPDU_Impl extends PDU_Impl implements ASAP_OfferPDU_1_0 {
         flags = PDU_Impl.setFlag(era, flags, ERA_BIT_POSITION);
 
         // PDU: CMD | FLAGS | PEER | FORMAT | CHANNEL | ERA
-        PDU_Impl.sendHeader(ASAP_1_0.OFFER_CMD, flags, os);
+        ByteArrayOutputStream pdu = PDU_Impl.startPDU();
+        PDU_Impl.sendHeader(ASAP_1_0.OFFER_CMD, flags, pdu);
 
-        PDU_Impl.sendCharSequenceParameter(peer, os); // opt
-        PDU_Impl.sendCharSequenceParameter(format, os); // mand
-        PDU_Impl.sendCharSequenceParameter(channel, os); // opt
-        PDU_Impl.sendNonNegativeIntegerParameter(era, os); // opt
+        PDU_Impl.sendCharSequenceParameter(peer, pdu); // opt
+        PDU_Impl.sendCharSequenceParameter(format, pdu); // mand
+        PDU_Impl.sendCharSequenceParameter(channel, pdu); // opt
+        PDU_Impl.sendNonNegativeIntegerParameter(era, pdu); // opt
+
+        PDU_Impl.writePDU(pdu, os);
 
         // TODO: signature
     }
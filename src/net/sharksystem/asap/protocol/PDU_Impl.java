@@ -2,6 +2,8 @@ package net.sharksystem.asap.protocol;
 
 import net.sharksystem.asap.ASAPException;
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -55,6 +57,36 @@ abstract class PDU_Impl implements ASAP_PDU_1_0{
         return sb.toString();
     }
 
+    /** PDU is encoded in memory and written with a single write - buffers are re-used by each thread */
+    private static final int MAX_KEPT_PDU_BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<ByteArrayOutputStream> pduBuffer = new ThreadLocal<ByteArrayOutputStream>() {
+        @Override
+        protected ByteArrayOutputStream initialValue() {
+            return new ByteArrayOutputStream(256);
+        }
+    };
+
+    /**
+     * @return empty buffer to encode a pdu
+     */
+    static ByteArrayOutputStream startPDU() {
+        ByteArrayOutputStream buffer = pduBuffer.get();
+        buffer.reset();
+        return buffer;
+    }
+
+    /**
+     * write encoded pdu (or its header) with a single write
+     */
+    static void writePDU(ByteArrayOutputStream buffer, OutputStream os) throws IOException {
+        buffer.writeTo(os);
+
+        if(buffer.size() > MAX_KEPT_PDU_BUFFER_SIZE) {
+            // don't keep memory of huge pdus
+            pduBuffer.remove();
+        }
+    }
+
     protected static void sendHeader(byte cmd, int flags, OutputStream os) throws IOException {
         PDU_Impl.sendByteParameter(cmd, os); // mand
         PDU_Impl.sendByteParameter((byte)flags, os); // mand
@@ -148,13 +180,20 @@ abstract class PDU_Impl implements ASAP_PDU_1_0{
 
     static protected void sendCharSequenceParameter(CharSequence parameter, OutputStream os) throws IOException {
         if(parameter == null || parameter.length() < 1) return;
-        byte[] bytes = parameter.toString().getBytes();
-        sendNonNegativeIntegerParameter(bytes.length, os);
-        os.write(bytes);
+        sendByteArrayParameter(parameter.toString().getBytes(), os);
+    }
+
+    /**
+     * same framing as char sequences: length | bytes
+     */
+    static void sendByteArrayParameter(byte[] parameter, OutputStream os) throws IOException {
+        if(parameter == null || parameter.length < 1) return;
+        sendNonNegativeIntegerParameter(parameter.length, os);
+        os.write(parameter);
     }
 
     static void sendByteParameter(byte parameter, OutputStream os) throws IOException {
-        os.write(new byte[] { parameter} );
+        os.write(parameter);
     }
 
 
@@ -199,7 +238,8 @@ abstract class PDU_Impl implements ASAP_PDU_1_0{
     protected short readShortParameter(InputStream is) throws IOException, ASAPException {
         int value = this.readByteParameter(is);
         value = value << 8;
-        int right = this.readByteParameter(is);
+        // lower part is unsigned
+        int right = this.readByteParameter(is) & 0xFF;
         value += right;
         return (short) value;
     }
@@ -207,7 +247,7 @@ abstract class PDU_Impl implements ASAP_PDU_1_0{
     protected int readIntegerParameter(InputStream is) throws IOException, ASAPException {
         int value = this.readShortParameter(is);
         value = value << 16;
-        int right = this.readShortParameter(is);
+        int right = this.readShortParameter(is) & 0xFFFF;
         value += right;
         return value;
     }
@@ -215,18 +255,38 @@ abstract class PDU_Impl implements ASAP_PDU_1_0{
     protected long readLongParameter(InputStream is) throws IOException, ASAPException {
         long value = this.readIntegerParameter(is);
         value = value << 32;
-        long right = this.readIntegerParameter(is);
+        long right = this.readIntegerParameter(is) & 0xFFFFFFFFL;
         value += right;
         return value;
     }
 
     protected String readCharSequenceParameter(InputStream is) throws IOException, ASAPException {
+        return new String(this.readByteArrayParameter(is));
+    }
+
+    protected byte[] readByteArrayParameter(InputStream is) throws IOException, ASAPException {
         int length = this.readIntegerParameter(is);
+        if(length < 0) {
+            throw new ASAPException("negative parameter length: " + length);
+        }
         byte[] parameterBytes = new byte[length];
+        PDU_Impl.readFully(is, parameterBytes);
 
-        is.read(parameterBytes);
+        return parameterBytes;
+    }
 
-        return new String(parameterBytes);
+    /**
+     * read can return less bytes than requested - fill buffer completely
+     */
+    static void readFully(InputStream is, byte[] buffer) throws IOException {
+        int offset = 0;
+        while(offset < buffer.length) {
+            int read = is.read(buffer, offset, buffer.length - offset);
+            if(read < 0) {
+                throw new EOFException("stream ended within pdu");
+            }
+            offset += read;
+        }
     }
 
 
@@ -274,6 +334,13 @@ abstract class PDU_Impl implements ASAP_PDU_1_0{
         return flags;
     }
 
+    static int setFlag(long[] parameter, int flags, int bit_position) {
+        if(parameter != null && parameter.length > 0) {
+            return setFlag(1, flags, bit_position);
+        }
+        return flags;
+    }
+
     static int setFlag(int parameter, int flags, int bit_position) {
         if(parameter != ERA_NOT_DEFINED) {
             int newFlag = 1;
@@ -298,9 +365,8 @@ abstract class PDU_Impl implements ASAP_PDU_1_0{
     }
 
     static void checkValidEra(int era) throws ASAPException {
+        // era is sent as integer - any non-negative int value is fine (ASAP.MAX_ERA)
         if(era < -1) throw new ASAPException("era cannot be smaller than -1");
-        int maxEra = 2^8-1;
-        if(era > maxEra) throw new ASAPException("era exceeded max limit of 2^8-1");
     }
 
 }
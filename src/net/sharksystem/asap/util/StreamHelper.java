@@ -0,0 +1,184 @@
+package net.sharksystem.asap.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Block oriented copy operations. Messages and chunks are moved in large blocks instead of
+ * single bytes. File channels are used whenever both sides allow it - data do not even
+ * touch the java heap in that case.
+ */
+public class StreamHelper {
+    public static final int DEFAULT_COPY_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Copy exactly length bytes from stream into file channel. Bytes are written starting at position.
+     * @param is source
+     * @param target target channel
+     * @param position position in target channel
+     * @param length number of bytes to be copied
+     * @throws IOException stream ended before length bytes could be read or problems when writing
+     */
+    public static void copy(InputStream is, FileChannel target, long position, long length) throws IOException {
+        if(length <= 0) return;
+
+        if(is instanceof FileInputStream) {
+            // file to file - let the os do the job
+            FileChannel source = ((FileInputStream) is).getChannel();
+            while(length > 0) {
+                long transferred = target.transferFrom(source, position, length);
+                if(transferred <= 0) {
+                    throw new EOFException("source file ended before message was complete");
+                }
+                position += transferred;
+                length -= transferred;
+            }
+            return;
+        }
+
+        byte[] buffer = new byte[StreamHelper.getBufferSize(length)];
+        while(length > 0) {
+            int len = (int) Math.min(buffer.length, length);
+            int read = is.read(buffer, 0, len);
+            if(read < 0) {
+                throw new EOFException("stream ended before message was complete");
+            }
+
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, read);
+            while(byteBuffer.hasRemaining()) {
+                position += target.write(byteBuffer, position);
+            }
+            length -= read;
+        }
+    }
+
+    /**
+     * Copy exactly length bytes from stream into another stream. Data are transferred by the os
+     * (FileChannel.transferTo) if source is a file and target is either a file or a stream that is
+     * a channel as well (e.g. a socket or pipe adapter). Large buffers are used in any other case.
+     *
+     * @param is source
+     * @param os target
+     * @param length number of bytes to be copied
+     * @throws IOException stream ended before length bytes could be read or problems when writing
+     */
+    public static void copy(InputStream is, OutputStream os, long length) throws IOException {
+        if(length <= 0) return;
+
+        WritableByteChannel targetChannel = null;
+        if(os instanceof FileOutputStream) {
+            targetChannel = ((FileOutputStream) os).getChannel();
+        } else if(os instanceof WritableByteChannel) {
+            targetChannel = (WritableByteChannel) os;
+        }
+
+        if(is instanceof FileInputStream && targetChannel != null) {
+            // zero copy
+            FileChannel source = ((FileInputStream) is).getChannel();
+            long position = source.position();
+            long end = position + length;
+            while(position < end) {
+                long transferred = source.transferTo(position, end - position, targetChannel);
+                if(transferred <= 0) {
+                    if(position >= source.size()) {
+                        throw new EOFException("source file ended before data were transmitted");
+                    }
+                    // target takes nothing right now (non-blocking channel) - stream the rest
+                    break;
+                }
+                position += transferred;
+            }
+            // keep stream position in sync with what was transferred
+            source.position(position);
+            length = end - position;
+        }
+
+        byte[] buffer = new byte[StreamHelper.getBufferSize(length)];
+        while(length > 0) {
+            int read = is.read(buffer, 0, (int) Math.min(buffer.length, length));
+            if(read < 0) {
+                throw new EOFException("stream ended before data were transmitted");
+            }
+            os.write(buffer, 0, read);
+            length -= read;
+        }
+    }
+
+    /**
+     * Write a byte array into file channel starting at position
+     */
+    public static void write(byte[] data, FileChannel target, long position) throws IOException {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(data);
+        while(byteBuffer.hasRemaining()) {
+            position += target.write(byteBuffer, position);
+        }
+    }
+
+    /**
+     * @param length number of bytes to be copied
+     * @return size of a copy buffer - never larger than necessary
+     */
+    public static int getBufferSize(long length) {
+        return (int) Math.max(1, Math.min(DEFAULT_COPY_BUFFER_SIZE, length));
+    }
+
+    /**
+     * Replace content of a file. Content is written into a temporary file in the same folder which
+     * is renamed afterwards. A crash leaves either old or new content - never a truncated file.
+     * Streams still open on the former file do not write into the new one - reopen them.
+     */
+    public static void writeAtomically(ByteArrayOutputStream content, File target) throws IOException {
+        File folder = target.getAbsoluteFile().getParentFile();
+        File tmpFile = File.createTempFile(target.getName(), ".tmp", folder);
+        try {
+            FileOutputStream fos = new FileOutputStream(tmpFile);
+            try {
+                content.writeTo(fos);
+                // data must be on disk before rename is
+                fos.getFD().sync();
+            }
+            finally {
+                fos.close();
+            }
+
+            try {
+                Files.move(tmpFile.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch(AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        finally {
+            // still there if anything went wrong
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * Length and identity of a file with a single file system call. Identity changes if a file is
+     * replaced by {@link #writeAtomically(ByteArrayOutputStream, File)}.
+     * @return null if file does not exist
+     */
+    public static BasicFileAttributes getAttributes(File file) throws IOException {
+        try {
+            return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        }
+        catch(NoSuchFileException e) {
+            return null;
+        }
+    }
+}
@@ -1,299 +1,232 @@
-package net.sharksystem.util.localloop;
-
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-
-/**
- *
- * @author thsc
- */
-public class BufferedStream {
-    public static final int BUFFER_SIZE = 10000;
-    private byte[] buffer = new byte[BUFFER_SIZE];
-    
-    private int writeIndex = 0; // next index to write to
-    private int readIndex = 0; // next index to read from
-    
-    private boolean bufferEmpty = true;
-    
-    private Thread readerThread = null;
-    private Thread writerThread = null;
-    
-    private boolean disconnected = false;
-    private boolean eofSubmitted = false;
-    private boolean eofRead = false;
-    private final String debugName;
-    
-    public BufferedStream(String debugName) {
-        this.debugName = debugName;
-    }
-    
-    public BufferedStream() {
-        this.debugName = "buffer stream";
-    }
-    
-    /**
-     * Write byte into a buffer
-     * @param nextByte byte to write
-     */
-    private synchronized void writeToBuffer(int nextByte) throws IOException {
-        //<<<<<<<<<<<<<<<<<<<<<<debug
-        StringBuilder b = new StringBuilder();
-        b.append("Log (");  b.append(this.debugName); b.append("): ");
-        b.append("entered write with next byte: ");
-        b.append(nextByte);
-        System.out.println(b.toString());
-        //>>>>>>>>>>>>>>>>>>>>>>debug
-        
-        this.checkConnection();
-        
-        // detect EOF
-        if(nextByte < 0) {
-            this.eofRead = true;
-            return;
-        }
-        
-        /*
-        Buffer full? write index must never overtake read index.
-        Problem: 
-        Overtaking (buffer full) means: write index == read index.
-        Buffer empty has same feature. Thus, we have to remember
-        if buffer full or empty.
-        */
-        
-        //<<<<<<<<<<<<<<<<<<<<<<debug
-        b = new StringBuilder();
-        b.append("Log (");  b.append(this.debugName); b.append("): ");
-        b.append("have to wait? ");
-        System.out.println(b.toString());
-        //>>>>>>>>>>>>>>>>>>>>>>debug
-        
-        if(!this.bufferEmpty && this.writeIndex == this.readIndex) {
-            // buffer full - wait until data read
-            this.writerThread = Thread.currentThread();
-            //<<<<<<<<<<<<<<<<<<<<<<debug
-            b = new StringBuilder();
-            b.append("Log (");  b.append(this.debugName); b.append("): ");
-            b.append("wait in write");
-            System.out.println(b.toString());
-            //>>>>>>>>>>>>>>>>>>>>>>debug
-            while(!this.bufferEmpty && this.writeIndex == this.readIndex) {
-                try {
-                    Thread.sleep(Integer.MAX_VALUE);
-                } catch (InterruptedException ex) {
-                    // woke up - very good - try again
-                    //<<<<<<<<<<<<<<<<<<<<<<debug
-                    b = new StringBuilder();
-                    b.append("Log (");  b.append(this.debugName); b.append("): ");
-                    b.append("woke up by interrupt ");
-                    System.out.println(b.toString());
-                    //>>>>>>>>>>>>>>>>>>>>>>debug
-                }
-            }
-            this.writerThread = null;
-        }
-
-        this.buffer[this.writeIndex] = (byte) nextByte;
-        
-        this.incIndexSyncThreads(true);
-    }
-    
-    private int nextIndex(int index) {
-        index++;
-        if(index >= BufferedStream.BUFFER_SIZE) {
-            index = 0;
-        }
-        
-        return index;
-    }
-
-    private synchronized void incIndexSyncThreads(boolean writer) {
-        StringBuilder b;
-        
-        if(writer) {
-            this.writeIndex = this.nextIndex(this.writeIndex);
-            
-            // buffer not empty yet. We have written something a moment ago.
-            this.bufferEmpty = false;
-            
-            // wake up reader - if any
-            if(this.readerThread != null) {
-                this.readerThread.interrupt();
-                
-                b = new StringBuilder();
-                b.append("Log (");
-                b.append(this.debugName);
-                b.append("):");
-                b.append("interrupted waiting reader");
-                System.out.println(b.toString());
-            }
-            
-        } else {
-            this.readIndex = this.nextIndex(this.readIndex);
-            
-            // read index has reached write index? buffer empty
-            if(this.readIndex == this.writeIndex) {
-                this.bufferEmpty = true;
-            }
-            
-            // wake up writer - if any
-            if(this.writerThread != null) {
-                this.writerThread.interrupt();
-                b = new StringBuilder();
-                b.append("Log (");
-                b.append(this.debugName);
-                b.append("):");
-                b.append("interrupted waiting writer");
-                System.out.println(b.toString());
-            }
-        }
-        
-        b = new StringBuilder();
-        b.append("Log (");
-        b.append(this.debugName);
-        b.append("): read/write/empty: ");
-        b.append(this.readIndex);
-        b.append(" / ");
-        b.append(this.writeIndex);
-        b.append(" / ");
-        b.append(this.bufferEmpty);
-        
-        System.out.println(b.toString());
-    }
-    
-    private void checkConnection() throws IOException {
-        if(this.disconnected) {
-            throw new IOException("connection closed");
-        }
-        if(this.eofSubmitted) {
-            throw new IOException("eof already reached");
-        }
-        
-    }
-    
-    /**
-     * Reader comes in an wants to get a byte
-     * @return a byte, -1 indicating EOF 
-     * @throws IOException if connection was closed or broken
-     */
-    private synchronized int readFromBuffer() throws IOException {
-        //<<<<<<<<<<<<<<<<<<<<<<debug
-        StringBuilder b = new StringBuilder();
-        b.append("Log (");  b.append(this.debugName); b.append("): ");
-        b.append("entered read");
-        System.out.println(b.toString());
-        //>>>>>>>>>>>>>>>>>>>>>>debug
-        
-        this.checkConnection();
-        
-        if(this.eofRead) {
-            this.eofSubmitted = true;
-            return -1;
-        }
-        
-        // Read index equals write index: buffer is empty
-        if(this.bufferEmpty) {
-            //<<<<<<<<<<<<<<<<<<<<<<debug
-            b = new StringBuilder();
-            b.append("Log (");  b.append(this.debugName); b.append("): ");
-            b.append("buffer empty");
-            System.out.println(b.toString());
-            //>>>>>>>>>>>>>>>>>>>>>>debug
-
-            // queue in wake up slot
-            this.readerThread = Thread.currentThread();
-            
-            // sleep until at least a single byte in buffer
-            while(this.bufferEmpty) {
-                //<<<<<<<<<<<<<<<<<<<<<<debug
-                b = new StringBuilder();
-                b.append("Log (");  b.append(this.debugName); b.append("): ");
-                b.append("wait in read");
-                System.out.println(b.toString());
-                //>>>>>>>>>>>>>>>>>>>>>>debug
-                try {
-                    Thread.sleep(Integer.MAX_VALUE);
-                } catch (InterruptedException ex) {
-                    // woke up - very good - try again
-                    //<<<<<<<<<<<<<<<<<<<<<<debug
-                    b = new StringBuilder();
-                    b.append("Log (");  b.append(this.debugName); b.append("): ");
-                    b.append("woke up");
-                    System.out.println(b.toString());
-                    //>>>>>>>>>>>>>>>>>>>>>>debug
-                }
-            }
-            
-            // remove from wake up list
-            this.readerThread = null;
-        }
-        
-        // we have something to read
-        byte retval = this.buffer[this.readIndex];
-        
-        this.incIndexSyncThreads(false);
-
-        return retval;
-    }
-    
-    private void close() {
-        this.disconnected = true;
-    }
-    
-    private InputStream consumerIS = null;
-    public InputStream getInputStream() {
-        if(this.consumerIS == null) {
-            this.consumerIS = new BufferedStream.InputStreamConnector(this);
-        }
-        
-        return this.consumerIS;
-    }
-    
-    private OutputStream producerOS = null;
-    public OutputStream getOutputStream() {
-        if(this.producerOS == null) {
-            this.producerOS = new BufferedStream.OutputStreamConnector(this);
-        }
-        
-        return this.producerOS;
-    }
-    
-    private class InputStreamConnector extends InputStream {
-        private final BufferedStream buffer;
-        
-        InputStreamConnector(BufferedStream isBuffer) {
-            this.buffer = isBuffer;
-        }
-
-        @Override
-        public int read() throws IOException {
-            return this.buffer.readFromBuffer();
-        }
-        
-        @Override
-        public void close() throws IOException {
-            super.close();
-            this.buffer.close();
-        }
-    }
-    
-    private class OutputStreamConnector extends OutputStream {
-        private final BufferedStream buffer;
-        
-        OutputStreamConnector(BufferedStream osBuffer) {
-            this.buffer = osBuffer;
-        }
-
-        @Override
-        public void write(int b) throws IOException {
-            this.buffer.writeToBuffer(b);
-        }
-        
-        @Override
-        public void close() throws IOException {
-            super.close();
-            this.buffer.close();
-        }
-    }
-}
+package net.sharksystem.util.localloop;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-process pipe: bytes written into output stream can be read from input stream.
+ *
+ * Ring buffer for a single producer and a single consumer - one thread writes at a time, one reads at
+ * a time. No locks: each side moves its own counter, the other side only reads it. A side parks if
+ * buffer is full (writer) or empty (reader) and is unparked by the other one.
+ *
+ * Closing output stream is EOF: reader gets remaining bytes and -1 afterwards. Closing input stream
+ * makes writer fail.
+ *
+ * @author thsc
+ */
+public class BufferedStream {
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private final byte[] buffer;
+    private final int mask;
+
+    // total number of bytes written / read - only changed by writer / reader
+    private volatile long written = 0;
+    private volatile long read = 0;
+
+    private volatile boolean writerClosed = false;
+    private volatile boolean readerClosed = false;
+
+    private volatile Thread waitingReader = null;
+    private volatile Thread waitingWriter = null;
+
+    private final String debugName;
+    private final InputStream consumerIS = new InputStreamConnector();
+    private final OutputStream producerOS = new OutputStreamConnector();
+
+    public BufferedStream(String debugName) {
+        this(debugName, BUFFER_SIZE);
+    }
+
+    public BufferedStream() {
+        this("buffer stream");
+    }
+
+    /**
+     * @param capacity buffer size - rounded up to a power of two
+     */
+    public BufferedStream(String debugName, int capacity) {
+        if(capacity < 1) throw new IllegalArgumentException("capacity must be positive: " + capacity);
+
+        int size = Integer.highestOneBit(capacity);
+        if(size < capacity) size <<= 1;
+
+        this.buffer = new byte[size];
+        this.mask = size - 1;
+        this.debugName = debugName;
+    }
+
+    public int getCapacity() {
+        return this.buffer.length;
+    }
+
+    public InputStream getInputStream() {
+        return this.consumerIS;
+    }
+
+    public OutputStream getOutputStream() {
+        return this.producerOS;
+    }
+
+    @Override
+    public String toString() {
+        return this.debugName + " (written: " + this.written + " | read: " + this.read + ")";
+    }
+
+    private static void unpark(Thread thread) {
+        if(thread != null) LockSupport.unpark(thread);
+    }
+
+    private static void checkInterrupt() throws InterruptedIOException {
+        if(Thread.interrupted()) {
+            throw new InterruptedIOException("interrupted while waiting in buffered stream");
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //                                                 reader                                                 //
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private int readFromBuffer(byte[] b, int off, int len) throws IOException {
+        if(off < 0 || len < 0 || len > b.length - off) throw new IndexOutOfBoundsException();
+        if(this.readerClosed) throw new IOException("stream closed");
+        if(len == 0) return 0;
+
+        long readCount = this.read;
+        long available;
+        while((available = this.written - readCount) == 0) {
+            if(this.writerClosed) {
+                // writer could have written before closing
+                if(this.written == readCount) return -1;
+                continue;
+            }
+
+            // announce waiting and check again - writer could have written in the meantime
+            this.waitingReader = Thread.currentThread();
+            if(this.written == readCount && !this.writerClosed && !this.readerClosed) {
+                LockSupport.park(this);
+            }
+            this.waitingReader = null;
+
+            checkInterrupt();
+            if(this.readerClosed) throw new IOException("stream closed");
+        }
+
+        int number = (int) Math.min(len, available);
+        int index = (int) readCount & this.mask;
+        int first = Math.min(number, this.buffer.length - index);
+        System.arraycopy(this.buffer, index, b, off, first);
+        System.arraycopy(this.buffer, 0, b, off + first, number - first);
+
+        this.read = readCount + number;
+        unpark(this.waitingWriter);
+
+        return number;
+    }
+
+    private int availableInBuffer() {
+        return (int) (this.written - this.read);
+    }
+
+    private void closeReader() {
+        this.readerClosed = true;
+        unpark(this.waitingWriter);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //                                                 writer                                                 //
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private void writeToBuffer(byte[] b, int off, int len) throws IOException {
+        if(off < 0 || len < 0 || len > b.length - off) throw new IndexOutOfBoundsException();
+
+        long writeCount = this.written;
+        while(len > 0) {
+            if(this.writerClosed) throw new IOException("stream closed");
+            if(this.readerClosed) throw new IOException("connection closed");
+
+            long free;
+            while((free = this.buffer.length - (writeCount - this.read)) == 0) {
+                // announce waiting and check again - reader could have read in the meantime
+                this.waitingWriter = Thread.currentThread();
+                if(writeCount - this.read == this.buffer.length && !this.readerClosed) {
+                    LockSupport.park(this);
+                }
+                this.waitingWriter = null;
+
+                checkInterrupt();
+                if(this.readerClosed) throw new IOException("connection closed");
+            }
+
+            int number = (int) Math.min(len, free);
+            int index = (int) writeCount & this.mask;
+            int first = Math.min(number, this.buffer.length - index);
+            System.arraycopy(b, off, this.buffer, index, first);
+            System.arraycopy(b, off + first, this.buffer, 0, number - first);
+
+            writeCount += number;
+            this.written = writeCount;
+            unpark(this.waitingReader);
+
+            off += number;
+            len -= number;
+        }
+    }
+
+    private void closeWriter() {
+        this.writerClosed = true;
+        unpark(this.waitingReader);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //                                                 streams                                                //
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private class InputStreamConnector extends InputStream {
+        private final byte[] oneByte = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            return readFromBuffer(this.oneByte, 0, 1) < 0 ? -1 : this.oneByte[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return readFromBuffer(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            return availableInBuffer();
+        }
+
+        @Override
+        public void close() {
+            closeReader();
+        }
+    }
+
+    private class OutputStreamConnector extends OutputStream {
+        private final byte[] oneByte = new byte[1];
+
+        @Override
+        public void write(int b) throws IOException {
+            this.oneByte[0] = (byte) b;
+            writeToBuffer(this.oneByte, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            writeToBuffer(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            closeWriter();
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package net.sharksystem.asap;
+
+import net.sharksystem.asap.protocol.ASAPCapabilities;
+import net.sharksystem.asap.protocol.ASAPConnectionExecutor;
+import net.sharksystem.asap.protocol.ASAPPersistentConnection;
+import net.sharksystem.asap.protocol.ASAP_Modem_Impl;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class ConnectionScalabilityTests {
+    private static final String ROOT_FOLDER = "tests/scalability";
+    private static final int NUMBER_CONNECTIONS = 10000;
+    private static final long MAX_WAIT = TimeUnit.MINUTES.toMillis(5);
+    private static final long MAX_WAIT_KILLED = 5000;
+
+    /**
+     * Remote side of an in-process connection: delivers bytes a peer has sent, blocks afterwards
+     * until closed. Locks instead of monitors - virtual threads are not pinned while waiting.
+     */
+    private static class PeerInputStream extends InputStream {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition closedCondition = lock.newCondition();
+        private final byte[] data;
+        private int position = 0;
+        private boolean closed = false;
+
+        PeerInputStream(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return this.read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            this.lock.lock();
+            try {
+                while(this.position == this.data.length && !this.closed) {
+                    this.closedCondition.awaitUninterruptibly();
+                }
+                if(this.position == this.data.length) return -1;
+
+                int read = Math.min(len, this.data.length - this.position);
+                System.arraycopy(this.data, this.position, b, off, read);
+                this.position += read;
+                return read;
+            }
+            finally {
+                this.lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            this.lock.lock();
+            try {
+                this.closed = true;
+                this.closedCondition.signalAll();
+            }
+            finally {
+                this.lock.unlock();
+            }
+        }
+    }
+
+    private static class DiscardingOutputStream extends OutputStream {
+        @Override
+        public void write(int b) { }
+
+        @Override
+        public void write(byte[] b, int off, int len) { }
+    }
+
+    /**
+     * Remembers if something was written after a flag was raised.
+     */
+    private static class WatchingOutputStream extends OutputStream {
+        volatile boolean watching = false;
+        volatile boolean written = false;
+
+        @Override
+        public void write(int b) {
+            if(this.watching) this.written = true;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if(this.watching && len > 0) this.written = true;
+        }
+    }
+
+    /**
+     * Stalled peer: writes of executor threads block until stream is closed.
+     */
+    private static class StalledOutputStream extends OutputStream {
+        private final String blockedThreads;
+        private final CountDownLatch blocked = new CountDownLatch(1);
+        private boolean closed = false;
+
+        StalledOutputStream(String blockedThreads) {
+            this.blockedThreads = blockedThreads;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if(!Thread.currentThread().getName().startsWith(this.blockedThreads)) return;
+
+            this.blocked.countDown();
+            while(!this.closed) {
+                try {
+                    this.wait();
+                } catch (InterruptedException e) {
+                    // stay blocked - like a socket write
+                }
+            }
+            throw new IOException("stream closed");
+        }
+
+        @Override
+        public void close() {
+            synchronized(this) {
+                this.closed = true;
+                this.notifyAll();
+            }
+        }
+    }
+
+    private MultiASAPEngineFS createGateway(String folder, long maxExecutionTime)
+            throws IOException, ASAPException {
+
+        ASAPEngineFS.removeFolder(folder);
+        List<CharSequence> formats = new ArrayList<>();
+        formats.add("app/x-queue");
+        MultiASAPEngineFS gateway = MultiASAPEngineFS_Impl.createMultiEngine(
+                "Gateway", folder, maxExecutionTime, formats, null);
+        ASAPEngine engine = gateway.getEngineByFormat("app/x-queue");
+        engine.add("sn2://queue", "message");
+        engine.newEra();
+
+        return gateway;
+    }
+
+    /**
+     * @return remote peer that asks for anything
+     */
+    private PeerInputStream createInterestedPeer() throws IOException, ASAPException {
+        ByteArrayOutputStream peerPDUs = new ByteArrayOutputStream();
+        new ASAP_Modem_Impl().interest("Alice", null, "app/x-queue", null, -1, -1, peerPDUs, false);
+        return new PeerInputStream(peerPDUs.toByteArray());
+    }
+
+    private void waitForOnlinePeers(MultiASAPEngineFS engine, int number) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + MAX_WAIT;
+        while(engine.getOnlinePeers().size() != number && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+
+        Assert.assertEquals(number, engine.getOnlinePeers().size());
+    }
+
+    @Test
+    public void manyConcurrentConnections() throws IOException, ASAPException, InterruptedException {
+        ASAPEngineFS.removeFolder(ROOT_FOLDER);
+
+        System.out.println("virtual threads available: " + ASAPConnectionExecutor.virtualThreadsAvailable());
+
+        MultiASAPEngineFS gateway = MultiASAPEngineFS_Impl.createMultiEngine(
+                "Gateway", ROOT_FOLDER, MultiASAPEngineFS.DEFAULT_MAX_PROCESSING_TIME, null, null, true);
+
+        // each peer introduces itself with its first pdu and keeps connection open
+        List<PeerInputStream> peers = new ArrayList<>();
+        ASAP_Modem_Impl protocol = new ASAP_Modem_Impl();
+        for(int i = 0; i < NUMBER_CONNECTIONS; i++) {
+            ByteArrayOutputStream peerPDUs = new ByteArrayOutputStream();
+            ASAPCapabilities.sendCapabilities("peer_" + i, protocol, peerPDUs);
+
+            PeerInputStream peer = new PeerInputStream(peerPDUs.toByteArray());
+            peers.add(peer);
+            gateway.handleConnection(peer, new DiscardingOutputStream());
+        }
+
+        // all connections are held at the same time
+        this.waitForOnlinePeers(gateway, NUMBER_CONNECTIONS);
+
+        // peers hang up
+        for(PeerInputStream peer : peers) {
+            peer.close();
+        }
+
+        this.waitForOnlinePeers(gateway, 0);
+    }
+
+    @Test
+    public void waitingForExecutorIsNotProcessingTime() throws IOException, ASAPException, InterruptedException {
+        final long maxExecutionTime = 200;
+        MultiASAPEngineFS gateway = this.createGateway(ROOT_FOLDER + "/queue", maxExecutionTime);
+        PeerInputStream peer = this.createInterestedPeer();
+
+        // single executor thread is busy much longer than max execution time
+        ExecutorService executor = ASAPConnectionExecutor.createExecutor(1, "queue");
+        final WatchingOutputStream gatewayOutput = new WatchingOutputStream();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(5 * maxExecutionTime);
+                } catch (InterruptedException e) {
+                    // ends test early
+                }
+                gatewayOutput.watching = true;
+            }
+        });
+
+        ASAPPersistentConnection connection = new ASAPPersistentConnection(peer, gatewayOutput, gateway,
+                new ASAP_Modem_Impl(), maxExecutionTime, null, null, executor);
+        new Thread(connection).start();
+
+        // interest is processed when executor is free again - chunk is sent
+        long deadline = System.currentTimeMillis() + 10 * maxExecutionTime;
+        while(!gatewayOutput.written && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+
+        peer.close();
+        connection.kill();
+        executor.shutdown();
+
+        Assert.assertTrue(gatewayOutput.written);
+    }
+
+    @Test
+    public void waitingForExecutorIsBounded() throws IOException, ASAPException, InterruptedException {
+        long maxExecutionTime = 100;
+        MultiASAPEngineFS gateway = this.createGateway(ROOT_FOLDER + "/stalledExecutor", maxExecutionTime);
+        PeerInputStream peer = this.createInterestedPeer();
+
+        // single executor thread never gets free
+        ExecutorService executor = ASAPConnectionExecutor.createExecutor(1, "stalledExecutor");
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // ends test early
+                }
+            }
+        });
+
+        ASAPPersistentConnection connection = new ASAPPersistentConnection(peer, new DiscardingOutputStream(),
+                gateway, new ASAP_Modem_Impl(), maxExecutionTime, null, null, executor);
+        new Thread(connection).start();
+
+        // connection gives up and closes its streams
+        long deadline = System.currentTimeMillis()
+                + ASAPPersistentConnection.MAX_QUEUE_TIME_FACTOR * maxExecutionTime + MAX_WAIT_KILLED;
+        while(!peer.closed && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+
+        release.countDown();
+        executor.shutdown();
+
+        Assert.assertTrue(peer.closed);
+    }
+
+    @Test
+    public void stalledPeerDoesNotKeepThread() throws IOException, ASAPException, InterruptedException {
+        long maxExecutionTime = 200;
+        MultiASAPEngineFS gateway = this.createGateway(ROOT_FOLDER + "/stalledPeer", maxExecutionTime);
+        PeerInputStream peer = this.createInterestedPeer();
+
+        // engine blocks in writing chunk
+        ExecutorService executor = ASAPConnectionExecutor.createExecutor(1, "stalledPeer");
+        StalledOutputStream stalledOutput = new StalledOutputStream("stalledPeer");
+        ASAPPersistentConnection connection = new ASAPPersistentConnection(peer, stalledOutput, gateway,
+                new ASAP_Modem_Impl(), maxExecutionTime, null, null, executor);
+        new Thread(connection).start();
+        Assert.assertTrue(stalledOutput.blocked.await(MAX_WAIT_KILLED, TimeUnit.MILLISECONDS));
+
+        // connection is killed after max execution time - closed stream frees executor thread
+        final CountDownLatch executed = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                executed.countDown();
+            }
+        });
+        boolean free = executed.await(maxExecutionTime + MAX_WAIT_KILLED, TimeUnit.MILLISECONDS);
+        boolean killed = peer.closed;
+
+        stalledOutput.close();
+        executor.shutdownNow();
+
+        Assert.assertTrue(free);
+        Assert.assertTrue(killed);
+    }
+}
@@ -0,0 +1,188 @@
+package net.sharksystem.asap;
+
+import net.sharksystem.asap.protocol.ASAPConnectionExecutor;
+import net.sharksystem.asap.protocol.ASAPSelectorServer;
+import net.sharksystem.asap.protocol.ASAP_Modem_Impl;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static net.sharksystem.asap.MultiASAPEngineFS.DEFAULT_MAX_PROCESSING_TIME;
+
+/**
+ * Many peers connected to one engine served by a selector.
+ */
+public class SelectorServerTests {
+    private static final String ROOT_FOLDER = "tests/selector";
+    private static final String SERVER_FOLDER = ROOT_FOLDER + "/Server";
+    private static final String APP_FOLDER = "/appFolder";
+    private static final String FORMAT = "application/x-selectorTest";
+    private static final String URI = "content://selector.test";
+    private static final String SERVER_URI = "content://selector.server";
+    private static final String SERVER = "Server";
+    private static final int NUMBER_CLIENTS = 50;
+    private static final long MAX_WAIT = TimeUnit.MINUTES.toMillis(2);
+    private static final long MAX_EXECUTION_TIME = TimeUnit.SECONDS.toMillis(1);
+
+    private class ReceivedCounter implements ASAPChunkReceivedListener {
+        private final Map<String, Integer> senderEra = new HashMap<>();
+
+        @Override
+        public synchronized void chunkReceived(String format, String sender, String uri, int era) {
+            this.senderEra.put(sender, era);
+        }
+
+        synchronized int getNumberSender() {
+            return this.senderEra.size();
+        }
+
+        synchronized int getEra(String sender) {
+            return this.senderEra.get(sender);
+        }
+    }
+
+    private void waitFor(ReceivedCounter counter, int number) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + MAX_WAIT;
+        while(counter.getNumberSender() < number && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+    }
+
+    @Test
+    public void manyClientsOverLoopback() throws IOException, ASAPException, InterruptedException {
+        ASAPEngineFS.removeFolder(ROOT_FOLDER);
+
+        // server has a message for anybody
+        ASAPStorage serverStorage = ASAPEngineFS.getASAPStorage(SERVER, SERVER_FOLDER + APP_FOLDER, FORMAT);
+        serverStorage.add(SERVER_URI, "from server");
+
+        ReceivedCounter serverReceived = new ReceivedCounter();
+        MultiASAPEngineFS serverEngine = MultiASAPEngineFS_Impl.createMultiEngine(
+                SERVER, SERVER_FOLDER, DEFAULT_MAX_PROCESSING_TIME, serverReceived);
+
+        ASAPSelectorServer server = new ASAPSelectorServer(serverEngine, 0);
+        server.start();
+
+        // each client has messages for server - random bytes cannot be deflated, they are streamed through
+        ReceivedCounter clientsReceived = new ReceivedCounter();
+        byte[] longMessage = new byte[200000];
+        new Random(42).nextBytes(longMessage);
+
+        List<Socket> sockets = new ArrayList<>();
+        for(int i = 0; i < NUMBER_CLIENTS; i++) {
+            String client = "Client_" + i;
+            String clientFolder = ROOT_FOLDER + "/" + client;
+
+            ASAPStorage clientStorage = ASAPEngineFS.getASAPStorage(client, clientFolder + APP_FOLDER, FORMAT);
+            clientStorage.add(URI, "from " + client);
+            clientStorage.add(URI, longMessage);
+
+            MultiASAPEngineFS clientEngine = MultiASAPEngineFS_Impl.createMultiEngine(
+                    client, clientFolder, DEFAULT_MAX_PROCESSING_TIME, clientsReceived);
+
+            Socket socket = new Socket("localhost", server.getPort());
+            sockets.add(socket);
+            clientEngine.handleConnection(socket.getInputStream(), socket.getOutputStream());
+        }
+
+        this.waitFor(serverReceived, NUMBER_CLIENTS);
+        this.waitFor(clientsReceived, 1);
+
+        Assert.assertEquals(NUMBER_CLIENTS, serverReceived.getNumberSender());
+        Assert.assertEquals(1, clientsReceived.getNumberSender());
+        Assert.assertEquals(NUMBER_CLIENTS, serverEngine.getOnlinePeers().size());
+
+        // check what server got from one of them
+        ASAPChunkStorage received = serverStorage.getIncomingChunkStorage("Client_7");
+        ASAPChunk chunk = received.getChunk(URI, serverReceived.getEra("Client_7"));
+        Assert.assertEquals(2, chunk.getNumberMessage());
+        Iterator<byte[]> messages = chunk.getMessagesAsBytes();
+        Assert.assertEquals("from Client_7", new String(messages.next()));
+        Assert.assertArrayEquals(longMessage, messages.next());
+
+        for(Socket socket : sockets) {
+            socket.close();
+        }
+
+        long deadline = System.currentTimeMillis() + MAX_WAIT;
+        while(server.getNumberConnections() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        Assert.assertEquals(0, server.getNumberConnections());
+
+        server.close();
+    }
+
+    @Test
+    public void stalledClientDoesNotBlockOthers() throws IOException, ASAPException, InterruptedException {
+        ASAPEngineFS.removeFolder(ROOT_FOLDER);
+
+        ASAPEngineFS.getASAPStorage(SERVER, SERVER_FOLDER + APP_FOLDER, FORMAT);
+        ReceivedCounter serverReceived = new ReceivedCounter();
+        MultiASAPEngineFS serverEngine = MultiASAPEngineFS_Impl.createMultiEngine(
+                SERVER, SERVER_FOLDER, DEFAULT_MAX_PROCESSING_TIME, serverReceived);
+
+        // a single executor thread - a stalled engine would block any other peer
+        ExecutorService executor = ASAPConnectionExecutor.createExecutor(1, "selector-stalled");
+        ASAPSelectorServer server = new ASAPSelectorServer(serverEngine, new InetSocketAddress(0),
+                executor, MAX_EXECUTION_TIME);
+        server.start();
+
+        // stalled peer sends half of an assimilate pdu and nothing more
+        ByteArrayOutputStream pdu = new ByteArrayOutputStream();
+        new ASAP_Modem_Impl().assimilate("Stalled", null, FORMAT, URI, 1, new ArrayList<Long>(),
+                new byte[100000], pdu, false);
+        Socket stalled = new Socket("localhost", server.getPort());
+        OutputStream stalledOS = stalled.getOutputStream();
+        stalledOS.write(pdu.toByteArray(), 0, pdu.size() / 2);
+        stalledOS.flush();
+        Thread.sleep(MAX_EXECUTION_TIME / 4);
+
+        // others keep syncing
+        int numberClients = 5;
+        List<Socket> sockets = new ArrayList<>();
+        for(int i = 0; i < numberClients; i++) {
+            String client = "Client_" + i;
+            String clientFolder = ROOT_FOLDER + "/" + client;
+
+            ASAPStorage clientStorage = ASAPEngineFS.getASAPStorage(client, clientFolder + APP_FOLDER, FORMAT);
+            clientStorage.add(URI, "from " + client);
+
+            MultiASAPEngineFS clientEngine = MultiASAPEngineFS_Impl.createMultiEngine(
+                    client, clientFolder, DEFAULT_MAX_PROCESSING_TIME, new ReceivedCounter());
+
+            Socket socket = new Socket("localhost", server.getPort());
+            sockets.add(socket);
+            clientEngine.handleConnection(socket.getInputStream(), socket.getOutputStream());
+        }
+
+        this.waitFor(serverReceived, numberClients);
+        Assert.assertEquals(numberClients, serverReceived.getNumberSender());
+
+        // server hung up on stalled peer
+        stalled.setSoTimeout((int) MAX_WAIT);
+        InputStream stalledIS = stalled.getInputStream();
+        while(stalledIS.read() != -1);
+
+        stalled.close();
+        for(Socket socket : sockets) {
+            socket.close();
+        }
+        server.close();
+        executor.shutdown();
+    }
+}
@@ -1,8 +1,30 @@
 package net.sharksystem.asap;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
 
+import net.sharksystem.asap.apps.ASAPMessageVisitor;
+import net.sharksystem.asap.apps.ASAPMessages;
+import net.sharksystem.asap.protocol.ASAPResumeReport;
+import net.sharksystem.asap.protocol.ASAP_1_0;
+import net.sharksystem.asap.protocol.ASAP_AssimilationPDU_1_0;
+import net.sharksystem.asap.protocol.ASAP_Interest_PDU_1_0;
+import net.sharksystem.asap.protocol.ASAP_Modem_Impl;
+import net.sharksystem.asap.protocol.ASAP_PDU_1_0;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -115,4 +137,1021 @@ public class WhiteBoxTests {
 
         Assert.assertEquals(storage.getChannelURIs().get(0), uri);
     }
+
+    @Test
+    public void manyMessages() throws IOException, ASAPException {
+        String folder = "tests/manyMessages";
+        ASAPEngineFS.removeFolder(folder);
+
+        String uri = "test://anURI";
+        // offset list of former meta data format was limited to 64k characters
+        int number = 20000;
+
+        ASAPStorage storage = ASAPEngineFS.getASAPStorage(DUMMY_USER, folder, FORMAT);
+        ASAPChunk chunk = storage.getChunkStorage().getChunk(uri, storage.getEra());
+        for(int i = 0; i < number; i++) {
+            chunk.addMessage(("message " + i).getBytes());
+        }
+
+        // re-read
+        chunk = storage.getChunkStorage().getChunk(uri, storage.getEra());
+        Assert.assertEquals(number, chunk.getNumberMessage());
+        Assert.assertEquals(number - 1, chunk.getOffsetIndex().size());
+        Assert.assertEquals(0, chunk.getMessageStart(0));
+        Assert.assertEquals("message 0".length(), chunk.getMessageLength(0));
+        Assert.assertEquals(chunk.getLength() - ("message " + (number - 1)).length(),
+                chunk.getMessageStart(number - 1));
+
+        // index is a snapshot - later messages do not change it
+        ASAPOffsetIndex offsetIndex = chunk.getOffsetIndex();
+        chunk.addMessage("one more".getBytes());
+        Assert.assertEquals(number - 1, offsetIndex.size());
+        Assert.assertEquals(number, chunk.getOffsetIndex().size());
+
+        Iterator<CharSequence> messageIter = chunk.getMessages();
+        for(int i = 0; i < number; i++) {
+            Assert.assertEquals("message " + i, messageIter.next().toString());
+        }
+    }
+
+    @Test
+    public void appendAfterClose() throws IOException, ASAPException {
+        String folder = "tests/appendAfterClose";
+        ASAPEngineFS.removeFolder(folder);
+
+        String uri = "test://anURI";
+        int number = 1000;
+
+        ASAPStorage storage = ASAPEngineFS.getASAPStorage(DUMMY_USER, folder, FORMAT);
+        ASAPChunkFS chunk = (ASAPChunkFS) storage.getChunkStorage().getChunk(uri, storage.getEra());
+        for(int i = 0; i < number; i++) {
+            chunk.addMessage(("message " + i).getBytes());
+        }
+
+        // file handles are released - next append re-opens message file
+        chunk.close();
+        chunk.addMessage(("message " + number++).getBytes());
+        chunk.close();
+        byte[] streamed = ("message " + number++).getBytes();
+        chunk.addMessage(new ByteArrayInputStream(streamed), streamed.length);
+        chunk.close();
+        List<byte[]> block = new ArrayList<>();
+        for(int i = 0; i < 10; i++) {
+            block.add(("message " + number++).getBytes());
+        }
+        chunk.addMessages(block);
+        chunk.close();
+
+        // fresh storage reads anything from disk
+        storage = ASAPEngineFS.getASAPStorage(DUMMY_USER, folder, FORMAT);
+        ASAPChunk reread = storage.getChunkStorage().getChunk(uri, storage.getEra());
+        Assert.assertEquals(number, reread.getNumberMessage());
+        Iterator<CharSequence> messageIter = reread.getMessages();
+        for(int i = 0; i < number; i++) {
+            Assert.assertEquals("message " + i, messageIter.next().toString());
+        }
+        Assert.assertFalse(messageIter.hasNext());
+        Assert.assertEquals("message " + (number - 1), new String(reread.getMessage(number - 1)));
+    }
+
+    @Test
+    public void randomAccessAcrossEras() throws IOException, ASAPException {
+        String folder = "tests/randomAccessAcrossEras";
+        ASAPEngineFS.removeFolder(folder);
+
+        String uri = "test://anURI";
+        ASAPEngine engine = ASAPEngineFS.getASAPStorage(DUMMY_USER, folder, FORMAT);
+
+        // messages per era - channel exists without messages in some eras
+        int[] eraSizes = new int[] {0, 2, 0, 0, 1, 3, 0};
+        List<String> messages = new ArrayList<>();
+        for(int i = 0; i < eraSizes.length; i++) {
+            if(i > 0) engine.newEra();
+            // era changes only with new messages
+            engine.add("test://other", "era " + i);
+            engine.putExtra(uri, "era", Integer.toString(i));
+            for(int j = 0; j < eraSizes[i]; j++) {
+                String message = "era " + i + " message " + j;
+                engine.add(uri, message);
+                messages.add(message);
+            }
+        }
+
+        // chunks without messages are part of that chain
+        ASAPChunkStorageFS chunkStorage = (ASAPChunkStorageFS) engine.getChunkStorage();
+        Assert.assertEquals(0, chunkStorage.getChunkEntry(uri, ASAP.INITIAL_ERA).getNumberMessages());
+        Assert.assertEquals(0, chunkStorage.getChunkEntry(uri, engine.getEra()).getNumberMessages());
+
+        ASAPMessages chain = engine.getChunkChain(uri);
+        Assert.assertEquals(messages.size(), chain.size());
+
+        // first and last message of each chunk
+        for(int i = 0; i < messages.size(); i++) {
+            Assert.assertEquals(messages.get(i), chain.getMessage(i, true).toString());
+            Assert.assertEquals(messages.get(messages.size() - 1 - i), chain.getMessage(i, false).toString());
+        }
+
+        int[] outOfRange = new int[] {-1, messages.size()};
+        for(int position : outOfRange) {
+            try {
+                chain.getMessage(position, true);
+                Assert.fail("no message at position " + position);
+            }
+            catch(ASAPException e) {
+                // ok
+            }
+        }
+    }
+
+    /**
+     * @return number of content files open by this process - -1 if that cannot be told
+     */
+    private int openContentFiles() throws IOException {
+        File[] fds = new File("/proc/self/fd").listFiles();
+        if(fds == null) return -1;
+
+        int number = 0;
+        for(File fd : fds) {
+            try {
+                if(Files.readSymbolicLink(fd.toPath()).toString().endsWith("." + ASAPChunkFS.DATA_EXTENSION)) {
+                    number++;
+                }
+            }
+            catch(IOException e) {
+                // closed meanwhile
+            }
+        }
+        return number;
+    }
+
+    @Test
+    public void iterateAcrossChunks() throws IOException, ASAPException {
+        String folder = "tests/iterateAcrossChunks";
+        ASAPEngineFS.removeFolder(folder);
+
+        String uri = "test://anURI";
+        ASAPEngine engine = ASAPEngineFS.getASAPStorage(DUMMY_USER, folder, FORMAT);
+        int[] eraSizes = new int[] {3, 3, 2};
+        List<String> messages = new ArrayList<>();
+        List<Integer> eras = new ArrayList<>();
+        for(int i = 0; i < eraSizes.length; i++) {
+            if(i > 0) engine.newEra();
+            eras.add(engine.getEra());
+            for(int j = 0; j < eraSizes[i]; j++) {
+                String message = "era " + i + " message " + j;
+                engine.add(uri, message);
+                messages.add(message);
+            }
+        }
+
+        // files kept open by writing chunks do not count
+        int openFiles = this.openContentFiles();
+
+        // exhausted chunks are closed - one chunk file open at a time
+        Iterator<byte[]> messageIter = engine.getChunkChain(uri).getMessages();
+        for(String message : messages) {
+            Assert.assertTrue(messageIter.hasNext());
+            if(openFiles >= 0) Assert.assertTrue(this.openContentFiles() <= openFiles + 1);
+            Assert.assertEquals(message, new String(messageIter.next()));
+        }
+        Assert.assertFalse(messageIter.hasNext());
+        if(openFiles >= 0) Assert.assertEquals(openFiles, this.openContentFiles());
+
+        // closed before exhausted
+        messageIter = engine.getChunkChain(uri).getMessages();
+        messageIter.next();
+        if(openFiles >= 0) Assert.assertEquals(openFiles + 1, this.openContentFiles());
+        ((Closeable) messageIter).close();
+        Assert.assertFalse(messageIter.hasNext());
+        if(openFiles >= 0) Assert.assertEquals(openFiles, this.openContentFiles());
+
+        // broken chunk ends iteration with an exception - not silently
+        messageIter = engine.getChunkChain(uri).getMessages();
+        messageIter.next();
+        messageIter.next();
+        File metaFile = new File(((ASAPChunkStorageFS) engine.getChunkStorage())
+                .setupChunkFolder(eras.get(1), uri) + "." + ASAPChunkFS.META_DATA_EXTENSION);
+        byte[] magic = Arrays.copyOf(Files.readAllBytes(metaFile.toPath()), 4);
+        FileOutputStream fos = new FileOutputStream(metaFile);
+        fos.write(magic);
+        fos.write(99); // unknown version
+        fos.close();
+        try {
+            messageIter.next();
+            Assert.fail("second chunk cannot be read");
+        }
+        catch(IllegalStateException e) {
+            // ok
+        }
+        Assert.assertFalse(messageIter.hasNext());
+    }
+
+    @Test
+    public void byteBufferMessages() throws IOException, ASAPException {
+        String folder = "tests/byteBufferMessages";
+        ASAPEngineFS.removeFolder(folder);
+
+        String uri = "test://anURI";
+        ASAPEngine engine = ASAPEngineFS.getASAPStorage(DUMMY_USER, folder, FORMAT);
+        engine.add(uri, "message one");
+        engine.add(uri, "message two");
+        engine.newEra();
+        engine.add(uri, "message three");
+
+        ASAPMessages chunkChain = engine.getChunkChain(uri);
+
+        Iterator<ByteBuffer> messageIter = chunkChain.getMessagesAsByteBuffer();
+        Assert.assertEquals("message one", this.buffer2String(messageIter.next()));
+        Assert.assertEquals("message two", this.buffer2String(messageIter.next()));
+        Assert.assertEquals("message three", this.buffer2String(messageIter.next()));
+        Assert.assertFalse(messageIter.hasNext());
+
+        final List<String> visited = new ArrayList<>();
+        chunkChain.forEachMessage(new ASAPMessageVisitor() {
+            @Override
+            public boolean visitMessage(ByteBuffer message) {
+                visited.add(buffer2String(message));
+                return visited.size() < 2; // stop after second message
+            }
+        });
+
+        Assert.assertEquals(2, visited.size());
+        Assert.assertEquals("message one", visited.get(0));
+        Assert.assertEquals("message two", visited.get(1));
+    }
+
+    private String buffer2String(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes);
+    }
+
+    @Test
+    public void engineStateSurvivesReopening() throws IOException, ASAPException {
+        String folder = "tests/engineState";
+        ASAPEngineFS.removeFolder(folder);
+
+        String uri = "test://anURI";
+        ASAPEngine engine = ASAPEngineFS.getASAPStorage(DUMMY_USER, folder, FORMAT);
+        for(int i = 0; i < 100; i++) {
+            engine.add(uri, "era 0 message " + i);
+        }
+        engine.newEra();
+        for(int i = 0; i < 100; i++) {
+            engine.add(uri, "era 1 message " + i);
+        }
+        int era = engine.getEra();
+        Assert.assertEquals(ASAP.nextEra(ASAP.INITIAL_ERA), era);
+
+        engine = ASAPEngineFS.getASAPStorage(DUMMY_USER, folder, FORMAT);
+        Assert.assertEquals(era, engine.getEra());
+        Assert.assertTrue(engine.contentChanged);
+
+        // moves last seen era of Bob to current era
+        Assert.assertEquals(1, this.sync(engine, "Bob").size());
+        Assert.assertEquals(era, (int) engine.lastSeen.get("Bob"));
+
+        engine = ASAPEngineFS.getASAPStorage(DUMMY_USER, folder, FORMAT);
+        Assert.assertEquals(era, engine.getEra());
+        Assert.assertEquals(era, (int) engine.lastSeen.get("Bob"));
+        Assert.assertTrue(this.sync(engine, "Bob").isEmpty());
+
+        engine.newEra();
+        Assert.assertEquals(ASAP.nextEra(era), engine.getEra());
+        engine = ASAPEngineFS.getASAPStorage(DUMMY_USER, folder, FORMAT);
+        Assert.assertEquals(ASAP.nextEra(era), engine.getEra());
+        Assert.assertEquals(100, engine.getChunkStorage().getChunk(uri, era).getNumberMessage());
+    }
+
+    @Test
+    public void formerMetaDataFormat() throws IOException, ASAPException {
+        String folder = "tests/formerMetaDataFormat";
+        ASAPEngineFS.removeFolder(folder);
+        new File(folder).mkdirs();
+
+        String trunkName = folder + "/chunk";
+        String uri = "test://anURI";
+
+        // write chunk as former versions did
+        FileOutputStream fos = new FileOutputStream(trunkName + "." + ASAPChunkFS.DATA_EXTENSION);
+        fos.write("firstsecond".getBytes());
+        fos.close();
+
+        DataOutputStream dos = new DataOutputStream(
+                new FileOutputStream(trunkName + "." + ASAPChunkFS.META_DATA_EXTENSION));
+        dos.writeUTF(uri);
+        dos.writeUTF("key|||value");
+        dos.writeUTF("Bob");
+        dos.writeUTF("Clara");
+        dos.writeUTF("5");
+        dos.close();
+
+        ASAPChunkFS chunk = new ASAPChunkFS(null, trunkName);
+        Assert.assertEquals(uri, chunk.getUri());
+        Assert.assertEquals("value", chunk.getExtra("key"));
+        Assert.assertTrue(chunk.getRecipients().contains("Bob"));
+        Assert.assertEquals("Clara", chunk.getDeliveredTo().get(0));
+        Assert.assertEquals(2, chunk.getNumberMessage());
+
+        chunk.addMessage("third".getBytes());
+        chunk.close();
+
+        // read converted meta data
+        chunk = new ASAPChunkFS(null, trunkName);
+        Iterator<CharSequence> messageIter = chunk.getMessages();
+        Assert.assertEquals("first", messageIter.next().toString());
+        Assert.assertEquals("second", messageIter.next().toString());
+        Assert.assertEquals("third", messageIter.next().toString());
+        Assert.assertFalse(messageIter.hasNext());
+    }
+
+    @Test
+    public void chunkCache() throws IOException, ASAPException {
+        String folder = "tests/chunkCache";
+        ASAPEngineFS.removeFolder(folder);
+
+        String uri = "test://anURI";
+
+        ASAPStorage storage = ASAPEngineFS.getASAPStorage(DUMMY_USER, folder, FORMAT);
+        ASAPChunkStorage chunkStorage = storage.getChunkStorage();
+
+        ASAPChunk chunk = chunkStorage.getChunk(uri, storage.getEra());
+        chunk.addMessage("first message".getBytes());
+        long misses = chunkStorage.getChunkCacheMisses();
+        long hits = chunkStorage.getChunkCacheHits();
+
+        // same chunk again - served from memory
+        chunk = chunkStorage.getChunk(uri, storage.getEra());
+        Assert.assertEquals(1, chunk.getNumberMessage());
+        Assert.assertEquals(hits + 1, chunkStorage.getChunkCacheHits());
+        Assert.assertEquals(misses, chunkStorage.getChunkCacheMisses());
+
+        // dropped chunk is not served from cache
+        chunk.drop();
+        chunk = chunkStorage.getChunk(uri, storage.getEra());
+        Assert.assertEquals(0, chunk.getNumberMessage());
+        Assert.assertEquals(misses + 1, chunkStorage.getChunkCacheMisses());
+    }
+
+    @Test
+    public void addAllMessages() throws IOException, ASAPException {
+        String folder = "tests/addAllMessages";
+        ASAPEngineFS.removeFolder(folder);
+
+        String uri = "test://anURI";
+
+        ASAPStorage storage = ASAPEngineFS.getASAPStorage(DUMMY_USER, folder, FORMAT);
+        storage.add(uri, "first message");
+
+        List<byte[]> messages = new ArrayList<>();
+        for(int i = 0; i < 100; i++) {
+            messages.add(("message " + i).getBytes());
+        }
+        storage.addAll(uri, messages);
+
+        // re-create storage
+        storage = ASAPEngineFS.getASAPStorage(DUMMY_USER, folder, FORMAT);
+        ASAPChunk chunk = storage.getChunkStorage().getChunk(uri, storage.getEra());
+        Assert.assertEquals(101, chunk.getNumberMessage());
+
+        Iterator<CharSequence> messageIter = chunk.getMessages();
+        Assert.assertEquals("first message", messageIter.next().toString());
+        for(int i = 0; i < 100; i++) {
+            Assert.assertEquals("message " + i, messageIter.next().toString());
+        }
+    }
+
+    @Test
+    public void concurrentAddsAndNewEra() throws IOException, ASAPException, InterruptedException {
+        String folder = "tests/concurrentAddsAndNewEra";
+        ASAPEngineFS.removeFolder(folder);
+
+        final int numberChannels = 4;
+        final int numberMessages = 200;
+        final ASAPStorage storage = ASAPEngineFS.getASAPStorage(DUMMY_USER, folder, FORMAT);
+
+        // each thread writes into its own channel
+        final List<Exception> exceptions = new ArrayList<>();
+        List<Thread> writers = new ArrayList<>();
+        for(int c = 0; c < numberChannels; c++) {
+            final String uri = "test://channel" + c;
+            Thread writer = new Thread() {
+                public void run() {
+                    try {
+                        for(int i = 0; i < numberMessages; i++) {
+                            storage.add(uri, "message " + i);
+                        }
+                    } catch (IOException e) {
+                        synchronized(exceptions) { exceptions.add(e); }
+                    }
+                }
+            };
+            writers.add(writer);
+            writer.start();
+        }
+
+        // new eras while writing
+        for(Thread writer : writers) {
+            while(writer.isAlive()) {
+                storage.newEra();
+                Thread.sleep(1);
+            }
+        }
+
+        Assert.assertTrue(exceptions.isEmpty());
+
+        // no message lost or duplicated - in order over all eras
+        for(int c = 0; c < numberChannels; c++) {
+            String uri = "test://channel" + c;
+            Assert.assertTrue(storage.channelExists(uri));
+
+            int expected = 0;
+            int era = storage.getOldestEra();
+            while(true) {
+                if(storage.getChunkStorage().existsChunk(uri, era)) {
+                    Iterator<CharSequence> messageIter =
+                            storage.getChunkStorage().getChunk(uri, era).getMessages();
+                    while(messageIter.hasNext()) {
+                        Assert.assertEquals("message " + expected, messageIter.next().toString());
+                        expected++;
+                    }
+                }
+                if(era == storage.getEra()) break;
+                era = ASAP.nextEra(era);
+            }
+            Assert.assertEquals(numberMessages, expected);
+        }
+    }
+
+    @Test
+    public void eraCatalogue() throws IOException, ASAPException {
+        String folder = "tests/eraCatalogue";
+        ASAPEngineFS.removeFolder(folder);
+        new File(folder).mkdirs();
+
+        String uri = "test://anURI";
+        String otherUri = "test://otherURI";
+
+        // eras wrap around
+        int[] eras = new int[] {ASAP.MAX_ERA - 1, ASAP.MAX_ERA, ASAP.INITIAL_ERA, ASAP.INITIAL_ERA + 1};
+        ASAPChunkStorageFS chunkStorage = new ASAPChunkStorageFS(folder, FORMAT);
+        for(int era : eras) {
+            chunkStorage.getChunk(uri, era).addMessage(("era " + era).getBytes());
+        }
+        List<byte[]> messages = new ArrayList<>();
+        messages.add("first".getBytes());
+        messages.add("second".getBytes());
+        chunkStorage.getChunk(otherUri, ASAP.INITIAL_ERA).addMessages(messages);
+
+        // chronological order
+        List<Integer> eraList = chunkStorage.getEras(ASAP.MAX_ERA - 1, ASAP.INITIAL_ERA + 1);
+        Assert.assertEquals(eras.length, eraList.size());
+        for(int i = 0; i < eras.length; i++) {
+            Assert.assertEquals(eras[i], (int) eraList.get(i));
+        }
+        Assert.assertEquals(2, chunkStorage.getEras(ASAP.INITIAL_ERA, ASAP.INITIAL_ERA + 1).size());
+
+        Iterator<CharSequence> messageIter =
+                chunkStorage.getASAPChunkCache(uri, ASAP.MAX_ERA - 1, ASAP.INITIAL_ERA + 1).getMessagesAsCharSequence();
+        for(int era : eras) {
+            Assert.assertEquals("era " + era, messageIter.next().toString());
+        }
+        Assert.assertFalse(messageIter.hasNext());
+
+        // number of messages and length
+        ASAPEraCatalogueFS.ChannelEntry entry = chunkStorage.getChunkEntry(otherUri, ASAP.INITIAL_ERA);
+        Assert.assertEquals(2, entry.getNumberMessages());
+        Assert.assertEquals("firstsecond".length(), entry.getLength());
+        Assert.assertEquals(2, chunkStorage.getChunks(ASAP.INITIAL_ERA).size());
+
+        // another storage object sees changes
+        ASAPChunkStorageFS otherStorage = new ASAPChunkStorageFS(folder, FORMAT);
+        chunkStorage.getChunk(uri, ASAP.MAX_ERA).drop();
+        Assert.assertFalse(otherStorage.existsChunk(uri, ASAP.MAX_ERA));
+        chunkStorage.dropChunks(ASAP.INITIAL_ERA);
+        Assert.assertFalse(otherStorage.existsChunk(otherUri, ASAP.INITIAL_ERA));
+        Assert.assertEquals(2, otherStorage.getEras(ASAP.MAX_ERA - 1, ASAP.INITIAL_ERA + 1).size());
+
+        // catalogue is set up from chunk folders if missing
+        new File(folder + "/" + ASAPEraCatalogueFS.CATALOGUE_FILENAME).delete();
+        chunkStorage = new ASAPChunkStorageFS(folder, FORMAT);
+        eraList = chunkStorage.getEras(ASAP.MAX_ERA - 1, ASAP.INITIAL_ERA + 1);
+        Assert.assertEquals(2, eraList.size());
+        Assert.assertEquals(ASAP.MAX_ERA - 1, (int) eraList.get(0));
+        Assert.assertEquals(ASAP.INITIAL_ERA + 1, (int) eraList.get(1));
+        Assert.assertEquals(1, chunkStorage.getChunkEntry(uri, ASAP.MAX_ERA - 1).getNumberMessages());
+    }
+
+    @Test
+    public void lazyEraRollover() throws IOException, ASAPException {
+        String folder = "tests/lazyEraRollover";
+        ASAPEngineFS.removeFolder(folder);
+
+        int numberChannels = 200;
+        ASAPStorage storage = ASAPEngineFS.getASAPStorage(DUMMY_USER, folder, FORMAT);
+        for(int i = 0; i < numberChannels; i++) {
+            storage.createChannel("test://channel" + i, "Bob");
+            storage.add("test://channel" + i, "message " + i);
+        }
+        int firstEra = storage.getEra();
+
+        // new era - no chunk is copied
+        storage.newEra();
+        int secondEra = storage.getEra();
+        Assert.assertTrue(firstEra != secondEra);
+        Assert.assertTrue(storage.getChunkStorage().getChunks(secondEra).isEmpty());
+
+        // channels are still there
+        Assert.assertEquals(numberChannels, storage.getChannelURIs().size());
+        Assert.assertTrue(storage.channelExists("test://channel7"));
+        Assert.assertTrue(storage.getRecipients("test://channel7").contains("Bob"));
+
+        // chunk is created with first change - meta data are taken from newest chunk
+        storage.add("test://channel7", "second message");
+        List<ASAPChunk> chunks = storage.getChunkStorage().getChunks(secondEra);
+        Assert.assertEquals(1, chunks.size());
+        Assert.assertTrue(chunks.get(0).getRecipients().contains("Bob"));
+        Assert.assertEquals(1, chunks.get(0).getNumberMessage());
+        Assert.assertEquals(2, storage.getChunkChain("test://channel7").size());
+
+        // removed from all eras
+        storage.removeChannel("test://channel7");
+        Assert.assertFalse(storage.channelExists("test://channel7"));
+        Assert.assertEquals(numberChannels - 1, storage.getChannelURIs().size());
+    }
+
+    /**
+     * @return data of each assimilate pdu sent by engine after receiving an interest
+     */
+    private List<String> sync(ASAPEngine engine, String peer) throws IOException, ASAPException {
+        return this.sync(engine, peer, new ASAPSubscription(null));
+    }
+
+    /**
+     * @return data of each assimilate pdu sent by engine after receiving that subscription
+     */
+    private List<String> sync(ASAPEngine engine, String peer, ASAPSubscription subscription)
+            throws IOException, ASAPException {
+
+        ASAP_1_0 protocol = new ASAP_Modem_Impl();
+        ByteArrayOutputStream interest = new ByteArrayOutputStream();
+        subscription.sendInterest(peer, FORMAT, protocol, interest);
+        ASAP_Interest_PDU_1_0 interestPDU = (ASAP_Interest_PDU_1_0)
+                protocol.readPDU(new ByteArrayInputStream(interest.toByteArray()));
+
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        engine.handleASAPInterest(interestPDU, protocol, sent);
+
+        List<String> data = new ArrayList<>();
+        ByteArrayInputStream sentIS = new ByteArrayInputStream(sent.toByteArray());
+        while(sentIS.available() > 0) {
+            ASAP_AssimilationPDU_1_0 pdu = (ASAP_AssimilationPDU_1_0) protocol.readPDU(sentIS);
+            data.add(new String(pdu.getData()));
+        }
+        return data;
+    }
+
+    @Test
+    public void deltaSync() throws IOException, ASAPException {
+        String folder = "tests/deltaSync";
+        ASAPEngineFS.removeFolder(folder);
+
+        ASAPEngine engine = ASAPEngineFS.getASAPStorage("Alice", folder, FORMAT);
+        engine.add("test://public", "first");
+        engine.add("test://forClara", "not for Bob");
+        engine.setRecipients("test://forClara", Collections.singletonList((CharSequence) "Clara"));
+        engine.newEra();
+
+        // local chunks of previous eras
+        List<String> data = this.sync(engine, "Bob");
+        Assert.assertEquals(1, data.size());
+        Assert.assertEquals("first", data.get(0));
+
+        // nothing new - nothing sent
+        Assert.assertTrue(this.sync(engine, "Bob").isEmpty());
+
+        // received chunks get new messages - only those are sent
+        engine.setSendReceivedChunks(true);
+        ASAPChunk received = engine.getIncomingChunkStorage("Clara").getChunk("test://fromClara", 3);
+        received.addMessage("c1".getBytes());
+        data = this.sync(engine, "Bob");
+        Assert.assertEquals(1, data.size());
+        Assert.assertEquals("c1", data.get(0));
+
+        received.addMessage("c2".getBytes());
+        received.addMessage("c3".getBytes());
+        data = this.sync(engine, "Bob");
+        Assert.assertEquals(1, data.size());
+        Assert.assertEquals("c2c3", data.get(0));
+
+        // index survives
+        engine = ASAPEngineFS.getASAPStorage("Alice", folder, FORMAT);
+        Assert.assertTrue(this.sync(engine, "Bob").isEmpty());
+
+        // another peer gets everything
+        Assert.assertEquals(3, this.sync(engine, "Clara").size());
+    }
+
+    @Test
+    public void dropChunkDeliveredToAllRecipients() throws IOException, ASAPException {
+        String folder = "tests/dropDelivered";
+        ASAPEngineFS.removeFolder(folder);
+
+        ASAPEngine engine = ASAPEngineFS.getASAPStorage("Alice", folder, FORMAT);
+        engine.setSendReceivedChunks(true);
+        engine.setDropDeliveredChunks(true);
+        ASAPChunkStorage storage = engine.getIncomingChunkStorage("Clara");
+        ASAPChunk received = storage.getChunk("test://fromClara", 1);
+        received.setRecipients(Arrays.asList((CharSequence) "Bob", "Dave"));
+        received.addMessage("c1".getBytes());
+
+        // growing chunk is sent twice - Bob is remembered once
+        Assert.assertEquals(1, this.sync(engine, "Bob").size());
+        received.addMessage("c2".getBytes());
+        Assert.assertEquals(1, this.sync(engine, "Bob").size());
+        Assert.assertEquals(1, received.getDeliveredTo().size());
+        Assert.assertTrue(storage.existsChunk("test://fromClara", 1));
+
+        // delivered to each recipient
+        Assert.assertEquals(1, this.sync(engine, "Dave").size());
+        Assert.assertFalse(storage.existsChunk("test://fromClara", 1));
+    }
+
+    private static List<String> messages(ASAPChunk chunk) throws IOException {
+        List<String> messages = new ArrayList<>();
+        Iterator<CharSequence> messageIter = chunk.getMessages();
+        while(messageIter.hasNext()) {
+            messages.add(messageIter.next().toString());
+        }
+        return messages;
+    }
+
+    /**
+     * Connection is killed after a number of bytes - writer fails, reader gets what was written till then.
+     */
+    private static class BreakingOutputStream extends OutputStream {
+        private final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        private int left;
+
+        BreakingOutputStream(int cut) {
+            this.left = cut;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int number = Math.min(len, this.left);
+            this.wire.write(b, off, number);
+            this.left -= number;
+            if(number < len) throw new IOException("connection killed");
+        }
+    }
+
+    /**
+     * Receiver reports what it holds, sender answers resume reports and interest. Connection breaks
+     * after cut bytes.
+     */
+    private void brokenSync(ASAPEngine sender, ASAPEngine receiver, int cut) throws IOException, ASAPException {
+        ASAP_1_0 protocol = new ASAP_Modem_Impl();
+        ByteArrayOutputStream toSender = new ByteArrayOutputStream();
+        for(ASAPResumeReport report : receiver.getResumeReports()) {
+            report.send(receiver.getOwner(), protocol, toSender);
+        }
+        protocol.interest(receiver.getOwner(), null, FORMAT, null, -1, -1, toSender, false);
+
+        BreakingOutputStream toReceiver = new BreakingOutputStream(cut);
+        ByteArrayInputStream senderIS = new ByteArrayInputStream(toSender.toByteArray());
+        try {
+            while(senderIS.available() > 0) {
+                sender.handleASAPInterest((ASAP_Interest_PDU_1_0) protocol.readPDU(senderIS), protocol, toReceiver);
+            }
+        }
+        catch(IOException e) {
+            // connection broken
+        }
+
+        ByteArrayInputStream receiverIS = new ByteArrayInputStream(toReceiver.wire.toByteArray());
+        try {
+            while(receiverIS.available() > 0) {
+                ASAP_PDU_1_0 pdu = protocol.readPDU(receiverIS);
+                receiver.handleASAPAssimilate((ASAP_AssimilationPDU_1_0) pdu, protocol, receiverIS,
+                        new ByteArrayOutputStream(), null);
+            }
+        }
+        catch(IOException | ASAPException e) {
+            // connection broken
+        }
+    }
+
+    @Test
+    public void resumeAfterBrokenConnections() throws IOException, ASAPException {
+        String folder = "tests/resumeTransfer";
+        ASAPEngineFS.removeFolder(folder);
+
+        ASAPEngine alice = ASAPEngineFS.getASAPStorage("Alice", folder + "/alice", FORMAT);
+        ASAPEngine bob = ASAPEngineFS.getASAPStorage("Bob", folder + "/bob", FORMAT);
+
+        // two eras - first one is synchronized before second one is finished
+        Random random = new Random(42);
+        String[] uris = { "test://channel1", "test://channel2" };
+        for(int era = 0; era < 2; era++) {
+            for(int i = 0; i < 100; i++) {
+                StringBuilder message = new StringBuilder("message " + era + "/" + i + ":");
+                int length = random.nextInt(500);
+                for(int j = 0; j < length; j++) message.append((char) ('a' + random.nextInt(26)));
+                alice.add(uris[i % uris.length], message.toString());
+            }
+            alice.newEra();
+        }
+
+        // kill connections at random positions - received data are always a prefix, never doubled
+        for(int round = 0; round < 20; round++) {
+            this.brokenSync(alice, bob, random.nextInt(40000));
+
+            ASAPChunkStorage received = bob.getIncomingChunkStorage("Alice");
+            for(int era = 0; era < 2; era++) {
+                for(String uri : uris) {
+                    if(!received.existsChunk(uri, era)) continue;
+                    List<String> original = messages(alice.getChunkStorage().getChunk(uri, era));
+                    List<String> copy = messages(received.getChunk(uri, era));
+                    Assert.assertTrue(copy.size() <= original.size());
+                    Assert.assertEquals(original.subList(0, copy.size()), copy);
+                }
+            }
+        }
+
+        // reports survive restart
+        bob = ASAPEngineFS.getASAPStorage("Bob", folder + "/bob", FORMAT);
+        this.brokenSync(alice, bob, Integer.MAX_VALUE);
+
+        ASAPChunkStorage received = bob.getIncomingChunkStorage("Alice");
+        for(int era = 0; era < 2; era++) {
+            for(String uri : uris) {
+                Assert.assertEquals(messages(alice.getChunkStorage().getChunk(uri, era)),
+                        messages(received.getChunk(uri, era)));
+            }
+        }
+        Assert.assertTrue(bob.getResumeReports().isEmpty());
+    }
+
+    @Test
+    public void scopedInterests() throws IOException, ASAPException {
+        String folder = "tests/scopedInterests";
+        ASAPEngineFS.removeFolder(folder);
+
+        ASAPEngine engine = ASAPEngineFS.getASAPStorage("Alice", folder, FORMAT);
+        engine.add("test://c1", "c1 era 0");
+        engine.add("test://c2", "c2 era 0");
+        engine.newEra();
+        engine.add("test://c1", "c1 era 1");
+        engine.add("test://c2", "c2 era 1");
+        engine.newEra();
+
+        engine.setSendReceivedChunks(true);
+        engine.getIncomingChunkStorage("Clara").getChunk("test://c1", 7).addMessage("c1 from Clara".getBytes());
+
+        // channel
+        List<String> data = this.sync(engine, "Bob", new ASAPSubscription("test://c1"));
+        Collections.sort(data);
+        Assert.assertEquals(3, data.size());
+        Assert.assertEquals("c1 era 0", data.get(0));
+        Assert.assertEquals("c1 era 1", data.get(1));
+        Assert.assertEquals("c1 from Clara", data.get(2));
+
+        // era window of a source peer - c1 was sent already
+        data = this.sync(engine, "Bob", new ASAPSubscription("Alice", null, 1, 1));
+        Assert.assertEquals(1, data.size());
+        Assert.assertEquals("c2 era 1", data.get(0));
+
+        // wrapping window - from era 7 to era 0 - Clara's chunk was sent already
+        data = this.sync(engine, "Bob", new ASAPSubscription(null, null, 7, 0));
+        Assert.assertEquals(1, data.size());
+        Assert.assertEquals("c2 era 0", data.get(0));
+
+        // nothing sent twice - blanket interest finds anything sent
+        Assert.assertTrue(this.sync(engine, "Bob").isEmpty());
+
+        // source peer only
+        data = this.sync(engine, "Clara", new ASAPSubscription("Clara", null, -1, -1));
+        Assert.assertEquals(1, data.size());
+        Assert.assertEquals("c1 from Clara", data.get(0));
+        Assert.assertTrue(this.sync(engine, "Clara", new ASAPSubscription("David", null, -1, -1)).isEmpty());
+    }
+
+    @Test
+    public void scopedSyncKeepsIndexSmall() throws IOException, ASAPException {
+        String folder = "tests/scopedSyncIndex";
+        ASAPEngineFS.removeFolder(folder);
+
+        ASAPEngine engine = ASAPEngineFS.getASAPStorage("Alice", folder, FORMAT);
+        for(int i = 0; i < 3; i++) {
+            engine.add("test://public", "public era " + i);
+            engine.createChannel("test://closed", "Clara");
+            engine.add("test://closed", "closed era " + i);
+            engine.newEra();
+        }
+
+        ASAPSubscription channels = new ASAPSubscription(null, null, 0, 2);
+        Assert.assertEquals(3, this.sync(engine, "Bob", channels).size());
+
+        // chunks not meant for Bob leave no entries
+        for(int i = 0; i < 3; i++) {
+            Assert.assertEquals(ASAPSyncIndex.UNKNOWN,
+                    engine.syncIndex.getHandledLength("Bob", "Alice", i, "test://closed"));
+        }
+
+        // same subscription again - old eras are not even read
+        ASAPChunkStorage chunkStorage = engine.getChunkStorage();
+        long reads = chunkStorage.getChunkCacheHits() + chunkStorage.getChunkCacheMisses();
+        Assert.assertTrue(this.sync(engine, "Bob", channels).isEmpty());
+        Assert.assertEquals(reads, chunkStorage.getChunkCacheHits() + chunkStorage.getChunkCacheMisses());
+
+        // progress survives
+        engine = ASAPEngineFS.getASAPStorage("Alice", folder, FORMAT);
+        Assert.assertEquals(3, (int) engine.syncIndex.getSubscriptionEra("Bob", channels));
+        Assert.assertTrue(this.sync(engine, "Bob", channels).isEmpty());
+
+        // blanket interest moves last seen era - subscription progress is forgotten
+        Assert.assertTrue(this.sync(engine, "Bob").isEmpty());
+        Assert.assertNull(engine.syncIndex.getSubscriptionEra("Bob", channels));
+    }
+
+    @Test
+    public void subscriptionsArePushedAsInterests() throws IOException, ASAPException {
+        String folder = "tests/subscriptions";
+        ASAPEngineFS.removeFolder(folder);
+
+        MultiASAPEngineFS multiEngine = MultiASAPEngineFS_Impl.createMultiEngine("Alice", folder,
+                MultiASAPEngineFS.DEFAULT_MAX_PROCESSING_TIME,
+                Collections.singletonList((CharSequence) FORMAT), null);
+
+        // blanket interest without subscription
+        List<ASAP_Interest_PDU_1_0> interests = this.pushedInterests(multiEngine);
+        Assert.assertEquals(1, interests.size());
+        Assert.assertFalse(interests.get(0).channelSet());
+
+        ASAPSubscription channel = new ASAPSubscription("test://c1");
+        ASAPSubscription window = new ASAPSubscription("Bob", null, 3, 5);
+        multiEngine.addSubscription(FORMAT, channel);
+        multiEngine.addSubscription(FORMAT, window);
+        Assert.assertEquals(2, multiEngine.getSubscriptions(FORMAT).size());
+
+        interests = this.pushedInterests(multiEngine);
+        Assert.assertEquals(2, interests.size());
+        for(ASAP_Interest_PDU_1_0 interest : interests) {
+            ASAPSubscription received = ASAPSubscription.fromInterest(interest);
+            Assert.assertTrue(received.equals(channel) || received.equals(window));
+        }
+
+        multiEngine.removeSubscription(FORMAT, channel);
+        multiEngine.removeSubscription(FORMAT, window);
+        Assert.assertEquals(1, this.pushedInterests(multiEngine).size());
+
+        try {
+            multiEngine.addSubscription("unknownFormat", channel);
+            Assert.fail("no engine for that format");
+        }
+        catch(ASAPException e) {
+            // ok
+        }
+    }
+
+    /**
+     * @return interests pushed for test format
+     */
+    private List<ASAP_Interest_PDU_1_0> pushedInterests(MultiASAPEngineFS multiEngine)
+            throws IOException, ASAPException {
+
+        ByteArrayOutputStream pushed = new ByteArrayOutputStream();
+        multiEngine.pushInterests(pushed);
+
+        ASAP_1_0 protocol = new ASAP_Modem_Impl();
+        ByteArrayInputStream pushedIS = new ByteArrayInputStream(pushed.toByteArray());
+        List<ASAP_Interest_PDU_1_0> interests = new ArrayList<>();
+        while(pushedIS.available() > 0) {
+            ASAP_PDU_1_0 pdu = protocol.readPDU(pushedIS);
+            if(FORMAT.equals(pdu.getFormat())) interests.add((ASAP_Interest_PDU_1_0) pdu);
+        }
+        return interests;
+    }
+
+    @Test
+    public void metaDataCompactionReplacesFile() throws IOException {
+        String folder = "tests/metaDataCompaction";
+        ASAPEngineFS.removeFolder(folder);
+        new File(folder).mkdirs();
+        File metaFile = new File(folder + "/chunk.meta");
+
+        ASAPChunkMetaDataFS writer = new ASAPChunkMetaDataFS(metaFile, "test://uri");
+        ASAPChunkMetaDataFS other = new ASAPChunkMetaDataFS(metaFile, "test://uri");
+        writer.load();
+        other.load();
+
+        // journal is compacted meanwhile - file is replaced
+        int number = ASAPChunkMetaDataFS.MIN_JOURNAL_RECORDS_BEFORE_COMPACTION * 3;
+        for(int i = 1; i <= number; i++) {
+            writer.addOffset(i * 10);
+        }
+
+        // other object notices replaced file and appends to new one
+        other.addOffset((number + 1) * 10);
+        Assert.assertEquals(number + 1, other.getOffsets().size());
+        Assert.assertTrue(writer.refresh());
+        Assert.assertEquals(number + 1, writer.getOffsets().size());
+
+        writer.close();
+        other.close();
+        ASAPChunkMetaDataFS reader = new ASAPChunkMetaDataFS(metaFile, "test://uri");
+        reader.load();
+        Assert.assertEquals(number + 1, reader.getOffsets().size());
+        Assert.assertEquals((number + 1) * 10, reader.getOffsets().get(number));
+
+        // no temporary files left
+        Assert.assertEquals(1, new File(folder).list().length);
+    }
+
+    @Test
+    public void catalogueCompactionReplacesFile() throws IOException {
+        String folder = "tests/catalogueCompaction";
+        ASAPEngineFS.removeFolder(folder);
+        new File(folder).mkdirs();
+        String uri = "test://anURI";
+
+        ASAPChunkStorageFS writer = new ASAPChunkStorageFS(folder, FORMAT);
+        ASAPChunkStorageFS other = new ASAPChunkStorageFS(folder, FORMAT);
+        other.existsChunk(uri, ASAP.INITIAL_ERA);
+
+        // journal is compacted meanwhile - file is replaced
+        int number = ASAPEraCatalogueFS.MIN_JOURNAL_RECORDS_BEFORE_COMPACTION * 3;
+        ASAPChunk chunk = writer.getChunk(uri, ASAP.INITIAL_ERA);
+        for(int i = 0; i < number; i++) {
+            chunk.addMessage("m".getBytes());
+        }
+
+        // other object notices replaced file and appends to new one
+        other.getChunk(uri, ASAP.INITIAL_ERA).addMessage("m".getBytes());
+        Assert.assertEquals(number + 1, other.getChunkEntry(uri, ASAP.INITIAL_ERA).getNumberMessages());
+        Assert.assertEquals(number + 1, writer.getChunkEntry(uri, ASAP.INITIAL_ERA).getNumberMessages());
+
+        writer.close();
+        other.close();
+        ASAPChunkStorageFS reader = new ASAPChunkStorageFS(folder, FORMAT);
+        Assert.assertEquals(number + 1, reader.getChunkEntry(uri, ASAP.INITIAL_ERA).getNumberMessages());
+
+        // no temporary files left
+        for(String fileName : new File(folder).list()) {
+            Assert.assertFalse(fileName.endsWith(".tmp"));
+        }
+    }
+
+    @Test
+    public void syncIndexJournal() throws IOException {
+        String folder = "tests/syncIndexJournal";
+        ASAPEngineFS.removeFolder(folder);
+        new File(folder).mkdirs();
+        File indexFile = new File(folder + "/" + ASAPSyncIndex.SYNC_INDEX_FILENAME);
+
+        // delivered chunks are forgotten - journal is compacted meanwhile
+        ASAPSyncIndex index = new ASAPSyncIndex(indexFile);
+        int number = ASAPSyncIndex.MIN_JOURNAL_RECORDS_BEFORE_COMPACTION * 3;
+        for(int i = 0; i < number; i++) {
+            index.setHandledLength("Bob", "Clara", i, "test://uri", 10);
+        }
+        Assert.assertEquals(10, index.getHandledLength("Bob", "Clara", number - 1, "test://uri"));
+        for(int i = 0; i < number; i++) {
+            index.setDelivered("Bob", "Clara", i, "test://uri", 20);
+        }
+        Assert.assertEquals(ASAPSyncIndex.UNKNOWN, index.getHandledLength("Bob", "Clara", 0, "test://uri"));
+
+        // chunks which can still grow are not forgotten
+        index.startReceiving("Clara", 1, "test://uri");
+        index.setDelivered("Bob", "Clara", 1, "test://uri", 20);
+        index.stopReceiving("Clara", 1, "test://uri");
+        index.setIncomplete("Clara", 2, "test://uri");
+        index.setDelivered("Bob", "Clara", 2, "test://uri", 30);
+        index.setDelivered("Dave", "Clara", 2, "test://uri", 30);
+
+        index.close();
+        index = new ASAPSyncIndex(indexFile);
+        Assert.assertEquals(20, index.getHandledLength("Bob", "Clara", 1, "test://uri"));
+        Assert.assertEquals(30, index.getHandledLength("Bob", "Clara", 2, "test://uri"));
+        Assert.assertEquals(ASAPSyncIndex.UNKNOWN, index.getHandledLength("Bob", "Clara", 3, "test://uri"));
+        Assert.assertEquals(1, index.getIncompleteChunks().size());
+
+        // dropped chunks are forgotten for any peer
+        index.chunkDropped("Clara", 2, "test://uri");
+        index.close();
+        index = new ASAPSyncIndex(indexFile);
+        Assert.assertEquals(ASAPSyncIndex.UNKNOWN, index.getHandledLength("Bob", "Clara", 2, "test://uri"));
+        Assert.assertEquals(ASAPSyncIndex.UNKNOWN, index.getHandledLength("Dave", "Clara", 2, "test://uri"));
+        Assert.assertTrue(index.getIncompleteChunks().isEmpty());
+        index.close();
+
+        // no temporary files left
+        Assert.assertEquals(1, new File(folder).list().length);
+    }
 }
@@ -5,8 +5,11 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.zip.Deflater;
 
 public class PDUTests {
 
@@ -124,6 +127,7 @@ public class PDUTests {
         List<Integer> offsets_received = assimilationPDU.getMessageOffsets();
         // one entry assumed
         int offset = offsets_received.get(0);
+        Assert.assertArrayEquals(new long[] {len}, assimilationPDU.getMessageOffsetArray());
 
         byte[] data_r1 = new byte[offset];
         for(int i = 0; i < offset; i++) {
@@ -176,4 +180,310 @@ public class PDUTests {
         Assert.assertFalse(interestPDU.eraFromSet());
         Assert.assertFalse(interestPDU.eraToSet());
     }
+
+    @Test
+    public void receiveFromFragmentingStream() throws IOException, ASAPException {
+        ASAP_1_0 protocolEngine = new ASAP_Modem_Impl();
+
+        String peer = "Alice";
+        String channel = "AliceURI";
+        String format = "format";
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        protocolEngine.offer(peer, format, channel, 1, os, false);
+
+        // stream delivers no more than a single byte with each read
+        InputStream is = new FilterInputStream(new ByteArrayInputStream(os.toByteArray())) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+
+        ASAP_OfferPDU_1_0 offerPDU = (ASAP_OfferPDU_1_0) protocolEngine.readPDU(is);
+
+        Assert.assertEquals(channel, offerPDU.getChannelUri());
+        Assert.assertEquals(format, offerPDU.getFormat());
+        Assert.assertEquals(peer, offerPDU.getPeer());
+    }
+
+    @Test
+    public void sendAndReceiveBinaryOffsets() throws IOException, ASAPException {
+        ASAP_Modem_Impl protocolEngine = new ASAP_Modem_Impl();
+
+        long[] offsets = new long[1000];
+        for(int i = 0; i < offsets.length; i++) {
+            offsets[i] = (i + 1) * 10;
+        }
+        // beyond 2 GB
+        offsets[offsets.length - 1] = 3L * Integer.MAX_VALUE;
+        byte[] data = new byte[] {1, 2, 3};
+
+        ByteArrayOutputStream decimalOS = new ByteArrayOutputStream();
+        protocolEngine.assimilate("Alice", null, "format", "uri", 1, data.length, offsets,
+                new ByteArrayInputStream(data), decimalOS, false);
+
+        protocolEngine.setBinaryOffsets(true);
+        ByteArrayOutputStream binaryOS = new ByteArrayOutputStream();
+        protocolEngine.assimilate("Alice", null, "format", "uri", 1, data.length, offsets,
+                new ByteArrayInputStream(data), binaryOS, false);
+
+        Assert.assertTrue(binaryOS.size() < decimalOS.size() / 2);
+
+        // a reader reads both encodings
+        ASAP_1_0 reader = new ASAP_Modem_Impl();
+        for(ByteArrayOutputStream os : new ByteArrayOutputStream[] {decimalOS, binaryOS}) {
+            ASAP_AssimilationPDU_1_0 assimilationPDU = (ASAP_AssimilationPDU_1_0)
+                    reader.readPDU(new ByteArrayInputStream(os.toByteArray()));
+
+            Assert.assertArrayEquals(offsets, assimilationPDU.getMessageOffsetArray());
+            Assert.assertEquals(data.length, assimilationPDU.getLength());
+            Assert.assertArrayEquals(data, assimilationPDU.getData());
+        }
+    }
+
+    @Test
+    public void sendAndReceiveCapabilities() throws IOException, ASAPException {
+        ASAP_Modem_Impl protocolEngine = new ASAP_Modem_Impl();
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        ASAPCapabilities.sendCapabilities("Alice", protocolEngine, os);
+
+        ASAP_PDU_1_0 pdu = protocolEngine.readPDU(new ByteArrayInputStream(os.toByteArray()));
+        Assert.assertTrue(ASAPCapabilities.isCapabilitiesPDU(pdu));
+        Assert.assertEquals("Alice", pdu.getPeer());
+
+        ASAPCapabilities remote = ASAPCapabilities.fromPDU(pdu);
+        Assert.assertTrue(remote.supports(ASAPCapabilities.BINARY_OFFSETS));
+
+        // unknown features are ignored
+        ASAPCapabilities common = ASAPCapabilities.getLocalCapabilities().intersect(
+                new ASAPCapabilities("somethingNew," + ASAPCapabilities.BINARY_OFFSETS));
+        Assert.assertEquals(1, common.getCapabilities().size());
+
+        common.configure(protocolEngine);
+        Assert.assertTrue(protocolEngine.isBinaryOffsets());
+
+        // peer without any capabilities
+        new ASAPCapabilities(null).intersect(common).configure(protocolEngine);
+        Assert.assertFalse(protocolEngine.isBinaryOffsets());
+    }
+
+    @Test
+    public void sendAndReceiveCompressed() throws IOException, ASAPException {
+        ASAP_Modem_Impl protocolEngine = new ASAP_Modem_Impl();
+        protocolEngine.setBinaryOffsets(true);
+        ASAPCompression compression = new ASAPCompression();
+        protocolEngine.setCompression(compression);
+
+        // some json like messages
+        ByteArrayOutputStream messages = new ByteArrayOutputStream();
+        long[] offsets = new long[99];
+        for(int i = 0; i < 100; i++) {
+            if(i > 0) offsets[i - 1] = messages.size();
+            messages.write(("{\"sender\": \"Alice\", \"number\": " + i + "}").getBytes());
+        }
+        byte[] data = messages.toByteArray();
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        protocolEngine.assimilate("Alice", null, "format", "uri", 1, data.length, offsets,
+                new ByteArrayInputStream(data), os, false);
+
+        // short data are not compressed - no offsets at all
+        byte[] shortData = "Hi".getBytes();
+        protocolEngine.assimilate("Alice", null, "format", "uri", 1, null, shortData, os, false);
+
+        Assert.assertTrue(os.size() < data.length / 2);
+        Assert.assertEquals(1, compression.getCompressedPDUs());
+        Assert.assertEquals(1, compression.getUncompressedPDUs());
+        Assert.assertTrue(compression.getCompressionRatio() < 0.5);
+
+        // receiver does not need compression settings to read
+        ASAP_Modem_Impl receiver = new ASAP_Modem_Impl();
+        ASAPCompression receiverStats = new ASAPCompression();
+        receiver.setCompression(receiverStats);
+        InputStream is = new ByteArrayInputStream(os.toByteArray());
+
+        ASAP_AssimilationPDU_1_0 assimilationPDU = (ASAP_AssimilationPDU_1_0) receiver.readPDU(is);
+        Assert.assertArrayEquals(offsets, assimilationPDU.getMessageOffsetArray());
+        // callers get a copy
+        assimilationPDU.getMessageOffsetArray()[0] = -1;
+        Assert.assertArrayEquals(offsets, assimilationPDU.getMessageOffsetArray());
+        Assert.assertEquals(data.length, assimilationPDU.getLength());
+        Assert.assertArrayEquals(data, assimilationPDU.getData());
+
+        assimilationPDU = (ASAP_AssimilationPDU_1_0) receiver.readPDU(is);
+        Assert.assertEquals(0, assimilationPDU.getMessageOffsetArray().length);
+        Assert.assertArrayEquals(shortData, assimilationPDU.getData());
+
+        Assert.assertEquals(1, receiverStats.getReceivedCompressedPDUs());
+        Assert.assertEquals(data.length, receiverStats.getReceivedInflatedBytes());
+    }
+
+    @Test
+    public void rejectOversizedCompressed() throws IOException, ASAPException {
+        ASAP_Modem_Impl protocolEngine = new ASAP_Modem_Impl();
+        protocolEngine.setBinaryOffsets(true);
+        protocolEngine.setCompression(new ASAPCompression());
+
+        byte[] data = new byte[4096];
+        Arrays.fill(data, (byte) 'a');
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        protocolEngine.assimilate("Alice", null, "format", "uri", 1, data.length, new long[] {1000},
+                new ByteArrayInputStream(data), os, false);
+        byte[] wire = os.toByteArray();
+
+        // inflated data exceed maximum of receiver
+        ASAP_Modem_Impl receiver = new ASAP_Modem_Impl();
+        receiver.setCompression(new ASAPCompression(512, 1024, Deflater.DEFAULT_COMPRESSION));
+        try {
+            receiver.readPDU(new ByteArrayInputStream(wire));
+            Assert.fail("inflated length exceeds maximum");
+        } catch(ASAPException e) {
+            // ok
+        }
+
+        // announced compressed length exceeds maximum - nothing is allocated
+        AssimilationPDU_Impl pdu = (AssimilationPDU_Impl) new ASAP_Modem_Impl().readPDU(new ByteArrayInputStream(wire));
+        int lengthPosition = wire.length - (int) pdu.getWireLength() - 8;
+        ByteBuffer.wrap(wire, lengthPosition, 8).putLong(Integer.MAX_VALUE - 8);
+        try {
+            new ASAP_Modem_Impl().readPDU(new ByteArrayInputStream(wire));
+            Assert.fail("compressed length exceeds maximum");
+        } catch(ASAPException e) {
+            // ok
+        }
+
+        // inflater is released when data end - or with close
+        Assert.assertArrayEquals(data, pdu.getData());
+        Assert.assertEquals(-1, pdu.getInputStream().read());
+        pdu = (AssimilationPDU_Impl) new ASAP_Modem_Impl().readPDU(
+                new ByteArrayInputStream(os.toByteArray()));
+        pdu.close();
+        Assert.assertEquals(-1, pdu.getInputStream().read());
+    }
+
+    /**
+     * Collects data handed to decoder handler - read after decoding
+     */
+    private class CollectingInputStream extends InputStream {
+        private final ByteArrayOutputStream collected = new ByteArrayOutputStream();
+        private ByteArrayInputStream is = null;
+
+        void add(ByteBuffer data, int max) {
+            int number = Math.min(max, data.remaining());
+            byte[] bytes = new byte[number];
+            data.get(bytes);
+            this.collected.write(bytes, 0, number);
+        }
+
+        @Override
+        public int read() {
+            if(this.is == null) this.is = new ByteArrayInputStream(this.collected.toByteArray());
+            return this.is.read();
+        }
+    }
+
+    private List<ASAP_PDU_1_0> decodeIncrementally(byte[] wire, int pieceSize, final int maxDataTaken)
+            throws IOException, ASAPException {
+
+        final List<ASAP_PDU_1_0> pdus = new ArrayList<>();
+        final CollectingInputStream[] dataStream = new CollectingInputStream[1];
+
+        ASAPPDUDecoder decoder = new ASAPPDUDecoder(new ASAP_Modem_Impl(), new ASAPPDUDecoder.PDUHandler() {
+            @Override
+            public InputStream createDataStream(long wireLength) {
+                dataStream[0] = new CollectingInputStream();
+                return dataStream[0];
+            }
+
+            @Override
+            public void pduDecoded(ASAP_PDU_1_0 pdu) {
+                pdus.add(pdu);
+            }
+
+            @Override
+            public void dataReceived(ByteBuffer data) {
+                dataStream[0].add(data, maxDataTaken);
+            }
+        });
+
+        for(int offset = 0; offset < wire.length; offset += pieceSize) {
+            ByteBuffer piece = ByteBuffer.wrap(wire, offset, Math.min(pieceSize, wire.length - offset));
+            // handler takes data in small portions only - push rest again
+            while(piece.hasRemaining()) {
+                decoder.decode(piece);
+            }
+        }
+
+        Assert.assertTrue(decoder.isIdle());
+        return pdus;
+    }
+
+    @Test
+    public void decodeIncrementally() throws IOException, ASAPException {
+        ASAP_Modem_Impl protocolEngine = new ASAP_Modem_Impl();
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+
+        byte[] data = new byte[3000];
+        for(int i = 0; i < data.length; i++) data[i] = (byte) (i % 13);
+        long[] offsets = {100, 1000, 2999};
+
+        protocolEngine.offer("Alice", "format", "uri", 3, os, false);
+        protocolEngine.interest("Alice", "Bob", "format", "uri", 1, 4, os, false);
+        ASAPCapabilities.sendCapabilities("Alice", protocolEngine, os);
+        protocolEngine.assimilate("Alice", "Bob", "format", "uri", 2, data.length, offsets,
+                new ByteArrayInputStream(data), os, false);
+        protocolEngine.setBinaryOffsets(true);
+        protocolEngine.assimilate("Alice", null, "format", "uri", 2, data.length, offsets,
+                new ByteArrayInputStream(data), os, false);
+        protocolEngine.setCompression(new ASAPCompression());
+        protocolEngine.assimilate("Alice", null, "format", "uri", 2, data.length, offsets,
+                new ByteArrayInputStream(data), os, false);
+        protocolEngine.interest("Alice", null, "format", null, os, false);
+
+        byte[] wire = os.toByteArray();
+
+        // reference: blocking decoder
+        List<ASAP_PDU_1_0> expected = new ArrayList<>();
+        List<byte[]> expectedData = new ArrayList<>();
+        InputStream is = new ByteArrayInputStream(wire);
+        while(is.available() > 0) {
+            ASAP_PDU_1_0 pdu = protocolEngine.readPDU(is);
+            expected.add(pdu);
+            expectedData.add(pdu instanceof ASAP_AssimilationPDU_1_0 ?
+                    ((ASAP_AssimilationPDU_1_0) pdu).getData() : null);
+        }
+        Assert.assertEquals(7, expected.size());
+
+        int[][] variants = { {1, 1}, {7, 3}, {wire.length, Integer.MAX_VALUE}, {100, 64} };
+        for(int[] variant : variants) {
+            List<ASAP_PDU_1_0> decoded = this.decodeIncrementally(wire, variant[0], variant[1]);
+            Assert.assertEquals(expected.size(), decoded.size());
+
+            for(int i = 0; i < expected.size(); i++) {
+                ASAP_PDU_1_0 e = expected.get(i);
+                ASAP_PDU_1_0 d = decoded.get(i);
+                Assert.assertEquals(e.toString(), d.toString());
+                Assert.assertEquals(e.getClass(), d.getClass());
+
+                if(e instanceof ASAP_Interest_PDU_1_0) {
+                    ASAP_Interest_PDU_1_0 ei = (ASAP_Interest_PDU_1_0) e;
+                    ASAP_Interest_PDU_1_0 di = (ASAP_Interest_PDU_1_0) d;
+                    Assert.assertEquals(ei.getSourcePeer(), di.getSourcePeer());
+                    Assert.assertEquals(ei.getEraFrom(), di.getEraFrom());
+                    Assert.assertEquals(ei.getEraTo(), di.getEraTo());
+                }
+
+                if(e instanceof ASAP_AssimilationPDU_1_0) {
+                    ASAP_AssimilationPDU_1_0 ea = (ASAP_AssimilationPDU_1_0) e;
+                    ASAP_AssimilationPDU_1_0 da = (ASAP_AssimilationPDU_1_0) d;
+                    Assert.assertEquals(ea.getRecipientPeer(), da.getRecipientPeer());
+                    Assert.assertEquals(ea.getLength(), da.getLength());
+                    Assert.assertArrayEquals(ea.getMessageOffsetArray(), da.getMessageOffsetArray());
+                    Assert.assertArrayEquals(expectedData.get(i), da.getData());
+                }
+            }
+        }
+    }
 }
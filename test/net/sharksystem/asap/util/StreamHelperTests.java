@@ -0,0 +1,133 @@
+package net.sharksystem.asap.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+public class StreamHelperTests {
+    private static final String FOLDER = "tests/streamHelper";
+
+    private byte[] data(int length) {
+        byte[] data = new byte[length];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+
+    private File file(String name, byte[] content) throws IOException {
+        new File(FOLDER).mkdirs();
+        File file = new File(FOLDER + "/" + name);
+        FileOutputStream fos = new FileOutputStream(file);
+        fos.write(content);
+        fos.close();
+        return file;
+    }
+
+    private byte[] read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        byte[] content = new byte[(int) raf.length()];
+        raf.readFully(content);
+        raf.close();
+        return content;
+    }
+
+    /** stream and channel - takes nothing as channel */
+    private class NonBlockingTarget extends ByteArrayOutputStream implements WritableByteChannel {
+        private int channelWrites = 0;
+
+        public int write(ByteBuffer src) {
+            this.channelWrites++;
+            return 0;
+        }
+
+        public boolean isOpen() { return true; }
+    }
+
+    @Test
+    public void fileToStream() throws IOException {
+        byte[] data = this.data(3 * StreamHelper.DEFAULT_COPY_BUFFER_SIZE + 17);
+        File source = this.file("fileToStream", data);
+
+        // file to file by the os - stream position follows
+        FileInputStream fis = new FileInputStream(source);
+        fis.skip(10);
+        File target = new File(FOLDER + "/fileToStreamCopy");
+        FileOutputStream fos = new FileOutputStream(target);
+        StreamHelper.copy(fis, fos, 1000);
+        fos.close();
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, 10, 1010), this.read(target));
+        Assert.assertEquals(data[1010], (byte) fis.read());
+
+        // file to any stream
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        StreamHelper.copy(fis, baos, data.length - 1011);
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, 1011, data.length), baos.toByteArray());
+        fis.close();
+
+        // too short
+        fis = new FileInputStream(source);
+        try {
+            StreamHelper.copy(fis, new FileOutputStream(target), data.length + 1);
+            Assert.fail("source is too short");
+        } catch(EOFException e) {
+            // ok
+        }
+        fis.close();
+    }
+
+    @Test
+    public void channelTakingNothingFallsBackToStream() throws IOException {
+        byte[] data = this.data(1000);
+        FileInputStream fis = new FileInputStream(this.file("nonBlocking", data));
+        NonBlockingTarget target = new NonBlockingTarget();
+
+        StreamHelper.copy(fis, target, 900);
+        fis.close();
+
+        Assert.assertArrayEquals(Arrays.copyOf(data, 900), target.toByteArray());
+        Assert.assertEquals(1, target.channelWrites);
+    }
+
+    @Test
+    public void streamToFile() throws IOException {
+        byte[] data = this.data(2 * StreamHelper.DEFAULT_COPY_BUFFER_SIZE + 5);
+        File target = this.file("streamToFile", "head".getBytes());
+
+        FileChannel channel = new FileOutputStream(target, true).getChannel();
+        ByteArrayInputStream bais = new ByteArrayInputStream(data);
+        StreamHelper.copy(bais, channel, 4, data.length - 5);
+        Assert.assertEquals(5, bais.available());
+
+        // file to file
+        FileInputStream fis = new FileInputStream(this.file("streamToFileSource", data));
+        StreamHelper.copy(fis, channel, channel.size(), 100);
+        fis.close();
+
+        try {
+            StreamHelper.copy(new ByteArrayInputStream(data), channel, channel.size(), data.length + 1);
+            Assert.fail("stream is too short");
+        } catch(EOFException e) {
+            // ok
+        }
+        channel.close();
+
+        byte[] content = this.read(target);
+        Assert.assertEquals("head", new String(content, 0, 4));
+        Assert.assertArrayEquals(Arrays.copyOf(data, data.length - 5),
+                Arrays.copyOfRange(content, 4, 4 + data.length - 5));
+        Assert.assertArrayEquals(Arrays.copyOf(data, 100),
+                Arrays.copyOfRange(content, 4 + data.length - 5, 4 + data.length - 5 + 100));
+    }
+}
@@ -0,0 +1,127 @@
+package net.sharksystem.util.localloop;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+public class BufferedStreamTests {
+    private static final long LARGE_BYTES = 8 * 1024 * 1024;
+    private static final int LARGE_CHUNK_SIZE = 64 * 1024 + 7;
+
+    private class Writer extends Thread {
+        private final OutputStream os;
+        private final byte[] data;
+        private final long total;
+        private final int maxChunk;
+        private IOException exception = null;
+
+        Writer(OutputStream os, byte[] data, long total, int maxChunk) {
+            this.os = os;
+            this.data = data;
+            this.total = total;
+            this.maxChunk = maxChunk;
+        }
+
+        public void run() {
+            Random random = new Random(42);
+            try {
+                long written = 0;
+                while(written < this.total) {
+                    int offset = (int) (written % this.data.length);
+                    int len = (int) Math.min(this.total - written,
+                            Math.min(1 + random.nextInt(this.maxChunk), this.data.length - offset));
+                    if(len == 1) {
+                        this.os.write(this.data[offset]);
+                    } else {
+                        this.os.write(this.data, offset, len);
+                    }
+                    written += len;
+                }
+                this.os.close();
+            } catch (IOException e) {
+                this.exception = e;
+            }
+        }
+    }
+
+    @Test
+    public void transferInPiecesUntilEOF() throws IOException, InterruptedException {
+        // small buffer - both sides have to wait for each other
+        BufferedStream stream = new BufferedStream("test", 100);
+        Assert.assertEquals(128, stream.getCapacity());
+
+        byte[] data = new byte[100000];
+        new Random(1).nextBytes(data);
+
+        Writer writer = new Writer(stream.getOutputStream(), data, data.length, 300);
+        writer.start();
+
+        InputStream is = stream.getInputStream();
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        Random random = new Random(2);
+        byte[] buffer = new byte[500];
+        int read;
+        do {
+            if(random.nextBoolean()) {
+                read = is.read();
+                if(read >= 0) received.write(read);
+            } else {
+                read = is.read(buffer, 0, 1 + random.nextInt(buffer.length));
+                if(read > 0) received.write(buffer, 0, read);
+            }
+        } while(read >= 0);
+
+        writer.join();
+        Assert.assertNull(writer.exception);
+        Assert.assertArrayEquals(data, received.toByteArray());
+
+        // EOF stays
+        Assert.assertEquals(-1, is.read());
+    }
+
+    @Test
+    public void writerFailsAfterReaderClosed() throws IOException, InterruptedException {
+        BufferedStream stream = new BufferedStream("test", 16);
+
+        // writer waits for space - reader hangs up
+        Writer writer = new Writer(stream.getOutputStream(), new byte[64], 64, 64);
+        writer.start();
+        Thread.sleep(100);
+        stream.getInputStream().close();
+        writer.join(1000);
+
+        Assert.assertFalse(writer.isAlive());
+        Assert.assertNotNull(writer.exception);
+    }
+
+    @Test
+    public void transferLargeAmount() throws IOException, InterruptedException {
+        BufferedStream stream = new BufferedStream("large", 1024 * 1024);
+        byte[] data = new byte[LARGE_CHUNK_SIZE];
+        new Random(3).nextBytes(data);
+
+        Writer writer = new Writer(stream.getOutputStream(), data, LARGE_BYTES, data.length);
+        writer.start();
+
+        // writer repeats data
+        InputStream is = stream.getInputStream();
+        byte[] buffer = new byte[LARGE_CHUNK_SIZE];
+        long received = 0;
+        int read;
+        while((read = is.read(buffer)) >= 0) {
+            for(int i = 0; i < read; i++) {
+                Assert.assertEquals(data[(int) ((received + i) % data.length)], buffer[i]);
+            }
+            received += read;
+        }
+
+        writer.join();
+        Assert.assertNull(writer.exception);
+        Assert.assertEquals(LARGE_BYTES, received);
+    }
+}